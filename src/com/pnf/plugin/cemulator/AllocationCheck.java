@@ -0,0 +1,184 @@
+package com.pnf.plugin.cemulator;
+
+import java.lang.management.ManagementFactory;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Allocation check of the emulation hot loop: a method is emulated repeatedly from the same input
+ * state (forks of a snapshot), and the bytes allocated by the emulating thread are counted, as
+ * reported by HotSpot's {@link com.sun.management.ThreadMXBean}.
+ * <p>
+ * The execution trace grows with the number of emulated statements and is accounted for separately
+ * (see {@link EmulatorLog#getTraceBytes()}); copy-on-write of the forked input state is done before
+ * measuring. Once warmed up, an emulation should then allocate a small fixed amount (log, frame),
+ * and nothing per statement: {@link #verify(long, double)} fails otherwise, eg if evaluation boxes
+ * values again. The emulator's text log is kept as configured, and cleared between emulations.
+ * <p>
+ * Note: emulators holding their own state (eg, {@link MarsAnalyticaCEmulator}) do not run the
+ * same statements on each iteration; the check is meant to be run instead of a tracer run.
+ */
+public class AllocationCheck {
+
+    /**
+     * default allocation bounds of {@link #verify(long, double)}: the fixed amount covers the
+     * warnings logged once per emulation (eg, non initialized identifiers)
+     */
+    public static final long DEFAULT_MAX_BYTES_PER_EMULATION = 4096;
+    public static final double DEFAULT_MAX_BYTES_PER_STATEMENT = 2;
+
+    private long emulations;
+    private long statements;
+    private long allocatedBytes;
+    private long traceBytes;
+
+    private AllocationCheck() {
+    }
+
+    /**
+     * Check if the JVM counts the bytes allocated per thread.
+     */
+    public static boolean isSupported() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * Emulate a method repeatedly, counting allocations once warmed up. The input state is not
+     * modified (paged memory is enabled if needed, see {@link EmulatorState#fork()}).
+     *
+     * @param emulator
+     * @param routineAddress address of the method, null if unknown
+     * @param method
+     * @param state input state of each emulation
+     * @param iterations number of measured emulations, after as many warm-up emulations
+     * @return allocation counts of the measured emulations
+     * @throws EmulatorException if allocations can not be counted (see {@link #isSupported()})
+     */
+    public static AllocationCheck run(SimpleCEmulator emulator, Long routineAddress, ICMethod method,
+            EmulatorState state, int iterations) {
+        if(!isSupported()) {
+            throw new EmulatorException("ERROR: per-thread allocation counts are not supported by the JVM");
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory
+                .getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        AllocationCheck result = new AllocationCheck();
+        StringBuilder outputLog = emulator.outputLog;
+        int logLength = outputLog.length();
+        try {
+            // pages used by the method are imported once in the input state, so that its forks
+            // share them instead of importing them again from the backing memory
+            EmulatorState warmup = state.fork();
+            emulator.emulate(routineAddress, method, warmup);
+            long[] pageNumbers = warmup.getPagedMemory().getPageNumbers();
+            EmulatorState input = state.fork();
+            byte[] page = new byte[PagedMemory.PAGE_SIZE];
+            for(long pageNumber: pageNumbers) {
+                input.getPagedMemory().readPage(pageNumber, page);
+            }
+            // (registers are likewise remapped once to the slots of the lowered methods)
+            input.bindRegisterSlots(warmup.getRegisterFile().getSlots());
+            input = input.snapshot();
+
+            for(int i = 0; i < 2 * iterations; i++) {
+                EmulatorState inputState = input.fork();
+                unshare(inputState, pageNumbers, page);
+                outputLog.setLength(logLength);
+                long before = threads.getThreadAllocatedBytes(threadId);
+                EmulatorLog log = emulator.emulate(routineAddress, method, inputState);
+                long after = threads.getThreadAllocatedBytes(threadId);
+                if(i >= iterations) {
+                    result.emulations++;
+                    result.statements += log.getExecutedStatementCount();
+                    result.allocatedBytes += after - before;
+                    result.traceBytes += log.getTraceBytes();
+                }
+            }
+        }
+        finally {
+            // (text of the check is not part of the run's log)
+            outputLog.setLength(logLength);
+        }
+        return result;
+    }
+
+    /**
+     * Copy the shared pages and registers of a fork, as its emulation would on first write.
+     */
+    private static void unshare(EmulatorState fork, long[] pageNumbers, byte[] page) {
+        PagedMemory memory = fork.getPagedMemory();
+        for(long pageNumber: pageNumbers) {
+            if(memory.readPage(pageNumber, page)) {
+                memory.restorePage(pageNumber, page);
+            }
+        }
+        if(fork.isRegisterSlotDefined(SimpleCEmulator.REG_RBP_SLOT)) {
+            fork.setRegisterSlot(SimpleCEmulator.REG_RBP_SLOT, fork.getRegisterSlot(SimpleCEmulator.REG_RBP_SLOT));
+        }
+    }
+
+    /**
+     * Check the allocations of the measured emulations, trace excluded, against a fixed amount per
+     * emulation plus an amount per executed statement.
+     *
+     * @param maxBytesPerEmulation
+     * @param maxBytesPerStatement
+     * @throws EmulatorException if the emulations allocated more
+     */
+    public void verify(long maxBytesPerEmulation, double maxBytesPerStatement) {
+        double limit = emulations * (double)maxBytesPerEmulation + statements * maxBytesPerStatement;
+        if(allocatedBytes - traceBytes > limit) {
+            throw new EmulatorException(Strings.ff(
+                    "ERROR: allocation check failed: %d bytes allocated, for at most %.0f (%d bytes/emulation + %.1f bytes/statement) -- %s",
+                    allocatedBytes - traceBytes, limit, maxBytesPerEmulation, maxBytesPerStatement, this));
+        }
+    }
+
+    public long getEmulations() {
+        return emulations;
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+
+    /**
+     * Get the number of bytes allocated by the measured emulations, trace included.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Get the number of bytes allocated to store the traces of the measured emulations.
+     */
+    public long getTraceBytes() {
+        return traceBytes;
+    }
+
+    /**
+     * Get the number of bytes allocated per emulation, trace excluded.
+     */
+    public double getBytesPerEmulation() {
+        return emulations == 0 ? 0: (double)(allocatedBytes - traceBytes) / emulations;
+    }
+
+    /**
+     * Get the number of bytes allocated per emulated statement, trace excluded.
+     */
+    public double getBytesPerStatement() {
+        return statements == 0 ? 0: (double)(allocatedBytes - traceBytes) / statements;
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("%d emulations, %d statements: %.2f bytes/statement, %.0f bytes/emulation (trace: %d bytes)",
+                emulations, statements, getBytesPerStatement(), getBytesPerEmulation(), traceBytes);
+    }
+
+}
@@ -0,0 +1,302 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.core.exceptions.JebRuntimeException;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Execution trace made of fixed-size binary records, stored in a preallocated ring buffer. Each
+ * record holds the handler address, the index of the executed statement in the handler's
+ * {@link CompiledMethod}, and optionally the register written by the statement with its new value.
+ * <p>
+ * Methods are identified by routine address. Only the current version of a routine keeps its
+ * lowered form; when a routine is decompiled again, the statements of the previous version are
+ * kept as text while records still refer to them.
+ * <p>
+ * When the buffer is full, oldest records are either dropped or, if a spill file was provided,
+ * appended to that file. Text is only produced when the trace is rendered (see
+ * {@link #render(Appendable)}).
+ * <p>
+ * Only lowered executions are traced; the reference interpreter keeps logging text.
+ */
+public class BinaryTrace {
+
+    /** default number of records in the ring buffer */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /** register id of records without register write */
+    public static final int NO_REGISTER = Integer.MIN_VALUE;
+
+    /** statement index of the records marking the start of a method emulation */
+    private static final int METHOD_ENTRY = -1;
+
+    /** record: address, method id << 32 | statement index, register id, register value */
+    private static final int RECORD_LONGS = 4;
+
+    private static class MethodInfo {
+        String name;
+        /** lowered form of the current version, null once replaced */
+        CompiledMethod compiled;
+        /** statements of a replaced version */
+        String[] statements;
+        /** number of records written when the method was last left */
+        long end;
+
+        MethodInfo(CompiledMethod compiled) {
+            name = compiled.getMethod().getName();
+            this.compiled = compiled;
+        }
+
+        String getStatement(int index) {
+            return compiled != null ? compiled.getStatementNode(index).statement.toString(): statements[index];
+        }
+    }
+
+    private final long[] records;
+    private final int capacity;
+    private final boolean recordRegisters;
+
+    /** total number of records written, including spilled or dropped ones */
+    private long count;
+    private long spilledCount;
+
+    private File spillFile;
+    private DataOutputStream spill;
+
+    /** methods by id, null for released ids */
+    private List<MethodInfo> methods = new ArrayList<>();
+    /** ids of the current methods, by routine address (or name, if the address is unknown) */
+    private Map<Object, Integer> methodIds = new HashMap<>();
+    /** ids of replaced methods, and released ids */
+    private Deque<Integer> replacedIds = new ArrayDeque<>();
+    private Deque<Integer> freeIds = new ArrayDeque<>();
+
+    /** current method */
+    private int methodId = -1;
+    private long methodAddress;
+
+    /**
+     * @param capacity number of records kept in memory
+     * @param recordRegisters true to record the registers written by statements
+     * @param spillFile file receiving the records evicted from the buffer, null to drop them
+     */
+    public BinaryTrace(int capacity, boolean recordRegisters, File spillFile) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("invalid trace capacity");
+        }
+        this.capacity = capacity;
+        this.recordRegisters = recordRegisters;
+        this.spillFile = spillFile;
+        records = new long[capacity * RECORD_LONGS];
+    }
+
+    public BinaryTrace() {
+        this(DEFAULT_CAPACITY, false, null);
+    }
+
+    public boolean isRecordingRegisters() {
+        return recordRegisters;
+    }
+
+    /**
+     * Start the trace of a method emulation.
+     * 
+     * @param address method address, null if unknown
+     * @param compiled method being emulated
+     */
+    void beginMethod(Long address, CompiledMethod compiled) {
+        if(methodId >= 0) {
+            methods.get(methodId).end = count;
+        }
+        Object key = address != null ? address: compiled.getMethod().getName();
+        Integer id = methodIds.get(key);
+        if(id == null || methods.get(id).compiled != compiled) {
+            if(id != null) {
+                replace(id);
+            }
+            MethodInfo method = new MethodInfo(compiled);
+            if(freeIds.isEmpty()) {
+                id = methods.size();
+                methods.add(method);
+            }
+            else {
+                id = freeIds.poll();
+                methods.set(id, method);
+            }
+            methodIds.put(key, id);
+        }
+        methodId = id;
+        methodAddress = address != null ? address: 0L;
+        record(METHOD_ENTRY);
+    }
+
+    /**
+     * Drop the lowered form of a method whose routine was decompiled again, keeping the text of its
+     * statements for its remaining records. Replaced methods whose records were all dropped are
+     * released.
+     */
+    private void replace(int id) {
+        MethodInfo method = methods.get(id);
+        String[] statements = new String[method.compiled.size()];
+        for(int i = 0; i < statements.length; i++) {
+            statements[i] = method.getStatement(i);
+        }
+        method.statements = statements;
+        method.compiled = null;
+        replacedIds.add(id);
+        if(spillFile == null) {
+            for(int i = replacedIds.size(); i > 0; i--) {
+                int replacedId = replacedIds.poll();
+                if(methods.get(replacedId).end <= count - capacity) {
+                    methods.set(replacedId, null);
+                    freeIds.add(replacedId);
+                }
+                else {
+                    replacedIds.add(replacedId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the execution of a statement of the current method.
+     * 
+     * @param statementIndex index of the statement in its {@link CompiledMethod}
+     */
+    void record(int statementIndex) {
+        int offset = (int)(count % capacity) * RECORD_LONGS;
+        if(count >= capacity) {
+            evict(offset);
+        }
+        records[offset] = methodAddress;
+        records[offset + 1] = (long)methodId << 32 | statementIndex & 0xFFFFFFFFL;
+        records[offset + 2] = NO_REGISTER;
+        records[offset + 3] = 0L;
+        count++;
+    }
+
+    /**
+     * Attach a register write to the last record: register id and new value.
+     */
+    void setRegisterWrite(int registerId, long value) {
+        if(count == 0) {
+            return;
+        }
+        int offset = (int)((count - 1) % capacity) * RECORD_LONGS;
+        records[offset + 2] = registerId;
+        records[offset + 3] = value;
+    }
+
+    private void evict(int offset) {
+        if(spillFile == null) {
+            return;
+        }
+        try {
+            if(spill == null) {
+                spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            for(int i = 0; i < RECORD_LONGS; i++) {
+                spill.writeLong(records[offset + i]);
+            }
+            spilledCount++;
+        }
+        catch(IOException e) {
+            throw new JebRuntimeException("failed to write trace spill file");
+        }
+    }
+
+    /**
+     * Get the total number of records, including the ones evicted from the buffer.
+     */
+    public long getRecordCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of records that were evicted without being spilled.
+     */
+    public long getDroppedCount() {
+        return Math.max(0, count - capacity) - spilledCount;
+    }
+
+    /**
+     * Render the trace as text, one line per record.
+     * 
+     * @param out
+     * @throws IOException
+     */
+    public void render(Appendable out) throws IOException {
+        if(spill != null) {
+            spill.flush();
+            try(DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(spillFile)))) {
+                long[] record = new long[RECORD_LONGS];
+                for(long i = 0; i < spilledCount; i++) {
+                    for(int j = 0; j < RECORD_LONGS; j++) {
+                        record[j] = in.readLong();
+                    }
+                    renderRecord(out, record, 0);
+                }
+            }
+            catch(EOFException e) {
+                out.append("> warning: truncated trace spill file").append(Strings.LINESEP);
+            }
+        }
+        long dropped = getDroppedCount();
+        if(dropped > 0) {
+            out.append(Strings.ff("> (%d older records dropped)", dropped)).append(Strings.LINESEP);
+        }
+        for(long i = Math.max(0, count - capacity); i < count; i++) {
+            renderRecord(out, records, (int)(i % capacity) * RECORD_LONGS);
+        }
+    }
+
+    private void renderRecord(Appendable out, long[] buffer, int offset) throws IOException {
+        long address = buffer[offset];
+        int id = (int)(buffer[offset + 1] >>> 32);
+        int statementIndex = (int)buffer[offset + 1];
+        MethodInfo method = methods.get(id);
+        if(statementIndex == METHOD_ENTRY) {
+            out.append(Strings.ff("> emulator trace: %s (0x%X)", method.name, address));
+            out.append(Strings.LINESEP);
+            return;
+        }
+        out.append(' ').append(method.getStatement(statementIndex));
+        int registerId = (int)buffer[offset + 2];
+        if(registerId != NO_REGISTER) {
+            out.append(Strings.ff("    ; reg[%d]=0x%X", registerId, buffer[offset + 3]));
+        }
+        out.append(Strings.LINESEP);
+    }
+
+    /**
+     * Release the spill file; the trace can not be rendered afterwards if records were spilled.
+     */
+    public void close() {
+        if(spill != null) {
+            try {
+                spill.close();
+            }
+            catch(IOException e) {
+                // ignore
+            }
+            spill = null;
+            spilledCount = 0;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.pnf.plugin.cemulator;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.pnf.plugin.cemulator.EmulatorState.MemoryDump;
 import com.pnfsoftware.jeb.core.AbstractEnginesPlugin;
@@ -42,24 +44,95 @@ public class CEmulatorPlugin extends AbstractEnginesPlugin {
     // optional memory dumps
     private MemoryDump stackDump;
     private MemoryDump heapDump;
+    // optional dump manifest, and base pointer value to use with it
+    private DumpManifest dumpManifest;
+    private Long dumpBasePointer;
+    // optional core file, providing memory and registers
+    private ElfCore core;
 
     private File logFile;
     private boolean tracerMode;
     private boolean marsAnalyticaMode;
+    private boolean referenceMode;
+    /** number of emulations before a handler gets compiled to JVM bytecode; negative to disable */
+    private int jitThreshold = JitCompiler.DEFAULT_THRESHOLD;
+    /** number of handlers whose CFG and lowered form are kept; 0 to disable */
+    private int methodCacheSize = MethodCache.DEFAULT_CAPACITY;
+    /** number of threads decompiling handlers ahead of the tracer; 0 to disable */
+    private int decompilerThreads = DecompilationPipeline.DEFAULT_THREADS;
+    /** repetitions of a handler sequence before the tracer runs it as a region; 0 to disable */
+    private int regionThreshold = HandlerRegions.DEFAULT_THRESHOLD;
+    /** if true, statements are recorded in a binary trace rendered at the end of the run */
+    private boolean binaryTrace;
+    private int traceCapacity = BinaryTrace.DEFAULT_CAPACITY;
+    /** log file size triggering a rotation, 0 for none */
+    private long logRotationSize;
+    private boolean logCompression;
+    /**
+     * if true, the emulator runs on its own paged memory, exported back at the end of a completed
+     * run without checkpoints
+     */
+    private boolean pagedMemory;
+    /** if false, paged memory is never exported to the code unit's memory */
+    private boolean exportMemory = true;
+    /** true if the last execution wrote to the code unit's memory */
+    private boolean projectMemoryModified;
+    /** number of handlers the last execution disassembled or decompiled (rather than reused) */
+    private final AtomicLong handlerDecompilations = new AtomicLong();
+    /** memory ranges whose accesses are logged, as address[:size[:r|w|rw]],... */
+    private String watchpoints;
+    /** path prefix of the memory profile files, null if not profiling */
+    private File memoryProfilePath;
+    private boolean memoryProfileLines;
+    /** checkpoint file, null if none; checkpoints are written every checkpointInterval handlers */
+    private File checkpointPath;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    /** if true, the run resumes from the last checkpoint */
+    private boolean resume;
+    /** number of emulations of the allocation check, replacing the run; 0 to disable */
+    private int allocationCheck;
+    /** limits and counters of the run */
+    private final ExecutionBudget budget = new ExecutionBudget();
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+    public static final Version VERSION = Version.create(1, 0, 0);
 
     public CEmulatorPlugin() {
     }
 
-    public CEmulatorPlugin(long firstRtnAddress) {
+    public CEmulatorPlugin(Long firstRtnAddress) {
         this.firstRtnAddress = firstRtnAddress;
     }
 
-    public CEmulatorPlugin(long firstRtnAddress, MemoryDump stackDump, MemoryDump heapDump) {
+    public CEmulatorPlugin(Long firstRtnAddress, MemoryDump stackDump, MemoryDump heapDump) {
         this(firstRtnAddress);
         this.stackDump = stackDump;
         this.heapDump = heapDump;
     }
 
+    /**
+     * @param firstRtnAddress
+     * @param dumpManifest memory regions to load
+     * @param basePointer initial base pointer, null for a default value
+     */
+    public CEmulatorPlugin(Long firstRtnAddress, DumpManifest dumpManifest, Long basePointer) {
+        this(firstRtnAddress);
+        this.dumpManifest = dumpManifest;
+        this.dumpBasePointer = basePointer;
+    }
+
+    /**
+     * @param firstRtnAddress null to start from the instruction pointer of the core's first thread
+     * @param core core file providing memory and registers
+     * @param basePointer base pointer overriding the core's one, null to keep it
+     */
+    public CEmulatorPlugin(Long firstRtnAddress, ElfCore core, Long basePointer) {
+        this(firstRtnAddress);
+        this.core = core;
+        this.dumpBasePointer = basePointer;
+    }
+
     @Override
     public void load(IEnginesContext context) {
         logger.info("Loading C emulator plugin");
@@ -69,17 +142,223 @@ public class CEmulatorPlugin extends AbstractEnginesPlugin {
         this.logFile = logFile;
     }
 
+    public void setReferenceMode(boolean referenceMode) {
+        this.referenceMode = referenceMode;
+    }
+
+    public void setJitThreshold(int jitThreshold) {
+        this.jitThreshold = jitThreshold;
+    }
+
+    /**
+     * @param methodCacheSize number of handlers whose CFG and lowered form are kept between
+     *            emulations; 0 to disable the cache
+     */
+    public void setMethodCacheSize(int methodCacheSize) {
+        this.methodCacheSize = methodCacheSize;
+    }
+
+    /**
+     * @param decompilerThreads number of threads decompiling handlers ahead of their emulation in
+     *            tracer mode (see {@link DecompilationPipeline}); 0 to decompile them on demand
+     */
+    public void setDecompilerThreads(int decompilerThreads) {
+        this.decompilerThreads = decompilerThreads;
+    }
+
+    /**
+     * @param regionThreshold number of consecutive repetitions of a handler sequence before the
+     *            tracer runs it as a region (see {@link HandlerRegions}); 0 to disable regions
+     */
+    public void setRegionThreshold(int regionThreshold) {
+        this.regionThreshold = regionThreshold;
+    }
+
+    public void setBinaryTrace(boolean binaryTrace) {
+        this.binaryTrace = binaryTrace;
+    }
+
+    public void setTraceCapacity(int traceCapacity) {
+        this.traceCapacity = traceCapacity;
+    }
+
+    public void setLogRotationSize(long logRotationSize) {
+        this.logRotationSize = logRotationSize;
+    }
+
+    public void setLogCompression(boolean logCompression) {
+        this.logCompression = logCompression;
+    }
+
+    public void setPagedMemory(boolean pagedMemory) {
+        this.pagedMemory = pagedMemory;
+    }
+
+    /**
+     * Select whether the paged memory of the emulator is exported to the code unit's memory at the
+     * end of the run (default). Without export, the project is left as analyzed, eg to be saved
+     * (see {@link DecompilationCache}).
+     */
+    public void setExportMemory(boolean exportMemory) {
+        this.exportMemory = exportMemory;
+    }
+
+    /**
+     * Check if the last execution wrote to the code unit's memory: emulation without paged memory,
+     * or exported paged memory.
+     */
+    public boolean isProjectMemoryModified() {
+        return projectMemoryModified;
+    }
+
+    /**
+     * Get the number of handlers the last execution had to disassemble or decompile, ie that were
+     * not already decompiled in the project (eg, loaded from a warm {@link DecompilationCache}).
+     */
+    public long getHandlerDecompilationCount() {
+        return handlerDecompilations.get();
+    }
+
+    /**
+     * @param watchpoints memory ranges whose accesses are logged, as address[:size[:r|w|rw]],...
+     *            (size defaults to 8, accesses to rw)
+     */
+    public void setWatchpoints(String watchpoints) {
+        this.watchpoints = watchpoints;
+    }
+
+    /**
+     * @param memoryProfilePath path prefix of the memory profile files (CSV and JSON), written at
+     *            the end of the run; null to disable profiling (default)
+     * @param lineCounts true to also count accesses per 64-byte line
+     */
+    public void setMemoryProfile(File memoryProfilePath, boolean lineCounts) {
+        this.memoryProfilePath = memoryProfilePath;
+        memoryProfileLines = lineCounts;
+    }
+
+    /**
+     * @param checkpointPath file checkpoints are appended to (see {@link CheckpointFile}); null to
+     *            disable checkpoints (default)
+     * @param interval number of handlers between checkpoints
+     */
+    public void setCheckpoint(File checkpointPath, int interval) {
+        this.checkpointPath = checkpointPath;
+        checkpointInterval = interval;
+    }
+
+    /**
+     * @param resume true to resume the run from the last checkpoint of the checkpoint file; the
+     *            initial state (code unit, dumps) must be the one of the checkpointed run
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @param allocationCheck number of emulations of the first handler whose allocations are
+     *            counted (see {@link AllocationCheck}), instead of the run; the check fails above
+     *            the default bounds of {@link AllocationCheck#verify(long, double)}; 0 to disable
+     *            (default)
+     */
+    public void setAllocationCheck(int allocationCheck) {
+        this.allocationCheck = allocationCheck;
+    }
+
+    /**
+     * Get the limits and counters of the run (see {@link ExecutionBudget}). Counters can be read
+     * while the plugin is executing, eg to report its progress.
+     */
+    public ExecutionBudget getBudget() {
+        return budget;
+    }
+
     private void parseParameters(Map<String, String> params) {
         if(params == null || params.isEmpty()) {
             return;
         }
-        firstRtnAddress = Long.decode(params.get("FirstRtnAddr"));
+        String firstRtnValue = params.get("FirstRtnAddr");
+        if(firstRtnValue != null && !firstRtnValue.isEmpty()) {
+            firstRtnAddress = Long.decode(firstRtnValue);
+        }
+        String coreFileValue = params.get("CoreFile");
+        if(coreFileValue != null && !coreFileValue.isEmpty()) {
+            try {
+                core = ElfCore.load(new File(coreFileValue));
+            }
+            catch(IOException e) {
+                throw new JebRuntimeException(Strings.ff("ERROR: cannot read core file (%s)", e.getMessage()));
+            }
+        }
         String logFilePath = params.get("LogFilePath");
         if(!logFilePath.isEmpty()) {
             logFile = new File(logFilePath);
         }
         tracerMode = Boolean.parseBoolean(params.get("TracerMode"));
         marsAnalyticaMode = Boolean.parseBoolean(params.get("MarsAnalyticaMode"));
+        referenceMode = Boolean.parseBoolean(params.get("ReferenceMode"));
+        String jitThresholdValue = params.get("JitThreshold");
+        if(jitThresholdValue != null && !jitThresholdValue.isEmpty()) {
+            jitThreshold = Integer.parseInt(jitThresholdValue);
+        }
+        binaryTrace = Boolean.parseBoolean(params.get("BinaryTrace"));
+        String methodCacheSizeValue = params.get("MethodCacheSize");
+        if(methodCacheSizeValue != null && !methodCacheSizeValue.isEmpty()) {
+            methodCacheSize = Integer.parseInt(methodCacheSizeValue);
+        }
+        String decompilerThreadsValue = params.get("DecompilerThreads");
+        if(decompilerThreadsValue != null && !decompilerThreadsValue.isEmpty()) {
+            decompilerThreads = Integer.parseInt(decompilerThreadsValue);
+        }
+        String regionThresholdValue = params.get("RegionThreshold");
+        if(regionThresholdValue != null && !regionThresholdValue.isEmpty()) {
+            regionThreshold = Integer.parseInt(regionThresholdValue);
+        }
+        String traceCapacityValue = params.get("TraceCapacity");
+        if(traceCapacityValue != null && !traceCapacityValue.isEmpty()) {
+            traceCapacity = Integer.parseInt(traceCapacityValue);
+        }
+        String logRotationSizeValue = params.get("LogRotationSize");
+        if(logRotationSizeValue != null && !logRotationSizeValue.isEmpty()) {
+            logRotationSize = Long.decode(logRotationSizeValue);
+        }
+        logCompression = Boolean.parseBoolean(params.get("LogCompression"));
+        pagedMemory = Boolean.parseBoolean(params.get("PagedMemory"));
+        watchpoints = params.get("Watchpoints");
+        String memoryProfileValue = params.get("MemoryProfilePath");
+        if(memoryProfileValue != null && !memoryProfileValue.isEmpty()) {
+            memoryProfilePath = new File(memoryProfileValue);
+        }
+        memoryProfileLines = Boolean.parseBoolean(params.get("MemoryProfileLines"));
+        String checkpointValue = params.get("CheckpointPath");
+        if(checkpointValue != null && !checkpointValue.isEmpty()) {
+            checkpointPath = new File(checkpointValue);
+        }
+        String checkpointIntervalValue = params.get("CheckpointInterval");
+        if(checkpointIntervalValue != null && !checkpointIntervalValue.isEmpty()) {
+            checkpointInterval = Integer.parseInt(checkpointIntervalValue);
+        }
+        resume = Boolean.parseBoolean(params.get("Resume"));
+        String allocationCheckValue = params.get("AllocationCheck");
+        if(allocationCheckValue != null && !allocationCheckValue.isEmpty()) {
+            allocationCheck = Integer.parseInt(allocationCheckValue);
+        }
+        String maxStatementsValue = params.get("MaxStatements");
+        if(maxStatementsValue != null && !maxStatementsValue.isEmpty()) {
+            budget.setMaxStatements(Long.parseLong(maxStatementsValue));
+        }
+        String maxHandlersValue = params.get("MaxHandlers");
+        if(maxHandlersValue != null && !maxHandlersValue.isEmpty()) {
+            budget.setMaxHandlers(Long.parseLong(maxHandlersValue));
+        }
+        String maxTimeValue = params.get("MaxTime");
+        if(maxTimeValue != null && !maxTimeValue.isEmpty()) {
+            budget.setMaxTimeMillis(Long.parseLong(maxTimeValue) * 1000);
+        }
+        String maxMemoryValue = params.get("MaxMemory");
+        if(maxMemoryValue != null && !maxMemoryValue.isEmpty()) {
+            budget.setMaxMemory(Long.parseLong(maxMemoryValue) << 20);
+        }
 
     }
 
@@ -104,13 +383,28 @@ public class CEmulatorPlugin extends AbstractEnginesPlugin {
         logger.info("Decompiler: %s", decomp);
         
         parseParameters(params);
-        if(firstRtnAddress == null) {
+        if(firstRtnAddress == null && core != null) {
+            firstRtnAddress = core.getFirstThread().getInstructionPointer();
+        }
+        if(firstRtnAddress == null && !resume) {
             throw new JebRuntimeException("ERROR: address of routine to emulate is undefined");
         }
 
         // initial emulator state
         EmulatorState emulatorState;
-        if(stackDump != null && heapDump != null) {
+        if(core != null) {
+            logger.info("Core file: %s (%s)", core, core.getFirstThread());
+            emulatorState = new EmulatorState(codeUnit, core);
+            if(dumpBasePointer != null) {
+                emulatorState.setRegisterValue(SimpleCEmulator.REG_RBP_ID, dumpBasePointer);
+            }
+        }
+        else if(dumpManifest != null) {
+            emulatorState = new EmulatorState(codeUnit, dumpManifest);
+            emulatorState.setRegisterValue(SimpleCEmulator.REG_RBP_ID,
+                    dumpBasePointer != null ? dumpBasePointer: 0x7fffffffdf90L);
+        }
+        else if(stackDump != null && heapDump != null) {
             emulatorState = new EmulatorState(codeUnit, stackDump, heapDump);
             emulatorState.setRegisterValue(SimpleCEmulator.REG_RBP_ID, stackDump.basePointer);
         }
@@ -118,76 +412,389 @@ public class CEmulatorPlugin extends AbstractEnginesPlugin {
             emulatorState = new EmulatorState(codeUnit);
             emulatorState.setRegisterValue(SimpleCEmulator.REG_RBP_ID, 0x7fffffffdf90L); //dummy value
         }
+        if(checkpointPath != null && !pagedMemory) {
+            logger.info("> paged memory enabled for checkpoints");
+            pagedMemory = true;
+        }
+        if(pagedMemory) {
+            emulatorState.enablePagedMemory();
+        }
+        projectMemoryModified = emulatorState.getPagedMemory() == null;
+        handlerDecompilations.set(0);
         emulatorState.allocateStackSpace();
+        if(watchpoints != null && !watchpoints.isEmpty()) {
+            addWatchpoints(emulatorState, watchpoints);
+        }
+        MemoryProfile memoryProfile = null;
+        if(memoryProfilePath != null) {
+            memoryProfile = new MemoryProfile(memoryProfileLines);
+            emulatorState.setMemoryProfile(memoryProfile);
+        }
 
         SimpleCEmulator emulator = marsAnalyticaMode ? new MarsAnalyticaCEmulator(): new SimpleCEmulator();
+        budget.start();
+        emulator.setBudget(budget);
+        emulator.setReferenceMode(referenceMode);
+        if(jitThreshold >= 0) {
+            emulator.setJitCompiler(new JitCompiler(jitThreshold));
+        }
+        emulator.setMethodCache(methodCacheSize > 0 ? new MethodCache(methodCacheSize): null);
+        if(logFile != null) {
+            // log is appended by a background writer
+            emulator.setLogSink(new LogSink(logFile, logRotationSize, LogSink.DEFAULT_MAX_BACKUPS, logCompression));
+        }
+        BinaryTrace trace = null;
+        if(binaryTrace) {
+            // evicted records are spilled next to the log file, if any
+            trace = new BinaryTrace(traceCapacity, true, logFile != null ? new File(logFile.getPath() + ".spill"): null);
+            emulator.setBinaryTrace(trace);
+        }
 
-        // analyze first handler
+        // checkpoints
         Long handlerAddress = firstRtnAddress;
-        ICMethod handlerMethod = disassembleAndDecompile(decomp, handlerAddress);
+        long handlerCount = 0;
+        CheckpointFile checkpoints = null;
+        if(checkpointPath != null || resume) {
+            if(checkpointPath == null) {
+                throw new JebRuntimeException("ERROR: no checkpoint file to resume from");
+            }
+            checkpoints = new CheckpointFile(checkpointPath);
+            try {
+                if(resume) {
+                    CheckpointFile.Checkpoint checkpoint = checkpoints.restore(emulatorState, emulator);
+                    if(checkpoint != null) {
+                        logger.info("> resumed from %s", checkpoint);
+                        handlerAddress = checkpoint.getHandlerAddress();
+                        handlerCount = checkpoint.getHandlerCount();
+                    }
+                    else {
+                        logger.info("> warning: no checkpoint to resume from, starting a new run");
+                    }
+                }
+                else {
+                    checkpoints.reset();
+                }
+            }
+            catch(IOException e) {
+                throw new JebRuntimeException(Strings.ff("ERROR: cannot read checkpoint file (%s)", e.getMessage()));
+            }
+        }
+        if(handlerAddress == null) {
+            throw new JebRuntimeException("ERROR: address of routine to emulate is undefined");
+        }
+
+        if(allocationCheck > 0) {
+            checkAllocations(emulator, emulatorState, decomp, handlerAddress);
+            return;
+        }
+
+        // analyze first handler
+        // (in tracer mode, next handlers are decompiled ahead by worker threads)
+        DecompilationPipeline pipeline = null;
+        if(tracerMode && decompilerThreads > 0) {
+            pipeline = new DecompilationPipeline(address -> disassembleAndDecompile(decomp, address),
+                    decompilerThreads, emulator.getMethodCache());
+        }
+        ICMethod handlerMethod = getHandler(pipeline, decomp, handlerAddress);
+        HandlerRegions regions = tracerMode && regionThreshold > 0 ? new HandlerRegions(regionThreshold): null;
+        // (regions are checked against the current decompilation of their handlers)
+        DecompilationPipeline regionPipeline = pipeline;
+        DecompilationPipeline.Decompiler currentHandlers = address -> getHandler(regionPipeline, decomp, address);
 
         // tracing loop
-        while(true) {
-            logger.info("> emulating method %s...", handlerMethod.getName());
+        boolean completed = false;
+        try {
+            while(true) {
+                // recurring handler sequences are run without going back to the loop
+                HandlerRegions.Region region = regions != null ? regions.record(handlerAddress, handlerMethod): null;
+                if(region != null) {
+                    int replaced = regions.refresh(region, currentHandlers);
+                    if(replaced > 0) {
+                        logger.info("> region 0x%08x: %d methods decompiled again", region.getEntryAddress(), replaced);
+                    }
+                    // (stopping at the next checkpoint, if any)
+                    long limit = checkpoints != null ? checkpointInterval - handlerCount % checkpointInterval
+                            : Long.MAX_VALUE;
+                    long count = 0;
+                    boolean sideExit = false;
+                    for(int i = 0; count < limit; i = (i + 1) % region.getLength()) {
+                        EmulatorLog log = emulator.emulate(region.getAddress(i), region.getMethod(i), emulatorState);
+                        emulatorState = log.getCurrentEmulatorState();
+                        handlerAddress = emulatorState.getRegisterValue(SimpleCEmulator.REG_NEXT_METHOD_ID);
+                        if(handlerAddress == null) {
+                            break;
+                        }
+                        count++;
+                        budget.addHandlers(1);
+                        if(handlerAddress != region.getSuccessor(i)) {
+                            sideExit = true;
+                            break;
+                        }
+                        if(logFile != null) {
+                            emulator.dumpLog(logFile);
+                        }
+                        budget.check();
+                    }
+                    handlerCount += count;
+                    regions.exit(region, count, sideExit);
+                    emulator.dumpLog(logFile);
+                    logger.info("> region 0x%08x: %d handlers emulated", region.getEntryAddress(), count);
+                    if(handlerAddress == null) {
+                        logger.info("  >> STOP: no next entry-point address found");
+                        break;
+                    }
+                    if(checkpoints != null && handlerCount % checkpointInterval == 0) {
+                        writeCheckpoint(checkpoints, emulatorState, emulator, handlerAddress, handlerCount);
+                    }
+                    logger.info("  >> done; found next method entry point to emulate: 0x%08x", handlerAddress);
+                    handlerMethod = getHandler(pipeline, decomp, handlerAddress);
+                    continue;
+                }
+
+                logger.info("> emulating method %s...", handlerMethod.getName());
+                if(pipeline != null) {
+                    pipeline.enter(handlerAddress);
+                }
+
+                // emulate handler
+                // (hot handlers are run from their compiled version)
+                EmulatorLog log = emulator.emulate(handlerAddress, handlerMethod, emulatorState);
+                emulatorState = log.getCurrentEmulatorState();
+                CompiledMethod compiled = log.getCompiledMethod();
+                if(compiled != null && compiled.getFusedStatementCount() > 0) {
+                    logger.info("  >> %d/%d statements fused (%d runs)", compiled.getFusedStatementCount(),
+                            compiled.size(), compiled.getFusedRunCount());
+                }
 
-            // emulate handler
-            EmulatorLog log = emulator.emulate(handlerMethod, emulatorState);
-            emulatorState = log.getCurrentEmulatorState();
+                // get next handler address
+                handlerAddress = emulatorState.getRegisterValue(SimpleCEmulator.REG_NEXT_METHOD_ID);
+                if(handlerAddress == null) {
+                    logger.info("  >> STOP: no next entry-point address found");
+                    break;
+                }
 
-            // get next handler address
-            handlerAddress = emulatorState.getRegisterValue(SimpleCEmulator.REG_NEXT_METHOD_ID);
-            if(handlerAddress == null) {
-                logger.info("  >> STOP: no next entry-point address found");
-                break;
+                emulator.dumpLog(logFile);
+
+                if(!tracerMode) {
+                    break;
+                }
+
+                handlerCount++;
+                budget.addHandlers(1);
+                if(checkpoints != null && handlerCount % checkpointInterval == 0) {
+                    writeCheckpoint(checkpoints, emulatorState, emulator, handlerAddress, handlerCount);
+                }
+                budget.check();
+
+                logger.info("  >> done; found next method entry point to emulate: 0x%08x", handlerAddress);
+                handlerMethod = getHandler(pipeline, decomp, handlerAddress);
+            }
+            completed = true;
+        }
+        catch(ExecutionBudget.ExceededException e) {
+            logger.info("  >> STOP: %s", e.getMessage());
+        }
+        finally {
+            logger.info("> run: %s", budget);
+            logger.info("> handlers disassembled or decompiled by the run: %d", handlerDecompilations.get());
+            if(pipeline != null) {
+                pipeline.close();
+                logger.info("> %s", pipeline);
+            }
+            if(regions != null) {
+                logger.info("> %s", regions);
+            }
+            // write pending log text
+            emulator.closeLog();
+            // checkpoints are replayed on the code unit's memory, which must be left as analyzed
+            if(pagedMemory && exportMemory && completed && checkpoints == null) {
+                int pages = emulatorState.exportMemory();
+                projectMemoryModified |= pages > 0;
+                logger.info("> exported %d memory pages", pages);
+            }
+            else if(pagedMemory && exportMemory) {
+                logger.info("> memory not exported (%s)", checkpoints != null ? "checkpointed run": "incomplete run");
+            }
+            if(memoryProfile != null) {
+                exportMemoryProfile(memoryProfile);
             }
+            if(emulator.getMethodCache() != null) {
+                logger.info("> %s", emulator.getMethodCache());
+            }
+        }
+
+        if(trace != null) {
+            emulator.dumpTrace(logFile != null ? new File(logFile.getPath() + ".trace"): null);
+            trace.close();
+        }
+    }
 
-            emulator.dumpLog(logFile);
+    private void checkAllocations(SimpleCEmulator emulator, EmulatorState emulatorState,
+            INativeDecompilerUnit<?> decomp, Long handlerAddress) {
+        // (the run state is left untouched: nothing to export)
+        ICMethod handlerMethod = getHandler(null, decomp, handlerAddress);
+        try {
+            AllocationCheck result = AllocationCheck.run(emulator, handlerAddress, handlerMethod, emulatorState,
+                    allocationCheck);
+            logger.info("> allocation check of %s: %s", handlerMethod.getName(), result);
+            result.verify(AllocationCheck.DEFAULT_MAX_BYTES_PER_EMULATION,
+                    AllocationCheck.DEFAULT_MAX_BYTES_PER_STATEMENT);
+        }
+        catch(ExecutionBudget.ExceededException e) {
+            logger.info("  >> STOP: %s", e.getMessage());
+        }
+        finally {
+            emulator.closeLog();
+        }
+    }
 
-            if(!tracerMode) {
-                break;
+    private static void writeCheckpoint(CheckpointFile checkpoints, EmulatorState state, SimpleCEmulator emulator,
+            long handlerAddress, long handlerCount) {
+        try {
+            int pages = checkpoints.write(state, emulator, handlerAddress, handlerCount);
+            logger.info("  >> checkpoint after %d handlers (%d pages)", handlerCount, pages);
+        }
+        catch(IOException e) {
+            // the run goes on, from the previous checkpoint if resumed
+            logger.error("ERROR: cannot write checkpoint (%s)", e.getMessage());
+        }
+    }
+
+    private void exportMemoryProfile(MemoryProfile profile) {
+        logger.info("> memory profile: %d pages touched, %d local accesses out of stack", profile.getPageCount(),
+                profile.getOutOfStackAccesses());
+        for(Long page: profile.getHottestPages(10)) {
+            logger.info("  > hot page: 0x%X", page);
+        }
+        try {
+            profile.exportCsv(memoryProfilePath);
+            profile.exportJson(new File(memoryProfilePath.getPath() + ".json"));
+        }
+        catch(IOException e) {
+            logger.error("ERROR: cannot write memory profile (%s)", e.getMessage());
+        }
+    }
+
+    private static void addWatchpoints(EmulatorState state, String specification) {
+        for(String entry: specification.split(",")) {
+            String[] fields = entry.trim().split(":");
+            long address = Long.decode(fields[0]);
+            long size = fields.length > 1 ? Long.decode(fields[1]): 8;
+            int access = 0;
+            String accessString = fields.length > 2 ? fields[2]: "rw";
+            if(accessString.contains("r")) {
+                access |= MemoryWatchpoint.READ;
             }
+            if(accessString.contains("w")) {
+                access |= MemoryWatchpoint.WRITE;
+            }
+            MemoryWatchpoint watchpoint = state.addWatchpoint(address, size, access,
+                    event -> logger.info("> watchpoint %s: %s", event.getWatchpoint(), event));
+            logger.info("> watching %s", watchpoint);
+        }
+    }
 
-            logger.info("  >> done; found next method entry point to emulate: 0x%08x", handlerAddress);
-            handlerMethod = disassembleAndDecompile(decomp, handlerAddress);
+    /**
+     * Get a decompiled handler, from the pipeline if any, counting the time waited for it.
+     */
+    private ICMethod getHandler(DecompilationPipeline pipeline, INativeDecompilerUnit<?> decomp, long address) {
+        long startNanos = System.nanoTime();
+        try {
+            return pipeline != null ? pipeline.get(address): disassembleAndDecompile(decomp, address);
+        }
+        finally {
+            budget.addDecompilation(System.nanoTime() - startNanos);
         }
     }
 
     /**
-     * Disassemble and decompile (or use the existing decompiled unit).
+     * Disassemble and decompile (or use the existing decompiled unit). Calls may come from several
+     * threads (see {@link DecompilationPipeline}): they are serialized on the decompiler unit.
      * 
      * @param decomp
      * @param methodAddress
      * @return decompiled method
      */
     private ICMethod disassembleAndDecompile(INativeDecompilerUnit<?> decomp, long methodAddress) {
-        // disassemble, if needed
-        if(!decomp.getCodeUnit().getCodeModel().isRoutineHeader(methodAddress)) {
-            EntryPointDescription nextHandlerEPD = decomp.getCodeUnit().getProcessor().createEntryPoint(methodAddress);
-            decomp.getCodeUnit().getCodeAnalyzer().enqueuePointerForAnalysis(nextHandlerEPD);
-            decomp.getCodeUnit().getCodeAnalyzer().analyze();
-        }
+        synchronized(decomp) {
+            // disassemble, if needed
+            boolean analyzed = false;
+            if(!decomp.getCodeUnit().getCodeModel().isRoutineHeader(methodAddress)) {
+                EntryPointDescription nextHandlerEPD = decomp.getCodeUnit().getProcessor()
+                        .createEntryPoint(methodAddress);
+                decomp.getCodeUnit().getCodeAnalyzer().enqueuePointerForAnalysis(nextHandlerEPD);
+                decomp.getCodeUnit().getCodeAnalyzer().analyze();
+                analyzed = true;
+            }
 
-        // decompile, if needed
-        String decompUnitId = Strings.ff("%x", methodAddress);
-        return (ICMethod)((INativeSourceUnit)decomp.decompile(decompUnitId)).getASTItem();
+            // decompile, if needed (a new decompiled unit is then added to the decompiler)
+            int decompiledUnits = decomp.getChildren().size();
+            String decompUnitId = Strings.ff("%x", methodAddress);
+            ICMethod method = (ICMethod)((INativeSourceUnit)decomp.decompile(decompUnitId)).getASTItem();
+            if(analyzed || decomp.getChildren().size() != decompiledUnits) {
+                handlerDecompilations.incrementAndGet();
+            }
+            return method;
+        }
     }
 
     @Override
     public IPluginInformation getPluginInformation() {
         return new PluginInformation("CEmulator", "Plugin to emulate JEB's decompiled C code",
-                "Joan Calvet (PNF Software)", Version.create(1, 0, 0));
+                "Joan Calvet (PNF Software)", VERSION);
     }
 
     @Override
     public List<? extends IOptionDefinition> getExecutionOptionDefinitions() {
-        return Arrays.asList(new OptionDefinition("FirstRtnAddr", "Address of routine to emulate"),
+        return Arrays.asList(new OptionDefinition("FirstRtnAddr",
+                "Address of routine to emulate (optional with a core file -- defaults to the instruction pointer)"),
+                new OptionDefinition("CoreFile", "",
+                        "Path to an x86-64 ELF core file providing initial memory and registers (optional)"),
                 new BooleanOptionDefinition(
                         "TracerMode", true,
                         "Tracer mode enabled (emulator follows subroutine calls -- until it cannot anymore)"),
                 new BooleanOptionDefinition(
                 "MarsAnalyticaMode", true,
                         "MarsAnalytica's specific logic enabled"),
+                new BooleanOptionDefinition(
+                        "ReferenceMode", false,
+                        "Reference interpreter enabled (emulator walks the AST rather than running lowered methods -- slower)"),
+                new OptionDefinition("JitThreshold", String.valueOf(JitCompiler.DEFAULT_THRESHOLD),
+                        "Number of emulations before a handler gets compiled to JVM bytecode (negative to disable)"),
+                new OptionDefinition("MethodCacheSize", String.valueOf(MethodCache.DEFAULT_CAPACITY),
+                        "Number of handlers whose CFG and lowered form are kept between emulations (0 to disable)"),
+                new OptionDefinition("DecompilerThreads", String.valueOf(DecompilationPipeline.DEFAULT_THREADS),
+                        "Number of threads decompiling handlers ahead of their emulation in tracer mode (0 to disable)"),
+                new OptionDefinition("RegionThreshold", String.valueOf(HandlerRegions.DEFAULT_THRESHOLD),
+                        "Number of consecutive repetitions of a handler sequence before the tracer runs it without going back to its outer loop (0 to disable)"),
+                new BooleanOptionDefinition("BinaryTrace", false,
+                        "Binary trace enabled (statements are recorded in a buffer rendered at the end of the run, rather than logged as text)"),
+                new OptionDefinition("TraceCapacity", String.valueOf(BinaryTrace.DEFAULT_CAPACITY),
+                        "Number of records kept in memory by the binary trace"),
                 new OptionDefinition("LogFilePath",
-                        "Path to log file (optional -- if unspecified logs will be written as a sub unit in JEB project)"));
+                        "Path to log file (optional -- if unspecified logs will be written as a sub unit in JEB project)"),
+                new OptionDefinition("LogRotationSize", "0",
+                        "Size in bytes after which the log file is rotated (0 to disable)"),
+                new BooleanOptionDefinition("LogCompression", false, "Log file is gzip-compressed (written to path.gz)"),
+                new BooleanOptionDefinition("PagedMemory", false,
+                        "Emulator-owned memory enabled (pages are imported from the code unit on first access, and exported back at the end of the run)"),
+                new OptionDefinition("Watchpoints", "",
+                        "Memory ranges whose accesses are logged, as address[:size[:r|w|rw]],... (optional)"),
+                new OptionDefinition("MemoryProfilePath", "",
+                        "Path prefix of the memory access statistics, written as CSV and JSON at the end of the run (optional -- profiling is disabled if unspecified)"),
+                new BooleanOptionDefinition("MemoryProfileLines", false,
+                        "Memory access statistics also counted per 64-byte line"),
+                new OptionDefinition("CheckpointPath", "",
+                        "Path to the checkpoint file of tracer runs (optional -- checkpoints are disabled if unspecified)"),
+                new OptionDefinition("CheckpointInterval", String.valueOf(DEFAULT_CHECKPOINT_INTERVAL),
+                        "Number of handlers emulated between checkpoints"),
+                new BooleanOptionDefinition("Resume", false,
+                        "Run resumed from the last checkpoint of the checkpoint file (the initial state must be the one of the checkpointed run)"),
+                new OptionDefinition("AllocationCheck", "0",
+                        "Number of emulations of the first routine whose allocations are counted and checked, instead of the run (0 to disable)"),
+                new OptionDefinition("MaxStatements", "0", "Maximum number of emulated statements (0 for no limit)"),
+                new OptionDefinition("MaxHandlers", "0", "Maximum number of emulated handlers (0 for no limit)"),
+                new OptionDefinition("MaxTime", "0", "Maximum duration of the run, in seconds (0 for no limit)"),
+                new OptionDefinition("MaxMemory", "0", "Maximum JVM heap in use, in MB (0 for no limit)"));
     }
 }
@@ -1,6 +1,10 @@
 package com.pnf.plugin.cemulator;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,17 +31,22 @@ import com.pnfsoftware.jeb.util.format.Strings;
  * graph only provides the reachable statements from each statement (through
  * {@link #getNextStatement(ICStatement)} and {@link #getNthNextStatement(ICStatement, int)}).
  * <p>
+ * Graph nodes are numbered densely, and edges are stored in flat arrays, so that clients can walk
+ * the graph by node index (see {@link #getNext(int)} and {@link #getNthNext(int, int)}). Nodes are
+ * grouped into basic blocks: maximal chains of nodes with a single successor, entered only by their
+ * first node. Blocks are contiguous ranges of node indices, so that a block can be run without any
+ * successor lookup but for its last node.
+ * <p>
  * Known limitations/simplifications:
  * <ul>
  * <li>statements are assumed to be unique within the method, and serves to identify graph nodes
- * (i.e. no basic blocks)
  * <li>for compound statements (see {@link ICCompound}), the embedded {@link ICBlock} are kept in
  * the CFG and transfer control to their first statement
  * <li>do-while loops are not specifically handled; they are ordered as while-loops
  * <li>switch-case are not handled
  * <li>predicates are not stored on their corresponding edges; it's the client responsibility to
  * retrieve them
- * <li>graph exit(s) are represented by 'null' nodes
+ * <li>graph exit(s) are represented by 'null' statements ({@link #EXIT} node index)
  * </ul>
  * 
  * @author Joan Calvet
@@ -45,19 +54,36 @@ import com.pnfsoftware.jeb.util.format.Strings;
  */
 public class CFG {
 
+    /** node index of graph exits */
+    public static final int EXIT = -1;
+
+    /** statements, by node index */
+    private ICStatement[] nodes;
+    /** statement to node index */
+    private Map<ICStatement, Integer> indices;
+
     /**
-     * Reachable statements (from -> to)
+     * Reachable nodes: the edges of node i are edgeTargets[edgeStarts[i]..edgeStarts[i+1]]
      * <p>
-     * Implementation note: if there are several reachable statements, the first statement is the
-     * fallthrough (see {@link #getNextStatement(ICStatement)}). Others statements correspond to
-     * conditional branches (see {@link #getNthNextStatement(ICStatement, int)}.
+     * Implementation note: if there are several reachable nodes, the first node is the fallthrough
+     * (see {@link #getNext(int)}). Others nodes correspond to conditional branches (see
+     * {@link #getNthNext(int, int)}. Nodes without edges are graph exits.
      */
-    private Map<ICStatement, List<ICStatement>> outEdges = new IdentityHashMap<>();
+    private int[] edgeStarts;
+    private int[] edgeTargets;
+
+    /** basic blocks: block b is made of nodes blockStarts[b]..blockStarts[b+1]-1 */
+    private int[] blockStarts;
+    private int[] blockOfNode;
 
     /**
      * CFG's entry point
      */
     private ICStatement entryPoint;
+    private int entryIndex = EXIT;
+
+    private CFG() {
+    }
 
     /**
      * Process method's AST and build the corresponding CFG.
@@ -66,12 +92,64 @@ public class CFG {
      * @return cfg of the method
      */
     public static CFG buildCFG(ICMethod method) {
+        Builder builder = new Builder();
+        buildCFGRecursive(builder, method.getBody(), null, null);
         CFG cfg = new CFG();
-        buildCFGRecursive(cfg, method.getBody(), null, null);
-        cfg.entryPoint = method.getBody().isEmpty() ? null: method.getBody().get(0);
+        cfg.freeze(builder, method.getBody().isEmpty() ? null: method.getBody().get(0));
         return cfg;
     }
 
+    /**
+     * Reachable statements (from -> to), during construction.
+     */
+    private static class Builder {
+        final Map<ICStatement, List<ICStatement>> outEdges = new IdentityHashMap<>();
+        /** statements with edges, in insertion order */
+        final List<ICStatement> order = new ArrayList<>();
+
+        List<ICStatement> getEdges(ICStatement from) {
+            List<ICStatement> nexts = outEdges.get(from);
+            if(nexts == null) {
+                nexts = new ArrayList<>();
+                outEdges.put(from, nexts);
+                order.add(from);
+            }
+            return nexts;
+        }
+
+        ICStatement getNextStatement(ICStatement from) {
+            List<ICStatement> nexts = outEdges.get(from);
+            return nexts != null && !nexts.isEmpty() ? nexts.get(0): null;
+        }
+
+        boolean setFallThrough(ICStatement from, ICStatement to) {
+            return setFallThrough(from, to, true);
+        }
+
+        boolean setFallThrough(ICStatement from, ICStatement to, boolean eraseExisting) {
+            List<ICStatement> nexts = getEdges(from);
+            if(eraseExisting && nexts.size() >= 1) {
+                nexts.set(0, to);
+                return true;
+            }
+            else if(nexts.isEmpty()) {
+                nexts.add(to);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Add a new conditional reachable statement.
+         * <p>
+         * Important: this method assumes the fallthrough statement has already been set.
+         */
+        boolean addConditionalTarget(ICStatement from, ICStatement to) {
+            getEdges(from).add(to);
+            return true;
+        }
+    }
+
     /**
      * Build a CFG by recursively processing {@link ICBlock}.
      * 
@@ -80,7 +158,7 @@ public class CFG {
      * @param parentStatement the statement containing the block in the AST, null if none
      * @param parentLoop the loop containing the block in the AST, null if none
      */
-    private static void buildCFGRecursive(CFG cfg, ICBlock currentBlock, ICStatement parentStatement,
+    private static void buildCFGRecursive(Builder cfg, ICBlock currentBlock, ICStatement parentStatement,
             ICStatement parentLoop) {
         int index = 0;
         while(index < currentBlock.size()) {
@@ -160,6 +238,243 @@ public class CFG {
     }
 
 
+    /**
+     * Number the nodes, flatten the edges, and compute the basic blocks.
+     */
+    private void freeze(Builder builder, ICStatement entry) {
+        // temporary numbering: statements with edges, then targets without edges
+        Map<ICStatement, Integer> tmpIndices = new IdentityHashMap<>();
+        List<ICStatement> tmpNodes = new ArrayList<>();
+        for(ICStatement from: builder.order) {
+            addNode(from, tmpIndices, tmpNodes);
+        }
+        for(ICStatement from: builder.order) {
+            for(ICStatement to: builder.outEdges.get(from)) {
+                addNode(to, tmpIndices, tmpNodes);
+            }
+        }
+        if(entry != null) {
+            addNode(entry, tmpIndices, tmpNodes);
+        }
+        int count = tmpNodes.size();
+        int[][] tmpEdges = new int[count][];
+        int[] inDegrees = new int[count];
+        for(int i = 0; i < count; i++) {
+            List<ICStatement> nexts = builder.outEdges.get(tmpNodes.get(i));
+            tmpEdges[i] = new int[nexts != null ? nexts.size(): 0];
+            for(int j = 0; j < tmpEdges[i].length; j++) {
+                ICStatement to = nexts.get(j);
+                tmpEdges[i][j] = to != null ? tmpIndices.get(to): EXIT;
+                if(to != null) {
+                    inDegrees[tmpEdges[i][j]]++;
+                }
+            }
+        }
+
+        // basic blocks: a node extends its predecessor's block if it is its single successor,
+        // and has no other predecessor
+        int tmpEntry = entry != null ? tmpIndices.get(entry): EXIT;
+        boolean[] extendsPrevious = new boolean[count];
+        for(int i = 0; i < count; i++) {
+            if(tmpEdges[i].length == 1) {
+                int next = tmpEdges[i][0];
+                if(next != EXIT && next != i && next != tmpEntry && inDegrees[next] == 1) {
+                    extendsPrevious[next] = true;
+                }
+            }
+        }
+        // final numbering: blocks in depth-first order from the entry (fallthrough first), then
+        // unreachable blocks; block nodes are contiguous
+        int[] newIndices = new int[count];
+        Arrays.fill(newIndices, EXIT);
+        int[] tmpOrder = new int[count];
+        List<Integer> starts = new ArrayList<>();
+        int numbered = 0;
+        Deque<Integer> leaders = new ArrayDeque<>();
+        if(tmpEntry != EXIT) {
+            leaders.push(tmpEntry);
+        }
+        for(int i = 0; i < count; i++) {
+            if(!extendsPrevious[i] && i != tmpEntry) {
+                leaders.addLast(i);
+            }
+        }
+        while(numbered < count) {
+            int leader;
+            if(!leaders.isEmpty()) {
+                leader = leaders.pop();
+                if(newIndices[leader] != EXIT) {
+                    continue;
+                }
+            }
+            else {
+                // cycle of single-successor nodes, unreachable from other nodes
+                leader = 0;
+                while(newIndices[leader] != EXIT) {
+                    leader++;
+                }
+            }
+            starts.add(numbered);
+            int node = leader;
+            while(true) {
+                newIndices[node] = numbered;
+                tmpOrder[numbered++] = node;
+                int[] edges = tmpEdges[node];
+                if(edges.length == 1 && edges[0] != EXIT && extendsPrevious[edges[0]]
+                        && newIndices[edges[0]] == EXIT) {
+                    node = edges[0];
+                    continue;
+                }
+                // successors: visit the fallthrough first
+                for(int j = edges.length - 1; j >= 0; j--) {
+                    if(edges[j] != EXIT && newIndices[edges[j]] == EXIT && !extendsPrevious[edges[j]]) {
+                        leaders.push(edges[j]);
+                    }
+                }
+                break;
+            }
+        }
+
+        nodes = new ICStatement[count];
+        indices = new IdentityHashMap<>(count);
+        edgeStarts = new int[count + 1];
+        int edgeCount = 0;
+        for(int i = 0; i < count; i++) {
+            edgeCount += tmpEdges[i].length;
+        }
+        edgeTargets = new int[edgeCount];
+        int position = 0;
+        for(int i = 0; i < count; i++) {
+            int tmp = tmpOrder[i];
+            nodes[i] = tmpNodes.get(tmp);
+            indices.put(nodes[i], i);
+            edgeStarts[i] = position;
+            for(int target: tmpEdges[tmp]) {
+                edgeTargets[position++] = target != EXIT ? newIndices[target]: EXIT;
+            }
+        }
+        edgeStarts[count] = position;
+        blockStarts = new int[starts.size() + 1];
+        blockOfNode = new int[count];
+        for(int b = 0; b < starts.size(); b++) {
+            blockStarts[b] = starts.get(b);
+        }
+        blockStarts[starts.size()] = count;
+        for(int b = 0; b < starts.size(); b++) {
+            Arrays.fill(blockOfNode, blockStarts[b], blockStarts[b + 1], b);
+        }
+        setEntryPoint(entry);
+    }
+
+    private static void addNode(ICStatement stm, Map<ICStatement, Integer> indices, List<ICStatement> nodes) {
+        if(stm != null && !indices.containsKey(stm)) {
+            indices.put(stm, nodes.size());
+            nodes.add(stm);
+        }
+    }
+
+    /**
+     * Get the number of nodes.
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * Get the node index of a statement.
+     * 
+     * @param stm
+     * @return node index, {@link #EXIT} if the statement is not in the graph
+     */
+    public int getNodeIndex(ICStatement stm) {
+        Integer index = stm != null ? indices.get(stm): null;
+        return index != null ? index: EXIT;
+    }
+
+    /**
+     * Get the statement of a node.
+     * 
+     * @param node node index
+     * @return statement, null for {@link #EXIT}
+     */
+    public ICStatement getStatement(int node) {
+        return node != EXIT ? nodes[node]: null;
+    }
+
+    /**
+     * Get the node reachable from the given node when predicates are false, or for unconditional
+     * statements (see {@link #getNextStatement(ICStatement)}).
+     * 
+     * @param node node index
+     * @return next node index, {@link #EXIT} if none
+     */
+    public int getNext(int node) {
+        int start = edgeStarts[node];
+        return start < edgeStarts[node + 1] ? edgeTargets[start]: EXIT;
+    }
+
+    /**
+     * Get the node reachable from the given node, when its n-th predicate is true (see
+     * {@link #getNthNextStatement(ICStatement, int)}).
+     * 
+     * @param node node index
+     * @param n
+     * @return the n-th conditionally reachable node index, {@link #EXIT} if none
+     */
+    public int getNthNext(int node, int n) {
+        int position = edgeStarts[node] + n + 1;
+        return position < edgeStarts[node + 1] ? edgeTargets[position]: EXIT;
+    }
+
+    /**
+     * Get the number of nodes reachable from a node: fallthrough, then conditional targets.
+     */
+    public int getSuccessorCount(int node) {
+        return edgeStarts[node + 1] - edgeStarts[node];
+    }
+
+    /**
+     * Get a node reachable from a node.
+     * 
+     * @param node node index
+     * @param i 0 for the fallthrough, n + 1 for the n-th conditional target
+     * @return reachable node index, {@link #EXIT} for a graph exit
+     */
+    public int getSuccessor(int node, int i) {
+        return edgeTargets[edgeStarts[node] + i];
+    }
+
+    /**
+     * Get the number of basic blocks.
+     */
+    public int getBlockCount() {
+        return blockStarts.length - 1;
+    }
+
+    /**
+     * Get the basic block of a node.
+     * 
+     * @param node node index
+     * @return block index
+     */
+    public int getBlock(int node) {
+        return blockOfNode[node];
+    }
+
+    /**
+     * Get the first node of a basic block.
+     */
+    public int getBlockStart(int block) {
+        return blockStarts[block];
+    }
+
+    /**
+     * Get the node following the last node of a basic block (exclusive end).
+     */
+    public int getBlockEnd(int block) {
+        return blockStarts[block + 1];
+    }
+
     /**
      * Get the statement reachable from the given statement, when its predicate is true. For
      * multi-predicates statement, see {@link #getNthNextStatement(ICStatement, int)}.
@@ -168,8 +483,7 @@ public class CFG {
      * @return statement conditionally reachable, null if none
      */
     public ICStatement getNextTrueStatement(ICStatement from) {
-        return outEdges.get(from) != null && outEdges.get(from).size() > 1 ? outEdges.get(from).get(1)
-                : null;
+        return getNthNextStatement(from, 0);
     }
 
     /**
@@ -182,8 +496,8 @@ public class CFG {
      * @return the n-th conditionally reachable statement, null if none
      */
     public ICStatement getNthNextStatement(ICStatement from, int n) {
-        return outEdges.get(from) != null && outEdges.get(from).size() > n + 1
-                ? outEdges.get(from).get(n + 1): null;
+        int node = getNodeIndex(from);
+        return node != EXIT ? getStatement(getNthNext(node, n)): null;
     }
 
     /**
@@ -199,47 +513,27 @@ public class CFG {
      * @return first next possible statement, might be null
      */
     public ICStatement getNextStatement(ICStatement from) {
-        return outEdges.get(from) != null ? outEdges.get(from).get(0): null;
-    }
-
-    private boolean setFallThrough(ICStatement from, ICStatement to) {
-        return setFallThrough(from, to, true);
-    }
-
-    private boolean setFallThrough(ICStatement from, ICStatement to, boolean eraseExisting) {
-        List<ICStatement> nexts = outEdges.get(from);
-        if(nexts == null) {
-            nexts = new ArrayList<>();
-            outEdges.put(from, nexts);
-        }
-        if(eraseExisting && nexts.size() >= 1) {
-            nexts.set(0, to);
-            return true;
-        }
-        else if(nexts.isEmpty()) {
-            nexts.add(to);
-            return true;
-        }
-        return false;
+        int node = getNodeIndex(from);
+        return node != EXIT ? getStatement(getNext(node)): null;
     }
 
     /**
-     * Add a new conditional reachable statement.
-     * <p>
-     * Important: this method assumes the fallthrough statement has already been set.
-     * 
+     * Get all statements reachable from the given statement: fallthrough first, then conditional
+     * targets.
+     *
      * @param from
-     * @param to
-     * @return
+     * @return reachable statements (possibly containing null for graph exits), empty if none
      */
-    private boolean addConditionalTarget(ICStatement from, ICStatement to) {
-        List<ICStatement> nexts = outEdges.get(from);
-        if(nexts == null) {
-            nexts = new ArrayList<>();
-            outEdges.put(from, nexts);
+    List<ICStatement> getNextStatements(ICStatement from) {
+        int node = getNodeIndex(from);
+        if(node == EXIT) {
+            return Collections.emptyList();
+        }
+        List<ICStatement> nexts = new ArrayList<>(getSuccessorCount(node));
+        for(int i = 0; i < getSuccessorCount(node); i++) {
+            nexts.add(getStatement(getSuccessor(node, i)));
         }
-        nexts.add(to);
-        return true;
+        return nexts;
     }
 
     /**
@@ -251,33 +545,41 @@ public class CFG {
         return entryPoint;
     }
 
+    /**
+     * Get CFG entry point.
+     * 
+     * @return node index of the entry point, {@link #EXIT} if none
+     */
+    public int getEntryIndex() {
+        return entryIndex;
+    }
+
     public void setEntryPoint(ICStatement entryPoint) {
         this.entryPoint = entryPoint;
+        entryIndex = getNodeIndex(entryPoint);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for(ICStatement from: outEdges.keySet()) {
-            sb.append("--edge--");
-            sb.append(Strings.LINESEP);
-            sb.append("> from:");
-            sb.append(from.getClass().getSimpleName().toString());
+        for(int from = 0; from < nodes.length; from++) {
+            if(from == blockStarts[blockOfNode[from]]) {
+                sb.append(Strings.ff("--block %d--", blockOfNode[from]));
+                sb.append(Strings.LINESEP);
+            }
+            sb.append(Strings.ff("> node %d: ", from));
+            sb.append(nodes[from].getClass().getSimpleName().toString());
             sb.append(Strings.LINESEP);
-            sb.append(from);
+            sb.append(nodes[from]);
             sb.append(Strings.LINESEP);
-            for(ICStatement to: outEdges.get(from)) {
-                if(to == null) {
+            for(int i = edgeStarts[from]; i < edgeStarts[from + 1]; i++) {
+                if(edgeTargets[i] == EXIT) {
                     sb.append("> to:EXIT");
-                    sb.append(Strings.LINESEP);
                 }
                 else {
-                    sb.append("> to:");
-                    sb.append(to.getClass().getSimpleName().toString());
-                    sb.append(Strings.LINESEP);
-                    sb.append(to);
-                    sb.append(Strings.LINESEP);
+                    sb.append(Strings.ff("> to:%d", edgeTargets[i]));
                 }
+                sb.append(Strings.LINESEP);
             }
         }
         return sb.toString();
@@ -0,0 +1,295 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Checkpoints of a tracer run, appended to a binary file, so that a run can be resumed after a
+ * failure (see {@link #restore(EmulatorState, SimpleCEmulator)}).
+ * <p>
+ * Each checkpoint holds the memory pages written since the previous one (see
+ * {@link PagedMemory#getModifiedPages()}), all registers (including
+ * {@link SimpleCEmulator#REG_NEXT_METHOD_ID}), the address of the next handler, and the
+ * emulator's own state (see {@link SimpleCEmulator#saveCheckpointState(java.io.DataOutput)}).
+ * Restoring replays all checkpoints on a state initialized as for the original run (same code
+ * unit and dumps), since pages never written are imported again from there: checkpointed runs of
+ * {@link CEmulatorPlugin} never export their memory to the code unit, which stays as analyzed.
+ * <p>
+ * File format: an 8-byte magic, then records made of a length, a CRC32 and a deflated payload. A
+ * record truncated by a crash is ignored, and overwritten by the next checkpoint.
+ */
+public class CheckpointFile {
+
+    private static final byte[] MAGIC = "CEMUCKP1".getBytes(StandardCharsets.US_ASCII);
+    private static final int PAGE_SIZE = PagedMemory.PAGE_SIZE;
+
+    /**
+     * Position of a run, as recorded by a checkpoint.
+     */
+    public static class Checkpoint {
+        final int sequence;
+        final long handlerAddress;
+        final long handlerCount;
+
+        Checkpoint(int sequence, long handlerAddress, long handlerCount) {
+            this.sequence = sequence;
+            this.handlerAddress = handlerAddress;
+            this.handlerCount = handlerCount;
+        }
+
+        /**
+         * Get the checkpoint number, from 0.
+         */
+        public int getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Get the address of the next handler to emulate.
+         */
+        public long getHandlerAddress() {
+            return handlerAddress;
+        }
+
+        /**
+         * Get the number of handlers emulated before the checkpoint.
+         */
+        public long getHandlerCount() {
+            return handlerCount;
+        }
+
+        @Override
+        public String toString() {
+            return Strings.ff("checkpoint %d: next handler 0x%X, %d handlers emulated", sequence, handlerAddress,
+                    handlerCount);
+        }
+    }
+
+    private final File file;
+    /** end of the valid records, -1 if unknown */
+    private long validLength = -1;
+    private int nextSequence;
+
+    public CheckpointFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Discard all checkpoints.
+     */
+    public void reset() throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(MAGIC);
+        }
+        validLength = MAGIC.length;
+        nextSequence = 0;
+    }
+
+    /**
+     * Append a checkpoint of a state, whose memory must be paged. The state's write epoch is then
+     * reset, so that the next checkpoint only holds the pages written after this one.
+     *
+     * @param state emulator state, between two handlers
+     * @param emulator emulator running the state
+     * @param handlerAddress address of the next handler
+     * @param handlerCount number of handlers emulated so far
+     * @return number of saved pages
+     */
+    public int write(EmulatorState state, SimpleCEmulator emulator, long handlerAddress, long handlerCount)
+            throws IOException {
+        PagedMemory memory = state.getPagedMemory();
+        if(memory == null) {
+            throw new IOException("checkpoints require paged memory");
+        }
+        if(validLength < 0) {
+            restore(null, null);
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        long[] pageNumbers = memory.getModifiedPages();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(payload, deflater, 0x10000))) {
+            out.writeInt(nextSequence);
+            out.writeLong(handlerAddress);
+            out.writeLong(handlerCount);
+            RegisterFile registers = state.getRegisterFile();
+            int[] ids = registers.getDefinedIds();
+            out.writeInt(ids.length);
+            for(int id: ids) {
+                out.writeInt(id);
+                out.writeLong(registers.get(id));
+            }
+            ByteArrayOutputStream emulatorState = new ByteArrayOutputStream();
+            try(DataOutputStream emulatorOut = new DataOutputStream(emulatorState)) {
+                emulator.saveCheckpointState(emulatorOut);
+            }
+            out.writeInt(emulatorState.size());
+            emulatorState.writeTo(out);
+            out.writeInt(pageNumbers.length);
+            byte[] data = new byte[PAGE_SIZE];
+            for(long pageNumber: pageNumbers) {
+                if(!memory.readPage(pageNumber, data)) {
+                    throw new IOException(Strings.ff("cannot read page 0x%X", pageNumber << PagedMemory.PAGE_BITS));
+                }
+                out.writeLong(pageNumber);
+                out.write(data);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(bytes.length).putInt((int)crc.getValue()).flip();
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // drop any incomplete record
+            channel.truncate(validLength);
+            channel.position(validLength);
+            channel.write(header);
+            channel.write(ByteBuffer.wrap(bytes));
+            channel.force(false);
+        }
+        validLength += 8 + bytes.length;
+        nextSequence++;
+        memory.markCheckpoint();
+        return pageNumbers.length;
+    }
+
+    /**
+     * Replay the checkpoints on a state, initialized as for the original run. Paged memory is
+     * enabled on the state if there is a checkpoint.
+     *
+     * @param state state to update, null to only check the file
+     * @param emulator emulator whose own state is restored, null if none
+     * @return the last checkpoint, null if there is none
+     */
+    public Checkpoint restore(EmulatorState state, SimpleCEmulator emulator) throws IOException {
+        validLength = MAGIC.length;
+        nextSequence = 0;
+        if(!file.isFile() || file.length() < MAGIC.length) {
+            reset();
+            return null;
+        }
+
+        Checkpoint last = null;
+        byte[] emulatorState = null;
+        byte[] data = new byte[PAGE_SIZE];
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 0x10000))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if(!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(Strings.ff("not a checkpoint file (%s)", file));
+            }
+            while(true) {
+                byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if(length < 0 || validLength + 8 + length > file.length()) {
+                        break;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if((int)crc.getValue() != checksum) {
+                        break;
+                    }
+                }
+                catch(EOFException e) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(inflate(bytes)));
+                last = new Checkpoint(record.readInt(), record.readLong(), record.readLong());
+                int registerCount = record.readInt();
+                for(int i = 0; i < registerCount; i++) {
+                    int id = record.readInt();
+                    long value = record.readLong();
+                    if(state != null) {
+                        state.setRegisterValue(id, value);
+                    }
+                }
+                emulatorState = new byte[record.readInt()];
+                record.readFully(emulatorState);
+                int pageCount = record.readInt();
+                if(state != null) {
+                    state.enablePagedMemory();
+                }
+                for(int i = 0; i < pageCount; i++) {
+                    long pageNumber = record.readLong();
+                    record.readFully(data);
+                    if(state != null) {
+                        state.getPagedMemory().restorePage(pageNumber, data);
+                    }
+                }
+                validLength += 8 + bytes.length;
+                nextSequence = last.sequence + 1;
+            }
+        }
+
+        if(last != null && emulator != null) {
+            emulator.restoreCheckpointState(new DataInputStream(new ByteArrayInputStream(emulatorState)));
+        }
+        if(state != null && state.getPagedMemory() != null) {
+            // restored pages are part of the last checkpoint
+            state.getPagedMemory().markCheckpoint();
+        }
+        return last;
+    }
+
+    private byte[] inflate(byte[] bytes) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[0x10000];
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException(Strings.ff("corrupted checkpoint (%s)", file));
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        catch(DataFormatException e) {
+            throw new IOException(Strings.ff("corrupted checkpoint (%s)", file));
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("%s (%d checkpoints)", file.getName(), nextSequence);
+    }
+}
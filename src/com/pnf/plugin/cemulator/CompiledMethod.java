@@ -0,0 +1,470 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.COperatorType;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICAssignment;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICBlock;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICCall;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICConstantInteger;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICConstantPointer;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICControlBreaker;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICDecl;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICElement;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICExpression;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICGoto;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIdentifier;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIfStm;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICJumpFar;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICLabel;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICOperation;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICOperator;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICPredicate;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICReturn;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICWhileStm;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * {@link ICMethod} lowered into a tree of executable nodes (see {@link StmNode} and
+ * {@link ExprNode}), to be run by {@link SimpleCEmulator}.
+ * <p>
+ * Lowering is done once per method: statement kinds, operator types, cast types, identifiers and
+ * constants are resolved, and control-flow successors are taken from the method's {@link CFG}.
+ * Lowering never fails; constructs that can not be emulated are lowered into nodes raising the
+ * same {@link EmulatorException} as the AST interpreter, when (and if) they are executed.
+ * <p>
+ * Compiled methods do not depend on a specific {@link EmulatorState}, and can be reused for
+ * several emulations. Register identifiers are resolved to the slots of a table shared by the
+ * methods of a run (see {@link RegisterFile.SlotTable}); states are remapped to that table when the
+ * method is emulated.
+ */
+public class CompiledMethod {
+
+    private final ICMethod method;
+    private final CFG cfg;
+    private final RegisterFile.SlotTable registerSlots;
+
+    /** statement nodes, indexed by {@link StmNode#index} (reachable statements only) */
+    private final List<StmNode> statements = new ArrayList<>();
+    private StmNode entryPoint;
+    private FrameLayout frameLayout = FrameLayout.EMPTY;
+    /** fused runs, and number of statements they cover */
+    private int fusedRunCount;
+    private int fusedStatementCount;
+
+    private CompiledMethod(ICMethod method, CFG cfg, RegisterFile.SlotTable registerSlots) {
+        this.method = method;
+        this.cfg = cfg;
+        this.registerSlots = registerSlots;
+    }
+
+    /**
+     * Lower a method.
+     *
+     * @param method
+     * @param registerSlots table of the register slots
+     * @return compiled method
+     */
+    public static CompiledMethod compile(ICMethod method, RegisterFile.SlotTable registerSlots) {
+        return compile(method, CFG.buildCFG(method), registerSlots);
+    }
+
+    /**
+     * Lower a method, whose CFG has already been built.
+     *
+     * @param method
+     * @param cfg cfg of the method
+     * @param registerSlots table of the register slots
+     * @return compiled method
+     */
+    public static CompiledMethod compile(ICMethod method, CFG cfg, RegisterFile.SlotTable registerSlots) {
+        CompiledMethod compiled = new CompiledMethod(method, cfg, registerSlots);
+        if(cfg.getEntryPoint() == null) {
+            return compiled;
+        }
+
+        // collect reachable statements, in CFG order
+        int[] reachable = new int[cfg.getNodeCount()];
+        boolean[] seen = new boolean[cfg.getNodeCount()];
+        int reachableCount = 0;
+        reachable[reachableCount++] = cfg.getEntryIndex();
+        seen[cfg.getEntryIndex()] = true;
+        for(int processed = 0; processed < reachableCount; processed++) {
+            int node = reachable[processed];
+            for(int i = 0; i < cfg.getSuccessorCount(node); i++) {
+                int succ = cfg.getSuccessor(node, i);
+                if(succ != CFG.EXIT && !seen[succ]) {
+                    seen[succ] = true;
+                    reachable[reachableCount++] = succ;
+                }
+            }
+        }
+
+        // lower statements, then link them
+        StmNode[] nodes = new StmNode[cfg.getNodeCount()];
+        for(int i = 0; i < reachableCount; i++) {
+            StmNode node = compiled.lowerStatement(cfg.getStatement(reachable[i]), compiled.statements.size());
+            compiled.statements.add(node);
+            nodes[reachable[i]] = node;
+        }
+        for(int i = 0; i < reachableCount; i++) {
+            link(cfg, reachable[i], nodes);
+        }
+        compiled.entryPoint = nodes[cfg.getEntryIndex()];
+        compiled.frameLayout = FrameLayout.build(compiled.statements);
+        compiled.fuse();
+        return compiled;
+    }
+
+    /**
+     * Fuse the straight-line runs of assignments, labels and gotos into superinstructions (see
+     * {@link StmNode.FusedRun}). Runs start at the entry point and at the successors of other
+     * statements, and end before the first statement that is not fusible, or that the run already
+     * covers (loops made of gotos). A statement may be covered by several runs.
+     */
+    private void fuse() {
+        int count = statements.size();
+        boolean[] head = new boolean[count];
+        boolean[] fused = new boolean[count];
+        int[] runMarks = new int[count];
+        Deque<StmNode> heads = new ArrayDeque<>();
+        addHead(entryPoint, head, heads);
+        for(StmNode node: statements) {
+            if(node.isFusible()) {
+                continue;
+            }
+            addHead(node.next, head, heads);
+            if(node instanceof StmNode.If) {
+                for(StmNode target: ((StmNode.If)node).targets) {
+                    addHead(target, head, heads);
+                }
+                addHead(((StmNode.If)node).defaultTarget, head, heads);
+            }
+            else if(node instanceof StmNode.While) {
+                addHead(((StmNode.While)node).bodyTarget, head, heads);
+            }
+        }
+
+        List<StmNode> run = new ArrayList<>();
+        int runMark = 0;
+        while(!heads.isEmpty()) {
+            StmNode first = heads.poll();
+            run.clear();
+            runMark++;
+            StmNode node = first;
+            while(node != null && node.isFusible() && runMarks[node.index] != runMark) {
+                runMarks[node.index] = runMark;
+                run.add(node);
+                node = node.next;
+            }
+            if(run.size() < 2) {
+                continue;
+            }
+            first.run = new StmNode.FusedRun(run, node);
+            fusedRunCount++;
+            for(StmNode member: run) {
+                if(!fused[member.index]) {
+                    fused[member.index] = true;
+                    fusedStatementCount++;
+                }
+            }
+            // run stopped on a loop
+            addHead(node, head, heads);
+        }
+    }
+
+    private static void addHead(StmNode node, boolean[] head, Deque<StmNode> heads) {
+        if(node != null && node.isFusible() && !head[node.index]) {
+            head[node.index] = true;
+            heads.add(node);
+        }
+    }
+
+    private static StmNode node(StmNode[] nodes, int index) {
+        return index != CFG.EXIT ? nodes[index]: null;
+    }
+
+    private static void link(CFG cfg, int index, StmNode[] nodes) {
+        StmNode node = nodes[index];
+        node.next = node(nodes, cfg.getNext(index));
+        if(node instanceof StmNode.If) {
+            StmNode.If ifNode = (StmNode.If)node;
+            int predicateCount = ifNode.predicates.length;
+            ifNode.targets = new StmNode[predicateCount];
+            for(int i = 0; i < predicateCount; i++) {
+                ifNode.targets[i] = node(nodes, cfg.getNthNext(index, i));
+            }
+            // ...else block if present (last conditional target), or fallthrough
+            ifNode.defaultTarget = ((ICIfStm)node.statement).hasDefaultBlock()
+                    ? node(nodes, cfg.getNthNext(index, predicateCount)): ifNode.next;
+        }
+        else if(node instanceof StmNode.While) {
+            ((StmNode.While)node).bodyTarget = node(nodes, cfg.getNthNext(index, 0));
+        }
+    }
+
+    private StmNode lowerStatement(ICStatement stm, int index) {
+        if(stm instanceof ICGoto || stm instanceof ICLabel) {
+            return new StmNode.Nop(stm, index);
+        }
+        else if(stm instanceof ICReturn) {
+            ICExpression retExpression = ((ICReturn)stm).getExpression();
+            return new StmNode.Return(stm, index, retExpression != null ? lowerExpression(retExpression): null);
+        }
+        else if(stm instanceof ICAssignment) {
+            return lowerAssignment((ICAssignment)stm, index);
+        }
+        else if(stm instanceof ICIfStm) {
+            List<? extends ICPredicate> predicates = ((ICIfStm)stm).getBranchPredicates();
+            ExprNode[] loweredPredicates = new ExprNode[predicates.size()];
+            for(int i = 0; i < loweredPredicates.length; i++) {
+                loweredPredicates[i] = lowerExpression(predicates.get(i));
+            }
+            return new StmNode.If(stm, index, loweredPredicates);
+        }
+        else if(stm instanceof ICWhileStm) {
+            return new StmNode.While(stm, index, lowerExpression(((ICWhileStm)stm).getPredicate()));
+        }
+        else if(stm instanceof ICBlock || stm instanceof ICControlBreaker || stm instanceof ICDecl) {
+            return new StmNode.Nop(stm, index);
+        }
+        else if(stm instanceof ICCall) {
+            return new StmNode.Call(stm, index, lowerCallSite((ICCall)stm));
+        }
+        else if(stm instanceof ICJumpFar) {
+            return new StmNode.JumpFar(stm, index, lowerExpression(((ICJumpFar)stm).getJumpsite()));
+        }
+        return new StmNode.Unsupported(stm, index,
+                Strings.ff("ERROR: unimplemented statement emulation (%s)", stm));
+    }
+
+    private StmNode lowerAssignment(ICAssignment assign, int index) {
+        if(!assign.isSimpleAssignment()) {
+            return new StmNode.Unsupported(assign, index, "ERROR: not implemented: non simple assignments");
+        }
+        ExprNode right = lowerExpression(assign.getRight());
+        ICElement left = assign.getLeft();
+        if(left instanceof ICOperation && ((ICOperation)left).getOperatorType() == COperatorType.PTR) {
+            // memory access
+            ICExpression leftDerefExpr = ((ICOperation)left).getFirstOperand();
+            ICOperator castOperator = leftDerefExpr instanceof ICOperation
+                    ? ((ICOperation)leftDerefExpr).getOperator(): null;
+            return new StmNode.AssignMemory(assign, index, lowerExpression(leftDerefExpr), right,
+                    castOperator != null && castOperator.isCast() ? castOperator.getCastType(): null,
+                    castOperator != null);
+        }
+
+        // identifier (possibly within a definition)
+        ICIdentifier var = null;
+        if(left instanceof ICIdentifier) {
+            var = (ICIdentifier)left;
+        }
+        else if(left instanceof ICDecl) {
+            var = ((ICDecl)left).getIdentifier();
+        }
+        if(var == null) {
+            return new StmNode.Unsupported(assign, index, Strings.ff("ERROR: invalid assignment (%s)", assign));
+        }
+        return new StmNode.AssignVariable(assign, index, var, right, registerSlots);
+    }
+
+    private ExprNode.CallSite lowerCallSite(ICCall call) {
+        return new ExprNode.CallSite(call, call.getMethod() == null ? lowerExpression(call.getCallsite()): null);
+    }
+
+    private ExprNode lowerExpression(ICExpression expr) {
+        if(expr instanceof ICConstantInteger) {
+            return new ExprNode.Constant(expr, ((ICConstantInteger<?>)expr).getValueAsLong());
+        }
+        else if(expr instanceof ICConstantPointer) {
+            return new ExprNode.Constant(expr, ((ICConstantPointer)expr).getValue());
+        }
+        else if(expr instanceof ICOperation) {
+            return lowerOperation((ICOperation)expr);
+        }
+        else if(expr instanceof ICIdentifier) {
+            return lowerIdentifier((ICIdentifier)expr);
+        }
+        else if(expr instanceof ICPredicate) {
+            return new ExprNode.Predicate(expr, lowerExpression(((ICPredicate)expr).getExpression()));
+        }
+        else if(expr instanceof ICCall) {
+            return new ExprNode.Call((ICCall)expr, lowerCallSite((ICCall)expr));
+        }
+        return new ExprNode.Unsupported(expr, Strings.ff("ERROR: unimplemented expression eval (%s)", expr));
+    }
+
+    private ExprNode lowerIdentifier(ICIdentifier var) {
+        switch(var.getIdentifierClass()) {
+        case LOCAL:
+        case GLOBAL:
+            return new ExprNode.MemoryVariable(var);
+        default:
+            return new ExprNode.Register(var, registerSlots.slotOf(var.getId()));
+        }
+    }
+
+    private ExprNode lowerOperation(ICOperation operation) {
+        ICExpression opnd1 = operation.getFirstOperand();
+        ICExpression opnd2 = operation.getSecondOperand();
+        ICExpression opnd3 = operation.getThirdOperand();
+        ICOperator operator = operation.getOperator();
+
+        switch(operator.getType()) {
+        case ADD:
+            return new ExprNode.Add(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case AND:
+            return new ExprNode.And(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case CAST:
+            return new ExprNode.Cast(operation, lowerExpression(opnd1), operator.getCastType());
+        case COND:
+            return new ExprNode.Cond(operation, lowerExpression(opnd1), lowerExpression(opnd2),
+                    lowerExpression(opnd3));
+        case DIV:
+            return new ExprNode.Div(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case EQ:
+            return new ExprNode.Eq(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case GE:
+            return new ExprNode.Ge(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case GT:
+            return new ExprNode.Gt(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case LE:
+            return new ExprNode.Le(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case LOG_AND:
+            return new ExprNode.LogAnd(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case LOG_IDENT:
+            return new ExprNode.LogIdent(operation, lowerExpression(opnd1));
+        case LOG_NOT:
+            return new ExprNode.LogNot(operation, lowerExpression(opnd1));
+        case LOG_OR:
+            return new ExprNode.LogOr(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case LT:
+            return new ExprNode.Lt(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case MUL:
+            return new ExprNode.Mul(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case NE:
+            return new ExprNode.Ne(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case NEG:
+            return new ExprNode.Neg(operation, lowerExpression(opnd1));
+        case NOT:
+            return new ExprNode.Not(operation, lowerExpression(opnd1));
+        case OR:
+            return new ExprNode.Or(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case PTR:
+            return lowerDereference(operation, opnd1);
+        case REF:
+            if(!(opnd1 instanceof ICIdentifier)) {
+                return new ExprNode.Unsupported(operation, Strings.ff("REF on non id (%s)", opnd1));
+            }
+            return new ExprNode.Ref(operation, (ICIdentifier)opnd1);
+        case REM:
+            return new ExprNode.Rem(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case SHL:
+            return new ExprNode.Shl(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case SHR:
+            return new ExprNode.Shr(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case SUB:
+            return new ExprNode.Sub(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case USHR:
+            return new ExprNode.Ushr(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        case XOR:
+            return new ExprNode.Xor(operation, lowerExpression(opnd1), lowerExpression(opnd2));
+        default:
+            return new ExprNode.Unsupported(operation, Strings.ff("TBI: operator (%s)", operator));
+        }
+    }
+
+    private ExprNode lowerDereference(ICOperation operation, ICExpression opnd1) {
+        if(opnd1 instanceof ICIdentifier) {
+            return new ExprNode.PtrIdentifier(operation, lowerExpression(opnd1), ((ICIdentifier)opnd1).getType());
+        }
+        else if(opnd1 instanceof ICOperation) {
+            ICOperation addressOperation = (ICOperation)opnd1;
+            if(addressOperation.getOperator().isCast()) {
+                return new ExprNode.PtrCast(operation, lowerExpression(addressOperation.getFirstOperand()),
+                        addressOperation.getOperator().getCastType());
+            }
+            ICIdentifier basePointer = SimpleCEmulator.findBasePointer(addressOperation);
+            if(basePointer != null) {
+                return new ExprNode.PtrBasePointer(operation, lowerExpression(opnd1), basePointer.getType());
+            }
+            return new ExprNode.PtrDefault(operation, lowerExpression(opnd1));
+        }
+        else if(opnd1 instanceof ICConstantInteger) {
+            return new ExprNode.PtrConstant(operation, ((ICConstantInteger<?>)opnd1).getValueAsLong());
+        }
+        return new ExprNode.Unsupported(operation, Strings.ff("PTR invalid (%s)", opnd1));
+    }
+
+    public ICMethod getMethod() {
+        return method;
+    }
+
+    public CFG getCFG() {
+        return cfg;
+    }
+
+    /**
+     * Get the table of the register slots used by the lowered nodes.
+     */
+    public RegisterFile.SlotTable getRegisterSlots() {
+        return registerSlots;
+    }
+
+    /**
+     * Get entry point.
+     *
+     * @return entry statement, null if method is empty
+     */
+    StmNode getEntryPoint() {
+        return entryPoint;
+    }
+
+    /**
+     * Get the stack frame layout, giving the locals promoted during emulations.
+     */
+    FrameLayout getFrameLayout() {
+        return frameLayout;
+    }
+
+    /**
+     * Get the number of lowered statements.
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * Get the number of superinstructions (see {@link StmNode.FusedRun}).
+     */
+    public int getFusedRunCount() {
+        return fusedRunCount;
+    }
+
+    /**
+     * Get the number of statements covered by superinstructions, ie executed without intermediate
+     * dispatch.
+     */
+    public int getFusedStatementCount() {
+        return fusedStatementCount;
+    }
+
+    StmNode getStatementNode(int index) {
+        return statements.get(index);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(StmNode node: statements) {
+            sb.append(node);
+            sb.append(Strings.LINESEP);
+        }
+        return sb.toString();
+    }
+}
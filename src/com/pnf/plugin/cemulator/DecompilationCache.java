@@ -0,0 +1,121 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.pnfsoftware.jeb.core.Artifact;
+import com.pnfsoftware.jeb.core.IEnginesContext;
+import com.pnfsoftware.jeb.core.IRuntimeProject;
+import com.pnfsoftware.jeb.core.input.FileInput;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * On-disk cache of the analysis and decompilation of a target executable, for headless runs (see
+ * {@link HeadlessClient}).
+ * <p>
+ * Entries are JEB project databases, content-addressed by the SHA-256 of the executable and the
+ * plugin version: a run on an unchanged executable loads the code unit already processed, and the
+ * handlers already decompiled (decompiled units are persisted by JEB), rather than analyzing and
+ * decompiling them again. The database must only hold analysis results, never emulated memory:
+ * it is saved once analyzed, before any emulation, and saved back at the end of a successful run
+ * (with the handlers it decompiled) only if the run left the code unit's memory untouched (see
+ * {@link CEmulatorPlugin#isProjectMemoryModified()}). {@link HeadlessClient} reports the handlers
+ * a warm run still had to decompile (see {@link CEmulatorPlugin#getHandlerDecompilationCount()}):
+ * none, unless the run reached handlers that the cached runs did not.
+ * <p>
+ * Lowered forms ({@link CompiledMethod}) are not persisted: they hold AST elements (statements,
+ * identifiers, types, call sites) used by logs, simulated functions and emulator subclasses, and
+ * are rebuilt from the cached ASTs, which is fast compared to decompilation.
+ */
+public class DecompilationCache {
+
+    private final File directory;
+    private final File executable;
+    private final String key;
+
+    /**
+     * @param directory cache directory, created if needed
+     * @param executable target executable
+     */
+    public DecompilationCache(File directory, File executable) throws IOException {
+        this.directory = directory;
+        this.executable = executable;
+        key = Strings.ff("%s-%s-v%s", executable.getName(), sha256(executable), CEmulatorPlugin.VERSION);
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try(InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[0x10000];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b: digest.digest()) {
+            sb.append(Strings.ff("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the project database of the executable.
+     */
+    public File getDatabase() {
+        return new File(directory, key + ".jdb2");
+    }
+
+    /**
+     * Check if the executable was analyzed by a previous run.
+     */
+    public boolean isWarm() {
+        return getDatabase().isFile();
+    }
+
+    /**
+     * Open the project of the executable: loaded from the cache if warm, or created and processed
+     * otherwise.
+     */
+    public IRuntimeProject open(IEnginesContext engctx) {
+        boolean warm = isWarm();
+        IRuntimeProject prj = engctx.loadProject(getDatabase().getPath());
+        if(!warm) {
+            prj.processArtifact(new Artifact(executable.getName(), new FileInput(executable)));
+        }
+        return prj;
+    }
+
+    /**
+     * Save the project, replacing the cached database once fully written.
+     */
+    public void save(IEnginesContext engctx, IRuntimeProject prj) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(Strings.ff("cannot create cache directory (%s)", directory));
+        }
+        File database = getDatabase();
+        File partial = new File(directory, key + ".jdb2.tmp");
+        if(!engctx.saveProject(prj.getKey(), partial.getPath(), null, null)) {
+            throw new IOException(Strings.ff("cannot save project (%s)", partial));
+        }
+        Files.move(partial.toPath(), database.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("%s (%s)", getDatabase(), isWarm() ? "warm": "cold");
+    }
+}
@@ -0,0 +1,352 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pnfsoftware.jeb.core.exceptions.JebRuntimeException;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICCall;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICConstantInteger;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICConstantPointer;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICExpression;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICJumpFar;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
+import com.pnfsoftware.jeb.util.format.Strings;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Decompilation of handlers ahead of their emulation, by a pool of worker threads, for the tracer
+ * loop of {@link CEmulatorPlugin}.
+ * <p>
+ * Candidate handlers are taken from the constant targets of far jumps and unresolved calls of the
+ * decompiled methods (up to {@link #MAX_DEPTH} handlers ahead), and from the history of handler
+ * transitions (see {@link #enter(long)}). Decompiled methods are kept in a concurrent cache, and
+ * lowered ahead of time if a {@link MethodCache} is set. When the emulator requests a handler whose
+ * decompilation has not started yet, it is decompiled by the emulator thread itself.
+ * <p>
+ * The decompiler given to the pipeline is called concurrently, and must take care of serializing
+ * the calls that are not thread-safe (eg, code analysis).
+ */
+public class DecompilationPipeline {
+    private static final ILogger logger = GlobalLog.getLogger(DecompilationPipeline.class);
+
+    /** default number of worker threads */
+    public static final int DEFAULT_THREADS = 2;
+    /** maximum distance, in constant transitions, of the prefetched handlers */
+    public static final int MAX_DEPTH = 2;
+    /** maximum number of decompilations waiting for a worker */
+    public static final int MAX_PENDING = 256;
+    /** number of most frequent successors prefetched from the transition history */
+    private static final int HISTORY_CANDIDATES = 4;
+    /** maximum time {@link #close()} waits for the decompilations in progress, in milliseconds */
+    public static final long CLOSE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Handler decompiler.
+     */
+    public interface Decompiler {
+        /**
+         * Disassemble (if needed) and decompile a routine.
+         *
+         * @param address routine address
+         * @return decompiled method
+         */
+        ICMethod decompile(long address);
+    }
+
+    /**
+     * Decompilation of a handler, done by a worker or by the emulator thread.
+     */
+    private class Decompilation extends FutureTask<ICMethod> {
+        /** distance from the emulated handlers, 0 if requested by the emulator */
+        final int depth;
+        /** constant successors of the handler, null until decompiled */
+        volatile List<Long> targets;
+
+        Decompilation(long address, int depth) {
+            super(() -> prepare(address, depth));
+            this.depth = depth;
+        }
+
+        Decompilation(ICMethod method) {
+            super(() -> method);
+            depth = 0;
+            run();
+        }
+
+        @Override
+        protected void done() {
+            if(depth > 0) {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private final Decompiler decompiler;
+    private final MethodCache methodCache;
+    private final ThreadPoolExecutor workers;
+
+    /** decompilations, done or not, by routine address */
+    private final Map<Long, Decompilation> methods = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** handler transitions: successor counts of each handler (emulator thread only) */
+    private final Map<Long, Map<Long, Integer>> transitions = new HashMap<>();
+    private Long lastHandler;
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long readyHits;
+    private long waits;
+    private long misses;
+
+    /**
+     * @param decompiler handler decompiler, called by several threads
+     * @param threads number of worker threads
+     * @param methodCache cache to lower decompiled methods into, null if none
+     */
+    public DecompilationPipeline(Decompiler decompiler, int threads, MethodCache methodCache) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("number of threads must be positive");
+        }
+        this.decompiler = decompiler;
+        this.methodCache = methodCache;
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "cemulator-decompiler-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Get a decompiled handler, waiting for its decompilation if in progress. This method must be
+     * called from the emulator thread.
+     *
+     * @param address routine address
+     * @return decompiled method
+     */
+    public ICMethod get(long address) {
+        Decompilation task = methods.get(address);
+        boolean prefetch = task != null;
+        if(task == null) {
+            misses++;
+            task = new Decompilation(address, 0);
+            Decompilation previous = methods.putIfAbsent(address, task);
+            if(previous != null) {
+                task = previous;
+                prefetch = true;
+            }
+        }
+        else if(task.isDone()) {
+            readyHits++;
+        }
+        else {
+            waits++;
+        }
+        // run by the emulator thread if no worker started it (no-op otherwise)
+        task.run();
+        try {
+            ICMethod method = task.get();
+            if(task.depth > 0 && task.targets != null) {
+                // successors of a prefetched handler are now one handler ahead
+                for(long target: task.targets) {
+                    prefetch(target, 1);
+                }
+            }
+            return method;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JebRuntimeException(Strings.ff("ERROR: interrupted decompilation (0x%X)", address));
+        }
+        catch(ExecutionException e) {
+            methods.remove(address, task);
+            if(!prefetch && e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            // failed prefetch: decompile again, errors are raised to the caller
+            ICMethod method = decompiler.decompile(address);
+            methods.put(address, new Decompilation(method));
+            return method;
+        }
+    }
+
+    /**
+     * Record the emulation of a handler, and prefetch its most frequent successors. This method
+     * must be called from the emulator thread.
+     *
+     * @param address routine address
+     */
+    public void enter(long address) {
+        if(lastHandler != null) {
+            transitions.computeIfAbsent(lastHandler, k -> new HashMap<>()).merge(address, 1, Integer::sum);
+        }
+        lastHandler = address;
+
+        Map<Long, Integer> successors = transitions.get(address);
+        if(successors != null) {
+            List<Map.Entry<Long, Integer>> sorted = new ArrayList<>(successors.entrySet());
+            sorted.sort((a, b) -> b.getValue() - a.getValue());
+            for(int i = 0; i < sorted.size() && i < HISTORY_CANDIDATES; i++) {
+                long successor = sorted.get(i).getKey();
+                Decompilation task = methods.get(successor);
+                if(task == null) {
+                    prefetch(successor, 1);
+                }
+                else if(methodCache != null && task.isDone()) {
+                    // lowered form may have been evicted
+                    lower(successor, task);
+                }
+            }
+        }
+    }
+
+    private void lower(long address, Decompilation task) {
+        ICMethod method;
+        try {
+            method = task.get();
+        }
+        catch(InterruptedException | ExecutionException e) {
+            return;
+        }
+        if(!methodCache.isCompiled(address, method) && pending.get() < MAX_PENDING) {
+            pending.incrementAndGet();
+            workers.execute(() -> {
+                try {
+                    methodCache.getCompiledMethod(address, method);
+                }
+                finally {
+                    pending.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue the decompilation of a handler, unless already done or queued.
+     *
+     * @param address routine address
+     */
+    public void prefetch(long address) {
+        prefetch(address, 1);
+    }
+
+    private void prefetch(long address, int depth) {
+        if(methods.containsKey(address) || pending.get() >= MAX_PENDING) {
+            return;
+        }
+        Decompilation task = new Decompilation(address, depth);
+        if(methods.putIfAbsent(address, task) == null) {
+            pending.incrementAndGet();
+            workers.execute(task);
+        }
+    }
+
+    /**
+     * Decompile a handler, lower it, and prefetch its constant successors.
+     */
+    private ICMethod prepare(long address, int depth) {
+        Decompilation task = methods.get(address);
+        ICMethod method;
+        try {
+            method = decompiler.decompile(address);
+        }
+        catch(RuntimeException e) {
+            if(depth > 0) {
+                // eg, constant that is not a routine address
+                failures.incrementAndGet();
+            }
+            throw e;
+        }
+        if(depth > 0) {
+            prefetched.incrementAndGet();
+        }
+
+        CFG cfg = methodCache != null ? methodCache.getCompiledMethod(address, method).getCFG()
+                : CFG.buildCFG(method);
+        List<Long> targets = getConstantTargets(cfg);
+        if(task != null) {
+            task.targets = targets;
+        }
+        if(depth < MAX_DEPTH) {
+            for(long target: targets) {
+                prefetch(target, depth + 1);
+            }
+        }
+        return method;
+    }
+
+    /**
+     * Get the constant targets of the far jumps and unresolved calls of a method, ie its likely
+     * successor handlers.
+     */
+    static List<Long> getConstantTargets(CFG cfg) {
+        List<Long> targets = new ArrayList<>();
+        for(int i = 0; i < cfg.getNodeCount(); i++) {
+            ICStatement stm = cfg.getStatement(i);
+            Long target = null;
+            if(stm instanceof ICJumpFar) {
+                target = getConstant(((ICJumpFar)stm).getJumpsite());
+            }
+            else if(stm instanceof ICCall && ((ICCall)stm).getMethod() == null) {
+                target = getConstant(((ICCall)stm).getCallsite());
+            }
+            if(target != null && !targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+        return targets;
+    }
+
+    private static Long getConstant(ICExpression expr) {
+        if(expr instanceof ICConstantInteger) {
+            return ((ICConstantInteger<?>)expr).getValueAsLong();
+        }
+        else if(expr instanceof ICConstantPointer) {
+            return ((ICConstantPointer)expr).getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Stop the workers. Queued decompilations are dropped; the ones in progress are not interrupted,
+     * and are waited for (up to {@link #CLOSE_TIMEOUT_MILLIS}), so that the decompiler is left in a
+     * consistent state, eg before its project gets saved.
+     */
+    public void close() {
+        workers.shutdown();
+        List<Runnable> queued = new ArrayList<>();
+        workers.getQueue().drainTo(queued);
+        for(Runnable task: queued) {
+            // (never started)
+            ((Decompilation)task).cancel(false);
+        }
+        try {
+            if(!workers.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.info("> warning: decompilations still in progress after %d ms", CLOSE_TIMEOUT_MILLIS);
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("DecompilationPipeline(ready=%d, waits=%d, misses=%d, prefetched=%d, failures=%d)",
+                readyHits, waits, misses, prefetched.get(), failures.get());
+    }
+}
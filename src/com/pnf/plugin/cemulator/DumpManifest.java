@@ -0,0 +1,189 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.exceptions.JebRuntimeException;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * List of memory regions to load from dump files.
+ * <p>
+ * Manifest format: one region per line, as {@code base file offset length permissions}, eg:
+ *
+ * <pre>
+ * # process dump
+ * 0x7ffffffde000  stack.bin  0        0x21000   rw-
+ * 0x602000        heap.bin   0        0x21000   rw-
+ * 0x400000        core.bin   0x2000   0x1000    r-x
+ * </pre>
+ *
+ * Numbers are decimal or hexadecimal (0x prefix); relative file paths are resolved against the
+ * manifest directory. Later regions override earlier ones where they overlap.
+ * <p>
+ * Regions are memory-mapped with {@link FileChannel#map} on first access, and their content is
+ * only copied to emulator memory page by page, when a page is first touched (see
+ * {@link PagedMemory}). Permissions are informative: emulator memory is always writable.
+ */
+public class DumpManifest {
+
+    /**
+     * Memory region backed by a part of a file.
+     */
+    public static class Region {
+        /** files are mapped in chunks, as a mapping is limited to 2 GiB */
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+        final long base;
+        final File file;
+        final long offset;
+        final long length;
+        final String permissions;
+
+        private MappedByteBuffer[] chunks;
+
+        public Region(long base, File file, long offset, long length, String permissions) {
+            this.base = base;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.permissions = permissions;
+        }
+
+        public long getBase() {
+            return base;
+        }
+
+        public long getEnd() {
+            return base + length;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getPermissions() {
+            return permissions;
+        }
+
+        /**
+         * Check if the region overlaps a memory range.
+         */
+        public boolean overlaps(long address, int size) {
+            return address < base + length && base < address + size;
+        }
+
+        /**
+         * Copy the part of the region overlapping a memory range.
+         *
+         * @param address range start
+         * @param dst range data
+         */
+        synchronized void copyTo(long address, byte[] dst) {
+            long start = Math.max(address, base);
+            long end = Math.min(address + dst.length, base + length);
+            while(start < end) {
+                long position = start - base;
+                int chunkIndex = (int)(position >>> CHUNK_BITS);
+                int chunkOffset = (int)(position & (CHUNK_SIZE - 1));
+                ByteBuffer chunk = getChunk(chunkIndex).duplicate();
+                int n = (int)Math.min(end - start, chunk.capacity() - chunkOffset);
+                chunk.position(chunkOffset);
+                chunk.get(dst, (int)(start - address), n);
+                start += n;
+            }
+        }
+
+        private MappedByteBuffer getChunk(int index) {
+            if(chunks == null) {
+                chunks = new MappedByteBuffer[(int)((length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            }
+            if(chunks[index] == null) {
+                long chunkOffset = (long)index << CHUNK_BITS;
+                try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                    // mapping remains valid once the channel is closed
+                    chunks[index] = channel.map(FileChannel.MapMode.READ_ONLY, offset + chunkOffset,
+                            Math.min(CHUNK_SIZE, length - chunkOffset));
+                }
+                catch(IOException e) {
+                    throw new JebRuntimeException(Strings.ff("error when mapping dump file (%s)", file));
+                }
+            }
+            return chunks[index];
+        }
+
+        @Override
+        public String toString() {
+            return Strings.ff("0x%X-0x%X %s %s+0x%X", base, base + length, permissions, file.getName(), offset);
+        }
+    }
+
+    private List<Region> regions = new ArrayList<>();
+
+    public DumpManifest() {
+    }
+
+    /**
+     * Read a manifest file.
+     */
+    public static DumpManifest load(File manifestFile) throws IOException {
+        DumpManifest manifest = new DumpManifest();
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        int lineNumber = 0;
+        for(String line: Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if(tokens.length != 5) {
+                throw new IOException(Strings.ff("invalid manifest line %d: %s", lineNumber, line));
+            }
+            File file = new File(tokens[1]);
+            if(!file.isAbsolute()) {
+                file = new File(dir, tokens[1]);
+            }
+            try {
+                manifest.addRegion(new Region(Long.decode(tokens[0]), file, Long.decode(tokens[2]),
+                        Long.decode(tokens[3]), tokens[4]));
+            }
+            catch(NumberFormatException e) {
+                throw new IOException(Strings.ff("invalid number at manifest line %d: %s", lineNumber, line));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Add a region; the file must hold the region's bytes.
+     */
+    public void addRegion(Region region) {
+        if(region.offset < 0 || region.length <= 0 || region.offset + region.length > region.file.length()) {
+            throw new JebRuntimeException(Strings.ff("invalid dump region (%s)", region));
+        }
+        regions.add(region);
+    }
+
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+}
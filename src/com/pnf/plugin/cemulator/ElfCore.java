@@ -0,0 +1,264 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Linux x86-64 ELF core file (as written by the kernel, or by gdb's gcore), used as an initial
+ * {@link EmulatorState}.
+ * <p>
+ * Loaded segments (PT_LOAD) are turned into {@link DumpManifest} regions, so that their pages are
+ * only copied to emulator memory when first accessed. Segments not saved in the core (eg read-only
+ * file mappings, whose file size is 0) are left to the code unit's memory. Registers are read from
+ * the NT_PRSTATUS notes, one per thread.
+ */
+public class ElfCore {
+
+    private static final int ET_CORE = 4;
+    private static final int EM_X86_64 = 62;
+    private static final int PT_LOAD = 1;
+    private static final int PT_NOTE = 4;
+    private static final int PF_X = 1;
+    private static final int PF_W = 2;
+    private static final int PF_R = 4;
+    private static final int PN_XNUM = 0xFFFF;
+    private static final int NT_PRSTATUS = 1;
+
+    /** offsets in struct elf_prstatus */
+    private static final int PRSTATUS_PID = 32;
+    private static final int PRSTATUS_REGS = 112;
+
+    /** struct user_regs_struct fields, in order */
+    private static final String[] REGISTER_NAMES = {"r15", "r14", "r13", "r12", "rbp", "rbx", "r11", "r10", "r9",
+            "r8", "rax", "rcx", "rdx", "rsi", "rdi", "orig_rax", "rip", "cs", "eflags", "rsp", "ss", "fs_base",
+            "gs_base", "ds", "es", "fs", "gs"};
+    /** x86 register numbers of the user_regs_struct fields, -1 for non general-purpose registers */
+    private static final int[] REGISTER_NUMBERS = {15, 14, 13, 12, 5, 3, 11, 10, 9, 8, 0, 1, 2, 6, 7, -1, -1, -1, -1,
+            4, -1, -1, -1, -1, -1, -1, -1};
+    private static final int RIP_INDEX = 16;
+    private static final int RSP_INDEX = 19;
+
+    /**
+     * Registers of a thread, from its NT_PRSTATUS note.
+     */
+    public static class ThreadStatus {
+        final int pid;
+        final long[] registers;
+
+        ThreadStatus(int pid, long[] registers) {
+            this.pid = pid;
+            this.registers = registers;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        public long getInstructionPointer() {
+            return registers[RIP_INDEX];
+        }
+
+        public long getStackPointer() {
+            return registers[RSP_INDEX];
+        }
+
+        /**
+         * Get a register by its user_regs_struct name (eg "rbp", "fs_base").
+         *
+         * @return register value, null if unknown name
+         */
+        public Long getRegister(String name) {
+            for(int i = 0; i < REGISTER_NAMES.length; i++) {
+                if(REGISTER_NAMES[i].equals(name)) {
+                    return registers[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get the general-purpose registers, indexed by emulator register ID (see
+         * {@link SimpleCEmulator#REG_RAX_ID}).
+         */
+        public Map<Integer, Long> getRegisterValues() {
+            Map<Integer, Long> values = new LinkedHashMap<>();
+            for(int i = 0; i < REGISTER_NUMBERS.length; i++) {
+                if(REGISTER_NUMBERS[i] >= 0) {
+                    values.put(registerId(REGISTER_NUMBERS[i]), registers[i]);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return Strings.ff("thread %d: rip=0x%X rsp=0x%X rbp=0x%X", pid, registers[RIP_INDEX],
+                    registers[RSP_INDEX], getRegister("rbp"));
+        }
+    }
+
+    private final File file;
+    private final DumpManifest manifest = new DumpManifest();
+    private final List<ThreadStatus> threads = new ArrayList<>();
+
+    private ElfCore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Emulator ID of a general-purpose register: JEB x86 register IDs are spaced by 64, from RAX.
+     *
+     * @param number x86 register number (0 for RAX, 4 for RSP, 5 for RBP...)
+     */
+    static int registerId(int number) {
+        return SimpleCEmulator.REG_RAX_ID - 64 * number;
+    }
+
+    /**
+     * Read a core file's program headers and notes; segment contents are mapped on demand.
+     *
+     * @throws EmulatorException if the core file has no thread
+     */
+    public static ElfCore load(File coreFile) throws IOException {
+        ElfCore core = new ElfCore(coreFile);
+        try(RandomAccessFile raf = new RandomAccessFile(coreFile, "r"); FileChannel channel = raf.getChannel()) {
+            core.parse(channel);
+        }
+        if(core.threads.isEmpty()) {
+            throw new EmulatorException(Strings.ff("ERROR: core file has no thread (no NT_PRSTATUS note) (%s)",
+                    coreFile));
+        }
+        return core;
+    }
+
+    private void parse(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, 64);
+        if(header.getInt(0) != 0x464C457F) {
+            throw new IOException(Strings.ff("not an ELF file (%s)", file));
+        }
+        if(header.get(4) != 2 || header.get(5) != 1) {
+            throw new IOException(Strings.ff("unsupported ELF class (only ELF64 little-endian) (%s)", file));
+        }
+        if((header.getShort(16) & 0xFFFF) != ET_CORE) {
+            throw new IOException(Strings.ff("not an ELF core file (%s)", file));
+        }
+        if((header.getShort(18) & 0xFFFF) != EM_X86_64) {
+            throw new IOException(Strings.ff("unsupported ELF machine (only x86-64) (%s)", file));
+        }
+        long phoff = header.getLong(32);
+        int phentsize = header.getShort(54) & 0xFFFF;
+        long phnum = header.getShort(56) & 0xFFFF;
+        if(phnum == PN_XNUM) {
+            // actual count is held by the first section header
+            phnum = read(channel, header.getLong(40), 64).getInt(44) & 0xFFFFFFFFL;
+        }
+        if(phentsize < 56) {
+            throw new IOException(Strings.ff("invalid program header size (%s)", file));
+        }
+
+        long fileLength = channel.size();
+        for(long i = 0; i < phnum; i++) {
+            ByteBuffer ph = read(channel, phoff + i * phentsize, 56);
+            int type = ph.getInt(0);
+            int flags = ph.getInt(4);
+            long offset = ph.getLong(8);
+            long vaddr = ph.getLong(16);
+            long filesz = ph.getLong(32);
+            if(type == PT_LOAD && filesz > 0) {
+                // truncated cores hold the beginning of their last segments
+                long length = Math.min(filesz, fileLength - offset);
+                if(length > 0) {
+                    manifest.addRegion(new DumpManifest.Region(vaddr, file, offset, length, permissions(flags)));
+                }
+            }
+            else if(type == PT_NOTE && filesz > 0 && offset + filesz <= fileLength) {
+                if(filesz > Integer.MAX_VALUE) {
+                    throw new IOException(Strings.ff("invalid note segment (%s)", file));
+                }
+                parseNotes(read(channel, offset, (int)filesz));
+            }
+        }
+    }
+
+    private void parseNotes(ByteBuffer notes) {
+        int position = 0;
+        while(position + 12 <= notes.limit()) {
+            int namesz = notes.getInt(position);
+            int descsz = notes.getInt(position + 4);
+            int type = notes.getInt(position + 8);
+            int desc = position + 12 + align4(namesz);
+            if(namesz < 0 || descsz < 0 || desc + (long)descsz > notes.limit()) {
+                break;
+            }
+            if(type == NT_PRSTATUS && descsz >= PRSTATUS_REGS + REGISTER_NAMES.length * 8) {
+                long[] registers = new long[REGISTER_NAMES.length];
+                for(int i = 0; i < registers.length; i++) {
+                    registers[i] = notes.getLong(desc + PRSTATUS_REGS + i * 8);
+                }
+                threads.add(new ThreadStatus(notes.getInt(desc + PRSTATUS_PID), registers));
+            }
+            position = desc + align4(descsz);
+        }
+    }
+
+    private static int align4(int size) {
+        return (size + 3) & ~3;
+    }
+
+    private static String permissions(int flags) {
+        return ((flags & PF_R) != 0 ? "r": "-") + ((flags & PF_W) != 0 ? "w": "-") + ((flags & PF_X) != 0 ? "x": "-");
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(Strings.ff("truncated ELF file (%s)", file));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the memory regions of the saved segments.
+     */
+    public DumpManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Get the threads, in note order: the first one is the thread that caused the dump.
+     */
+    public List<ThreadStatus> getThreads() {
+        return Collections.unmodifiableList(threads);
+    }
+
+    /**
+     * Get the thread that caused the dump (loaded cores have at least one thread).
+     */
+    public ThreadStatus getFirstThread() {
+        return threads.get(0);
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("%s: %d regions, %d threads", file.getName(), manifest.getRegions().size(),
+                threads.size());
+    }
+}
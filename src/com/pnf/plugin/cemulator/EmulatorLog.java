@@ -1,31 +1,277 @@
 package com.pnf.plugin.cemulator;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
+import com.pnfsoftware.jeb.util.format.Strings;
 
 /**
  * Log of a method emulation done by {@link SimpleCEmulator}. Provides access to the execution trace
  * and the current emulator state.
- * 
+ * <p>
+ * The trace is stored as statement IDs, mapped to statements by a side table: either the lowered
+ * method (IDs are node indexes, see {@link CompiledMethod}), or a table of statements interned as
+ * they are logged. Once the emulation is over, the trace can be compacted into a delta-encoded
+ * form (see {@link #compact()}).
+ *
  * @author Joan Calvet
  *
  */
 public class EmulatorLog {
 
-    private List<String> executionTrace = new ArrayList<>();
+    /** number of entries between two samples of the compacted trace */
+    private static final int SAMPLE_INTERVAL = 128;
+
+    /** raw trace (statement IDs), null once compacted */
+    private int[] ids = new int[64];
+    private int size;
+
+    /** compacted trace: zigzag varints of the ID deltas */
+    private byte[] packed;
+    /** compacted trace samples: offset in packed data and ID, every SAMPLE_INTERVAL entries */
+    private int[] sampleOffsets;
+    private int[] sampleIds;
+
+    /** bytes allocated to store the trace, including discarded buffers (see {@link #getTraceBytes()}) */
+    private long traceBytes = arrayBytes(64, 4);
+
+    /** statement table, when IDs are node indexes */
+    private CompiledMethod compiled;
+    /** statement table, when IDs are interned */
+    private List<ICStatement> statements;
+    private Map<ICStatement, Integer> statementIds;
+
     private EmulatorState currentState;
 
+    /** budget of the run, null if none; limit on the log size, and size of the next budget check */
+    private ExecutionBudget budget;
+    private long statementLimit = Long.MAX_VALUE;
+    private long nextCheck = Long.MAX_VALUE;
+
+    public EmulatorLog() {
+    }
+
+    /**
+     * Create a log whose statement IDs are the node indexes of the given lowered method.
+     */
+    EmulatorLog(CompiledMethod compiled) {
+        this.compiled = compiled;
+    }
+
     public void addExecutedStatement(ICStatement stmt) {
-        executionTrace.add(stmt.toString());
+        if(statementIds == null) {
+            if(compiled != null) {
+                throw new IllegalStateException("statement IDs are node indexes");
+            }
+            statements = new ArrayList<>();
+            statementIds = new IdentityHashMap<>();
+        }
+        Integer id = statementIds.get(stmt);
+        if(id == null) {
+            id = statements.size();
+            statements.add(stmt);
+            statementIds.put(stmt, id);
+        }
+        addExecutedStatement(id);
+    }
+
+    /**
+     * Set the budget of the run: statements are counted against its remaining statements, and
+     * its time and memory limits are checked periodically.
+     */
+    void setBudget(ExecutionBudget budget) {
+        this.budget = budget;
+        statementLimit = budget.getRemainingStatements();
+        nextCheck = Math.min(statementLimit, ExecutionBudget.CHECK_INTERVAL);
+    }
+
+    private void checkBudget(int count) {
+        if(size + count > statementLimit) {
+            throw new ExecutionBudget.ExceededException(
+                    Strings.ff("statement limit reached (%d)", budget.getMaxStatements()));
+        }
+        budget.checkResources();
+        nextCheck = Math.min(statementLimit, size + count + ExecutionBudget.CHECK_INTERVAL);
+    }
+
+    /**
+     * Add a statement by ID (node index of the lowered method).
+     */
+    void addExecutedStatement(int id) {
+        if(packed != null) {
+            throw new IllegalStateException("trace was compacted");
+        }
+        if(size >= nextCheck) {
+            checkBudget(1);
+        }
+        if(size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            traceBytes += arrayBytes(ids.length, 4);
+        }
+        ids[size++] = id;
+    }
+
+    /**
+     * Add statements by ID, in execution order (see {@link StmNode.FusedRun}).
+     * 
+     * @param ids statement IDs
+     * @param count number of IDs to add, from the first one
+     */
+    void addExecutedStatements(int[] ids, int count) {
+        if(packed != null) {
+            throw new IllegalStateException("trace was compacted");
+        }
+        if(size + count > nextCheck) {
+            checkBudget(count);
+        }
+        if(size + count > this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, Math.max(this.ids.length * 2, size + count));
+            traceBytes += arrayBytes(this.ids.length, 4);
+        }
+        System.arraycopy(ids, 0, this.ids, size, count);
+        size += count;
+    }
+
+    /**
+     * Get the lowered method whose node indexes are the statement IDs, null if statement IDs are
+     * interned (reference mode).
+     */
+    public CompiledMethod getCompiledMethod() {
+        return compiled;
+    }
+
+    /**
+     * Get the number of executed statements.
+     */
+    public int getExecutedStatementCount() {
+        return size;
+    }
+
+    /**
+     * Get the ID of the i-th executed statement.
+     */
+    public int getExecutedStatementId(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        if(packed == null) {
+            return ids[index];
+        }
+        int sample = index / SAMPLE_INTERVAL;
+        int offset = sampleOffsets[sample];
+        int id = sampleIds[sample];
+        for(int i = sample * SAMPLE_INTERVAL; i < index; i++) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = packed[offset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while((b & 0x80) != 0);
+            id += (value >>> 1) ^ -(value & 1);
+        }
+        return id;
+    }
+
+    /**
+     * Get the i-th executed statement.
+     */
+    public ICStatement getExecutedStatement(int index) {
+        return getStatement(getExecutedStatementId(index));
+    }
+
+    /**
+     * Get a statement from its ID.
+     */
+    public ICStatement getStatement(int id) {
+        if(compiled != null) {
+            return compiled.getStatementNode(id).statement;
+        }
+        return statements.get(id);
     }
 
     /**
-     * Get the list of string representations of the executed statements
+     * Get the list of string representations of the executed statements. The list is a view,
+     * strings being rendered on access.
      */
     public List<String> getExecutionTrace() {
-        return executionTrace;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getExecutedStatement(index).toString();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Store the trace as zigzag-encoded deltas between consecutive IDs; statements can not be added
+     * afterwards. Traces of lowered methods mostly step from one node to the next, making most
+     * entries one byte long.
+     */
+    public void compact() {
+        if(packed != null) {
+            return;
+        }
+        byte[] buffer = new byte[size + 16];
+        int length = 0;
+        int samples = (size + SAMPLE_INTERVAL - 1) / SAMPLE_INTERVAL;
+        sampleOffsets = new int[samples];
+        sampleIds = new int[samples];
+        traceBytes += arrayBytes(buffer.length, 1) + 2 * arrayBytes(samples, 4);
+        int previous = 0;
+        for(int i = 0; i < size; i++) {
+            int id = ids[i];
+            if(i % SAMPLE_INTERVAL == 0) {
+                sampleOffsets[i / SAMPLE_INTERVAL] = length;
+                sampleIds[i / SAMPLE_INTERVAL] = id;
+            }
+            else {
+                int delta = id - previous;
+                int value = (delta << 1) ^ (delta >> 31);
+                if(length + 5 > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    traceBytes += arrayBytes(buffer.length, 1);
+                }
+                while((value & ~0x7F) != 0) {
+                    buffer[length++] = (byte)(value & 0x7F | 0x80);
+                    value >>>= 7;
+                }
+                buffer[length++] = (byte)value;
+            }
+            previous = id;
+        }
+        packed = Arrays.copyOf(buffer, length);
+        traceBytes += arrayBytes(length, 1);
+        ids = null;
+    }
+
+    /**
+     * Get the number of bytes allocated to store the trace so far (raw and compacted forms,
+     * including the buffers discarded when growing). Array headers are counted as 16 bytes; the
+     * statement table of interned IDs is not counted.
+     */
+    public long getTraceBytes() {
+        return traceBytes;
+    }
+
+    private static long arrayBytes(int length, int elementSize) {
+        return 16 + (long)length * elementSize;
+    }
+
+    public boolean isCompacted() {
+        return packed != null;
     }
 
     public void setEmulatorState(EmulatorState state) {
@@ -0,0 +1,142 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.Arrays;
+
+/**
+ * Memory accessed by the emulator. Values are little-endian; accesses to unmapped memory raise
+ * {@link EmulatorException}.
+ */
+public interface EmulatorMemory {
+
+    /** buffer size of the default bulk operations */
+    int BULK_CHUNK = 0x1000;
+
+    /**
+     * Read a value.
+     * 
+     * @param address
+     * @param size value size in bytes: 1, 2, 4 or 8
+     * @return read value, zero-extended
+     */
+    long read(long address, int size);
+
+    /**
+     * Write a value.
+     * 
+     * @param address
+     * @param value
+     * @param size value size in bytes: 1, 2, 4 or 8
+     */
+    void write(long address, long value, int size);
+
+    /**
+     * Read bytes.
+     */
+    void read(long address, byte[] dst, int dstOffset, int length);
+
+    /**
+     * Write bytes.
+     */
+    void write(long address, byte[] src, int srcOffset, int length);
+
+    /**
+     * Make a memory range readable and writable; already mapped parts are left untouched.
+     */
+    void allocate(long address, int size);
+
+    /*
+     * Bulk operations; default implementations go through temporary buffers
+     */
+
+    /**
+     * Copy a memory range; ranges may overlap (memmove semantics).
+     *
+     * @param src source address
+     * @param dst destination address
+     * @param length number of bytes to copy
+     */
+    default void copy(long src, long dst, long length) {
+        if(length <= 0 || src == dst) {
+            return;
+        }
+        byte[] buffer = new byte[(int)Math.min(length, BULK_CHUNK)];
+        boolean backward = dst > src && dst - src < length;
+        for(long done = 0; done < length;) {
+            int n = (int)Math.min(length - done, buffer.length);
+            long offset = backward ? length - done - n: done;
+            read(src + offset, buffer, 0, n);
+            write(dst + offset, buffer, 0, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Fill a memory range with a byte value (memset semantics).
+     */
+    default void fill(long address, byte value, long length) {
+        if(length <= 0) {
+            return;
+        }
+        byte[] buffer = new byte[(int)Math.min(length, BULK_CHUNK)];
+        Arrays.fill(buffer, value);
+        for(long done = 0; done < length;) {
+            int n = (int)Math.min(length - done, buffer.length);
+            write(address + done, buffer, 0, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Compare two memory ranges (memcmp semantics).
+     *
+     * @return difference of the first differing bytes (as unsigned values), 0 if ranges are equal
+     */
+    default int compare(long address1, long address2, long length) {
+        byte[] buffer1 = new byte[(int)Math.min(Math.max(length, 0), BULK_CHUNK)];
+        byte[] buffer2 = new byte[buffer1.length];
+        for(long done = 0; done < length;) {
+            int n = (int)Math.min(length - done, buffer1.length);
+            read(address1 + done, buffer1, 0, n);
+            read(address2 + done, buffer2, 0, n);
+            for(int i = 0; i < n; i++) {
+                if(buffer1[i] != buffer2[i]) {
+                    return (buffer1[i] & 0xFF) - (buffer2[i] & 0xFF);
+                }
+            }
+            done += n;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare two NUL-terminated strings (strcmp semantics).
+     *
+     * @param maxLength maximum number of bytes compared
+     * @return difference of the first differing bytes (as unsigned values), 0 if strings are equal
+     */
+    default int compareStrings(long address1, long address2, long maxLength) {
+        for(long i = 0; i < maxLength; i++) {
+            int c1 = (int)read(address1 + i, 1);
+            int c2 = (int)read(address2 + i, 1);
+            if(c1 != c2 || c1 == 0) {
+                return c1 - c2;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Find the first occurrence of a byte value (memchr/strlen semantics).
+     *
+     * @param maxLength maximum number of bytes scanned
+     * @return offset of the value from the given address, -1 if not found
+     */
+    default long indexOf(long address, byte value, long maxLength) {
+        for(long i = 0; i < maxLength; i++) {
+            if((byte)read(address + i, 1) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
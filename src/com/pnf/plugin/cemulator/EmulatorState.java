@@ -2,9 +2,9 @@ package com.pnf.plugin.cemulator;
 
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import com.pnfsoftware.jeb.core.exceptions.JebRuntimeException;
@@ -15,9 +15,6 @@ import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICElement;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIdentifier;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICType;
 import com.pnfsoftware.jeb.core.units.code.asm.memory.IVirtualMemory;
-import com.pnfsoftware.jeb.core.units.code.asm.memory.MemoryException;
-import com.pnfsoftware.jeb.core.units.code.asm.memory.VirtualMemoryUtil;
-import com.pnfsoftware.jeb.core.units.code.asm.type.INativeType;
 import com.pnfsoftware.jeb.core.units.code.asm.type.ITypeManager;
 import com.pnfsoftware.jeb.util.base.Assert;
 import com.pnfsoftware.jeb.util.format.Strings;
@@ -33,13 +30,32 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
 public class EmulatorState {
     private static final ILogger logger = GlobalLog.getLogger(EmulatorState.class);
 
-    private IVirtualMemory memory;
-    private Map<Integer, Long> registers = new HashMap<>(); // id -> value
+    /** memory accessed by the emulator, and the JEB memory it was created from */
+    private EmulatorMemory memory;
+    private IVirtualMemory virtualMemory;
+    /** false if the emulator memory must not be written back to JEB memory (dump-based states) */
+    private boolean exportable = true;
+    private RegisterFile registers = new RegisterFile(); // id -> value
 
     /** default pointer size, in bytes */
     private Integer defaultPointerSize;
     private INativeCodeUnit<?> nativeUnit;
     private ITypeManager typeManager;
+    /** size information of types, lazily computed from the type manager */
+    private TypeLayouts typeLayouts;
+    /** promoted locals of the method being emulated, null if none */
+    private FrameLayout.Frame frame;
+    /** memory watchpoints, null if none was ever set */
+    private WatchpointTable watchpoints;
+    /** true while watchpoint listeners run, so that their own accesses are not reported */
+    private boolean dispatching;
+    /** emulator running on this state, giving the context of watchpoint hits */
+    SimpleCEmulator emulator;
+    /** memory access statistics, null if not profiling */
+    private MemoryProfile profile;
+    /** stack range allocated by allocateStackSpace(), empty if none */
+    private long stackStart;
+    private long stackEnd;
 
     static class MemoryDump {
         long baseAddress;
@@ -61,60 +77,340 @@ public class EmulatorState {
         Assert.a(nativeUnit != null);
         this.nativeUnit = nativeUnit;
         typeManager = nativeUnit.getTypeManager();
+        typeLayouts = TypeLayouts.of(typeManager);
 
         // memory initialization
         defaultPointerSize = nativeUnit.getMemory().getSpaceBits() / 8;
-        memory = nativeUnit.getMemory();
+        virtualMemory = nativeUnit.getMemory();
+        memory = new VirtualMemoryAdapter(virtualMemory);
     }
 
     /**
      * Initialize state from stack/heap memory dumps
+     * <p>
+     * The code unit's memory is not modified: the emulator runs on its own paged memory, whose
+     * pages are imported on demand from the dumps, or the code unit's memory.
      */
     public EmulatorState(INativeCodeUnit<?> nativeUnit, MemoryDump stackDump, MemoryDump heapDump) {
+        this(nativeUnit, toManifest(stackDump, heapDump));
+    }
+
+    /**
+     * Initialize state from the memory regions of a dump manifest. Regions are memory-mapped, and
+     * their pages loaded in emulator memory on first access.
+     * <p>
+     * The code unit's memory is not modified: the emulator runs on its own paged memory, whose
+     * pages are imported on demand from the dumps, or the code unit's memory.
+     */
+    public EmulatorState(INativeCodeUnit<?> nativeUnit, DumpManifest manifest) {
         Assert.a(nativeUnit != null);
+        this.nativeUnit = nativeUnit;
         this.typeManager = nativeUnit.getTypeManager();
+        typeLayouts = TypeLayouts.of(typeManager);
         defaultPointerSize = nativeUnit.getMemory().getSpaceBits() / 8;
-        this.memory = nativeUnit.getMemory().duplicate();
+        this.virtualMemory = nativeUnit.getMemory();
+        PagedMemory pagedMemory = new PagedMemory(virtualMemory);
+        for(DumpManifest.Region region: manifest.getRegions()) {
+            pagedMemory.addRegion(region);
+        }
+        this.memory = pagedMemory;
+        exportable = false;
+    }
 
-        // stack allocation
-        byte[] src = null;
-        try {
-            src = Files.readAllBytes(stackDump.dumpFile.toPath());
-            allocateMemory(stackDump.baseAddress, src.length);
-            this.memory.write(stackDump.baseAddress, src.length, src, 0);
+    /**
+     * Initialize state from an ELF core file: memory from its saved segments, loaded on first
+     * access (see {@link #EmulatorState(INativeCodeUnit, DumpManifest)}), and general-purpose
+     * registers from the status of its first thread.
+     */
+    public EmulatorState(INativeCodeUnit<?> nativeUnit, ElfCore core) {
+        this(nativeUnit, core.getManifest());
+        for(Map.Entry<Integer, Long> register: core.getFirstThread().getRegisterValues().entrySet()) {
+            setRegisterValue(register.getKey(), register.getValue());
         }
-        catch(IOException e) {
+    }
+
+    private static DumpManifest toManifest(MemoryDump stackDump, MemoryDump heapDump) {
+        DumpManifest manifest = new DumpManifest();
+        if(!stackDump.dumpFile.isFile()) {
             throw new JebRuntimeException("error when reading stack dump");
         }
+        if(!heapDump.dumpFile.isFile()) {
+            throw new JebRuntimeException("error when reading heap dump");
+        }
+        if(stackDump.dumpFile.length() > 0) {
+            manifest.addRegion(new DumpManifest.Region(stackDump.baseAddress, stackDump.dumpFile, 0,
+                    stackDump.dumpFile.length(), "rw-"));
+        }
+        if(heapDump.dumpFile.length() > 0) {
+            manifest.addRegion(new DumpManifest.Region(heapDump.baseAddress, heapDump.dumpFile, 0,
+                    heapDump.dumpFile.length(), "rw-"));
+        }
+        return manifest;
+    }
+
+    /**
+     * Copy constructor, see {@link #fork()}.
+     */
+    private EmulatorState(EmulatorState source, boolean readOnly) {
+        nativeUnit = source.nativeUnit;
+        typeManager = source.typeManager;
+        typeLayouts = source.typeLayouts;
+        defaultPointerSize = source.defaultPointerSize;
+        virtualMemory = source.virtualMemory;
+        exportable = source.exportable;
+        watchpoints = source.watchpoints;
+        if(source.frame != null) {
+            source.frame.flush();
+        }
+        source.enablePagedMemory();
+        memory = ((PagedMemory)source.memory).fork(readOnly);
+        registers = source.registers.fork(readOnly);
+    }
+
+    /**
+     * Create an independent copy of this state, in O(1). Memory pages and registers are shared
+     * until written (copy-on-write); paged memory is enabled if needed (see
+     * {@link #enablePagedMemory()}).
+     * <p>
+     * A state and its forks may be used on different threads.
+     * 
+     * @return the new state
+     */
+    public EmulatorState fork() {
+        return new EmulatorState(this, false);
+    }
+
+    /**
+     * Create a read-only copy of this state, in O(1), eg to be restored later with {@link #fork()}.
+     * Writing to a snapshot raises {@link IllegalStateException}.
+     * 
+     * @return the snapshot
+     */
+    public EmulatorState snapshot() {
+        return new EmulatorState(this, true);
+    }
+
+    public void allocateMemory(long baseAddress, int size) {
+        memory.allocate(baseAddress, size);
+    }
+
+    /**
+     * Switch to an emulator-owned paged memory (see {@link PagedMemory}), importing pages lazily
+     * from the current JEB memory. Modifications are only visible in JEB memory after
+     * {@link #exportMemory()}.
+     */
+    public void enablePagedMemory() {
+        if(!(memory instanceof PagedMemory)) {
+            memory = new PagedMemory(virtualMemory);
+        }
+    }
+
+    RegisterFile getRegisterFile() {
+        return registers;
+    }
+
+    /**
+     * Get the paged memory, with the current frame written back.
+     *
+     * @return the memory, null if paged memory is not enabled
+     */
+    PagedMemory getPagedMemory() {
+        if(frame != null) {
+            frame.flush();
+        }
+        return memory instanceof PagedMemory ? (PagedMemory)memory: null;
+    }
+
+    /**
+     * Write the pages modified by the emulator back to JEB memory, when paged memory is enabled
+     * (dump-based states are never exported).
+     * 
+     * @return number of exported pages
+     */
+    public int exportMemory() {
+        if(frame != null) {
+            frame.flush();
+        }
+        if(memory instanceof PagedMemory && exportable) {
+            return ((PagedMemory)memory).exportTo(virtualMemory);
+        }
+        return 0;
+    }
+
+    /**
+     * Get the emulator memory, for direct accesses. Promoted locals of the method being emulated
+     * are written back first, and reloaded from memory on their next access.
+     */
+    public EmulatorMemory getMemory() {
+        if(frame != null) {
+            frame.invalidate();
+        }
+        return memory;
+    }
+
+    /**
+     * Get the emulator memory, without synchronizing promoted locals.
+     */
+    EmulatorMemory rawMemory() {
+        return memory;
+    }
+
+    /**
+     * Start the emulation of a method: its promoted locals (see {@link FrameLayout}) are held in a
+     * new frame, until {@link #exitFrame()}. The frame of an enclosing emulation, if any, is
+     * written back and resumed afterwards.
+     */
+    void enterFrame(FrameLayout layout) {
+        if(frame != null) {
+            frame.invalidate();
+        }
+        frame = new FrameLayout.Frame(layout, this, frame);
+    }
+
+    /**
+     * End the emulation of a method, writing back its promoted locals.
+     */
+    void exitFrame() {
+        FrameLayout.Frame exited = frame;
+        frame = exited.previous;
+        exited.flush();
+        if(frame != null && watchpoints != null) {
+            // watchpoints may have been set meanwhile
+            frame.rebind();
+        }
+    }
+
+    /**
+     * Watch accesses to a memory range. Only accesses to pages holding a watchpoint are checked.
+     * <p>
+     * Watchpoints are shared with the forks of this state.
+     * 
+     * @param address
+     * @param size range size in bytes
+     * @param access mask of watched accesses ({@link MemoryWatchpoint#READ},
+     *            {@link MemoryWatchpoint#WRITE})
+     * @param listener receiver of the hits
+     * @return the watchpoint
+     */
+    public MemoryWatchpoint addWatchpoint(long address, long size, int access, MemoryWatchpoint.Listener listener) {
+        if(size <= 0 || listener == null) {
+            throw new IllegalArgumentException("invalid watchpoint");
+        }
+        MemoryWatchpoint watchpoint = new MemoryWatchpoint(address, size, access, listener);
+        if(watchpoints == null) {
+            watchpoints = new WatchpointTable();
+        }
+        watchpoints.add(watchpoint);
+        if(frame != null) {
+            // watched locals must not be held by the frame
+            frame.rebind();
+        }
+        return watchpoint;
+    }
+
+    public boolean removeWatchpoint(MemoryWatchpoint watchpoint) {
+        return watchpoints != null && watchpoints.remove(watchpoint);
+    }
+
+    public List<MemoryWatchpoint> getWatchpoints() {
+        return watchpoints == null ? Collections.emptyList(): Arrays.asList(watchpoints.getWatchpoints());
+    }
+
+    /**
+     * Start or stop collecting memory access statistics.
+     * 
+     * @param profile statistics receiver, null to stop profiling (default); when not profiling,
+     *            accesses are not instrumented
+     */
+    public void setMemoryProfile(MemoryProfile profile) {
+        this.profile = profile;
+        if(profile != null) {
+            profile.setStackRange(stackStart, stackEnd);
+        }
+        if(frame != null) {
+            frame.rebind();
+        }
+    }
+
+    public MemoryProfile getMemoryProfile() {
+        return profile;
+    }
 
-        // heap allocation
-        src = null;
+    /**
+     * Check if a memory range may hold a watchpoint.
+     */
+    boolean isWatched(long address, long size) {
+        return watchpoints != null && watchpoints.isTagged(address, size);
+    }
+
+    /**
+     * Slow path of accesses to watched pages.
+     */
+    private void watch(int access, long address, long size, long value) {
+        if(dispatching || size <= 0) {
+            return;
+        }
+        dispatching = true;
         try {
-            src = Files.readAllBytes(heapDump.dumpFile.toPath());
-            allocateMemory(heapDump.baseAddress, src.length);
-            this.memory.write(heapDump.baseAddress, src.length, src, 0);
+            watchpoints.dispatch(access, address, size, value, emulator);
         }
-        catch(IOException e) {
-            throw new JebRuntimeException("error when reading heap dump");
+        finally {
+            dispatching = false;
         }
     }
 
-    public void allocateMemory(long baseAddress, int size) {
-        VirtualMemoryUtil.allocateFillGaps(this.memory, baseAddress, size, IVirtualMemory.ACCESS_RW);
+    /**
+     * Read a memory variable, from the current frame if promoted.
+     *
+     * @param frameSlot slot of the variable in the current frame, -1 if none
+     * @param var
+     */
+    long readVariable(int frameSlot, ICIdentifier var) {
+        if(frame != null && frame.isPromoted(frameSlot)) {
+            return frame.read(frameSlot);
+        }
+        return readMemory(getVarAddress(var), getTypeSize(var.getType()));
+    }
+
+    /**
+     * Write a memory variable, to the current frame if promoted.
+     *
+     * @param frameSlot slot of the variable in the current frame, -1 if none
+     * @param var
+     * @param value
+     */
+    void writeVariable(int frameSlot, ICIdentifier var, long value) {
+        if(frame != null && frame.isPromoted(frameSlot)) {
+            frame.write(frameSlot, value);
+        }
+        else {
+            writeMemory(getVarAddress(var), value, getTypeSize(var.getType()));
+        }
     }
 
     public boolean allocateStackSpace() {
-        Long baseStackPointerValue = getRegisterValue(SimpleCEmulator.REG_RBP_ID);
-        if(baseStackPointerValue != null) {
+        if(isRegisterDefined(SimpleCEmulator.REG_RBP_ID)) {
+            long baseStackPointerValue = getRegister(SimpleCEmulator.REG_RBP_ID);
             // arbitrary size
-            VirtualMemoryUtil.allocateFillGaps(memory, (baseStackPointerValue & 0xFFFFFFFFFFFFF000L) - 0x10_0000,
-                    0x11_0000, IVirtualMemory.ACCESS_RW);
+            stackStart = (baseStackPointerValue & 0xFFFFFFFFFFFFF000L) - 0x10_0000;
+            stackEnd = stackStart + 0x11_0000;
+            memory.allocate(stackStart, 0x11_0000);
+            if(profile != null) {
+                profile.setStackRange(stackStart, stackEnd);
+            }
             return true;
         }
         return false;
     }
 
-    public Long getVarValue(ICElement element) {
+    /**
+     * Get variable value.
+     * 
+     * @param element identifier or declaration
+     * @return variable value, 0 if variable is an undefined register (see
+     *         {@link #isVarDefined(ICElement)})
+     */
+    public long getVarValue(ICElement element) {
         ICIdentifier id = getIdentifier(element);
         if(id.getIdentifierClass() == CIdentifierClass.LOCAL || id.getIdentifierClass() == CIdentifierClass.GLOBAL) {
             return readMemory(getVarAddress(id), getTypeSize(id.getType()));
@@ -124,29 +420,65 @@ public class EmulatorState {
         }
     }
 
+    /**
+     * Check if a variable has a value. Memory variables are always defined; register variables
+     * are defined once written.
+     * 
+     * @param element identifier or declaration
+     */
+    public boolean isVarDefined(ICElement element) {
+        ICIdentifier id = getIdentifier(element);
+        if(id.getIdentifierClass() == CIdentifierClass.LOCAL || id.getIdentifierClass() == CIdentifierClass.GLOBAL) {
+            return true;
+        }
+        return registers.isDefined(id.getId());
+    }
+
     public void setVarValue(ICElement element, long value) {
         ICIdentifier id = getIdentifier(element);
         if(id.getIdentifierClass() == CIdentifierClass.LOCAL || id.getIdentifierClass() == CIdentifierClass.GLOBAL) {
             writeMemory(getVarAddress(id), value, getTypeSize(id.getType()));
         }
         else {
-            int typeSize = getTypeSize(id.getType());
-            switch(typeSize) {
-            case 8:
-                registers.put(id.getId(), value);
-                break;
-            case 4:
-                registers.put(id.getId(), value & 0xFFFFFFFFL);
-                break;
-            case 2:
-                registers.put(id.getId(), value & 0xFFFFL);
-                break;
-            case 1:
-                registers.put(id.getId(), value & 0xFFL);
-                break;
-            default:
-                throw new EmulatorException(Strings.ff("TBI: register size %d", typeSize));
-            }
+            int slot = registers.slotOf(id.getId());
+            registers.setSlot(slot, value & getRegisterMask(id.getType()));
+            registerWritten(slot);
+        }
+    }
+
+    /**
+     * Set a register identifier, truncating the value to the identifier's type size (see
+     * {@link #setVarValue(ICElement, long)}).
+     *
+     * @param slot register slot (see {@link RegisterFile.SlotTable})
+     * @param type identifier type
+     * @param value
+     */
+    void setRegisterSlot(int slot, ICType type, long value) {
+        registers.setSlot(slot, value & getRegisterMask(type));
+        registerWritten(slot);
+    }
+
+    private void registerWritten(int slot) {
+        if(slot == SimpleCEmulator.REG_RBP_SLOT && frame != null) {
+            // locals moved
+            frame.rebind();
+        }
+    }
+
+    private long getRegisterMask(ICType type) {
+        int typeSize = getTypeSize(type);
+        switch(typeSize) {
+        case 8:
+            return -1L;
+        case 4:
+            return 0xFFFFFFFFL;
+        case 2:
+            return 0xFFFFL;
+        case 1:
+            return 0xFFL;
+        default:
+            throw new EmulatorException(Strings.ff("TBI: register size %d", typeSize));
         }
     }
 
@@ -160,9 +492,16 @@ public class EmulatorState {
         return null;
     }
 
-    public Long getVarAddress(ICIdentifier var) {
+    public long getVarAddress(ICIdentifier var) {
         if(var.getIdentifierClass() == CIdentifierClass.LOCAL) {
-            return var.getAddress() + getRegisterValue(SimpleCEmulator.REG_RBP_ID) + 8; // we assume stack does not change
+            if(!registers.isSlotDefined(SimpleCEmulator.REG_RBP_SLOT)) {
+                throw new EmulatorException(Strings.ff("ERROR: undefined base pointer (%s)", var));
+            }
+            long address = var.getAddress() + registers.getSlot(SimpleCEmulator.REG_RBP_SLOT) + 8; // we assume stack does not change
+            if(profile != null) {
+                profile.recordLocal(address);
+            }
+            return address;
         }
         else if(var.getIdentifierClass() == CIdentifierClass.GLOBAL) {
             return var.getAddress();
@@ -179,52 +518,199 @@ public class EmulatorState {
      * @return type size in bytes
      */
     public int getTypeSize(ICType type) {
-        String typeName = type.getSignature();
-        INativeType typeItem = typeManager.getType(typeName);
-        if(typeItem == null) {
-            throw new EmulatorException(Strings.ff("ERROR: unknown type (%s)", typeName));
+        TypeLayouts.Layout layout = typeLayouts.get(type);
+        if(layout.size < 0) {
+            throw new EmulatorException(Strings.ff("ERROR: unknown type (%s)", type.getSignature()));
         }
-        return typeItem.getSize();
+        return layout.size;
     }
 
     /**
      * Get base type size in bytes, i.e. the size of TYPE in 'TYPE *'
      */
     public int getBaseTypeSize(ICType type) {
-        String typeName = type.getSignature();
-        if(typeName.endsWith("*")) {
-            INativeType typeItem = typeManager.getType(type.getBaseTypeSignature());
-            if(typeItem == null) {
-                throw new EmulatorException(Strings.ff("unknown base type (%s)", typeName));
+        TypeLayouts.Layout layout = typeLayouts.get(type);
+        if(layout.pointer) {
+            if(layout.baseSize < 0) {
+                throw new EmulatorException(Strings.ff("unknown base type (%s)", type.getSignature()));
             }
-            return typeItem.getSize();
+            return layout.baseSize;
         }
         else {
             if(defaultPointerSize != null) {
                 return defaultPointerSize;
             }
-            throw new EmulatorException(Strings.ff("not a pointer type (%s)", typeName));
+            throw new EmulatorException(Strings.ff("not a pointer type (%s)", type.getSignature()));
         }
     }
 
     /**
-     * Copy n bytes from source to destination
+     * Get the mask corresponding to a type size, as applied by casts to that type.
+     */
+    public long getCastMask(ICType type) {
+        TypeLayouts.Layout layout = typeLayouts.get(type);
+        if(layout.size < 0) {
+            throw new EmulatorException(Strings.ff("ERROR: unknown type (%s)", type.getSignature()));
+        }
+        return layout.castMask;
+    }
+
+    /**
+     * Check if a type is a signed primitive type.
+     */
+    public boolean isSignedType(ICType type) {
+        return typeLayouts.get(type).signed;
+    }
+
+    /**
+     * Drop cached type layouts (shared by all states of the type manager). Layouts are also
+     * dropped whenever the type manager notifies a change.
+     */
+    public void invalidateTypeLayouts() {
+        typeLayouts.invalidate();
+    }
+
+    /*
+     * Bulk memory operations (see EmulatorMemory); with paged memory, they work directly on pages,
+     * without intermediate buffers
+     */
+
+    /**
+     * Copy n bytes from source to destination; ranges may overlap (memmove semantics).
      * 
      * @param src source address
      * @param dst destination address
      * @param n number of bytes to copy
      */
-    public void copyMemory(long src, long dst, int n) {
-        byte[] toCopy = new byte[n];
+    public void copyMemory(long src, long dst, long n) {
+        if(frame != null) {
+            frame.beforeRead(src, n);
+            frame.beforeWrite(dst, n);
+        }
+        if(watchpoints != null) {
+            if(watchpoints.isTagged(src, n)) {
+                watch(MemoryWatchpoint.READ, src, n, 0);
+            }
+            if(watchpoints.isTagged(dst, n)) {
+                watch(MemoryWatchpoint.WRITE, dst, n, 0);
+            }
+        }
+        if(profile != null && n > 0) {
+            profile.recordRead(src, n);
+            profile.recordWrite(dst, n);
+        }
         try {
-            memory.read(src, n, toCopy, 0);
-            memory.write(dst, n, toCopy, 0);
+            memory.copy(src, dst, n);
         }
-        catch(MemoryException e) {
+        catch(EmulatorException e) {
             throw new EmulatorException("ERROR: memory copy failed");
         }
     }
 
+    /**
+     * Fill n bytes with a value (memset semantics).
+     * 
+     * @param address
+     * @param value byte value
+     * @param n number of bytes to fill
+     */
+    public void fillMemory(long address, byte value, long n) {
+        if(frame != null) {
+            frame.beforeWrite(address, n);
+        }
+        if(watchpoints != null && watchpoints.isTagged(address, n)) {
+            watch(MemoryWatchpoint.WRITE, address, n, 0);
+        }
+        if(profile != null && n > 0) {
+            profile.recordWrite(address, n);
+        }
+        memory.fill(address, value, n);
+    }
+
+    /**
+     * Compare n bytes (memcmp semantics).
+     * 
+     * @return difference of the first differing bytes (as unsigned values), 0 if ranges are equal
+     */
+    public int compareMemory(long address1, long address2, long n) {
+        if(frame != null) {
+            frame.beforeRead(address1, n);
+            frame.beforeRead(address2, n);
+        }
+        if(watchpoints != null) {
+            if(watchpoints.isTagged(address1, n)) {
+                watch(MemoryWatchpoint.READ, address1, n, 0);
+            }
+            if(watchpoints.isTagged(address2, n)) {
+                watch(MemoryWatchpoint.READ, address2, n, 0);
+            }
+        }
+        if(profile != null && n > 0) {
+            profile.recordRead(address1, n);
+            profile.recordRead(address2, n);
+        }
+        return memory.compare(address1, address2, n);
+    }
+
+    /**
+     * Compare NUL-terminated strings (strcmp semantics).
+     * 
+     * @return difference of the first differing bytes (as unsigned values), 0 if strings are equal
+     */
+    public int compareStrings(long address1, long address2) {
+        if(frame != null) {
+            frame.beforeRead(address1, Long.MAX_VALUE);
+            frame.beforeRead(address2, Long.MAX_VALUE);
+        }
+        int result = memory.compareStrings(address1, address2, Long.MAX_VALUE);
+        if(watchpoints != null || profile != null) {
+            // compared bytes: up to the shortest string terminator
+            long n = Math.min(memory.indexOf(address1, (byte)0, Long.MAX_VALUE),
+                    memory.indexOf(address2, (byte)0, Long.MAX_VALUE)) + 1;
+            if(watchpoints != null && watchpoints.isTagged(address1, n)) {
+                watch(MemoryWatchpoint.READ, address1, n, 0);
+            }
+            if(watchpoints != null && watchpoints.isTagged(address2, n)) {
+                watch(MemoryWatchpoint.READ, address2, n, 0);
+            }
+            if(profile != null) {
+                profile.recordRead(address1, n);
+                profile.recordRead(address2, n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find a byte value in memory (memchr semantics).
+     * 
+     * @param address
+     * @param value byte value
+     * @param n maximum number of bytes scanned
+     * @return offset of the value from the given address, -1 if not found
+     */
+    public long findByte(long address, byte value, long n) {
+        if(frame != null) {
+            frame.beforeRead(address, n);
+        }
+        long index = memory.indexOf(address, value, n);
+        long scanned = index >= 0 ? index + 1: n;
+        if(watchpoints != null && watchpoints.isTagged(address, scanned)) {
+            watch(MemoryWatchpoint.READ, address, scanned, 0);
+        }
+        if(profile != null && scanned > 0) {
+            profile.recordRead(address, scanned);
+        }
+        return index;
+    }
+
+    /**
+     * Get the length of a NUL-terminated string (strlen semantics).
+     */
+    public long getStringLength(long address) {
+        return findByte(address, (byte)0, Long.MAX_VALUE);
+    }
+
     /**
      * Read memory with default endianness. Default value (0L) is returned when memory read failed.
      * 
@@ -232,14 +718,21 @@ public class EmulatorState {
      * @param bytesToRead number of bytes to read
      * @return read value, upper-casted as long, if memory couldn't be read return 0
      */
-    public Long readMemorySafe(long address, int bytesToRead) {
+    public long readMemorySafe(long address, int bytesToRead) {
+        long value;
         try {
-            return readMemory(address, bytesToRead);
+            if(frame != null) {
+                frame.beforeRead(address, bytesToRead);
+            }
+            value = memory.read(address, bytesToRead);
         }
         catch(EmulatorException e) {
             logger.info("> warning: cannot read memory at 0x%08x -- returning 0L", address);
             return 0L;
         }
+        // out of the try: exceptions raised by watchpoint listeners stop the emulation
+        afterRead(address, bytesToRead, value);
+        return value;
     }
 
     /**
@@ -249,32 +742,24 @@ public class EmulatorState {
      * @param bytesToRead number of bytes to read
      * @return read value, upper-casted as long
      */
-    public Long readMemory(long address, int bytesToRead) {
-        Long value = 0L;
-        try {
-            switch(bytesToRead) {
-            case 8:
-                value = memory.readLong(address);
-                break;
-            case 4:
-                value = memory.readInt(address) & 0xFFFFFFFFL;
-                break;
-            case 2:
-                value = memory.readShort(address) & 0xFFFFL;
-                break;
-            case 1:
-                value = memory.readByte(address) & 0xFFL;
-                break;
-            default:
-                throw new EmulatorException(Strings.ff("TBI: read memory size (%d)", bytesToRead));
-            }
-        }
-        catch(MemoryException e) {
-            throw new EmulatorException("ERROR: cant read memory");
+    public long readMemory(long address, int bytesToRead) {
+        if(frame != null) {
+            frame.beforeRead(address, bytesToRead);
         }
+        long value = memory.read(address, bytesToRead);
+        afterRead(address, bytesToRead, value);
         return value;
     }
 
+    private void afterRead(long address, int bytesToRead, long value) {
+        if(watchpoints != null && watchpoints.isTagged(address, bytesToRead)) {
+            watch(MemoryWatchpoint.READ, address, bytesToRead, value);
+        }
+        if(profile != null) {
+            profile.recordRead(address, bytesToRead);
+        }
+    }
+
     /**
      * Write memory with default endianness.
      * 
@@ -283,43 +768,78 @@ public class EmulatorState {
      * @param bytesToWrite
      */
     public void writeMemory(long address, long value, int bytesToWrite) {
-        try {
-            switch(bytesToWrite) {
-            case 8:
-                memory.writeLong(address, value);
-                break;
-            case 4:
-                memory.writeInt(address, (int)value);
-                break;
-            case 2:
-                memory.writeShort(address, (short)value);
-                break;
-            case 1:
-                memory.writeByte(address, (byte)value);
-                break;
-            default:
-                throw new EmulatorException(Strings.ff("TBI: write memory size (%d)", bytesToWrite));
-            }
+        if(frame != null) {
+            frame.beforeWrite(address, bytesToWrite);
         }
-        catch(MemoryException e) {
-            throw new EmulatorException("ERROR: cant write memory");
+        if(watchpoints != null && watchpoints.isTagged(address, bytesToWrite)) {
+            watch(MemoryWatchpoint.WRITE, address, bytesToWrite, value);
         }
+        if(profile != null) {
+            profile.recordWrite(address, bytesToWrite);
+        }
+        memory.write(address, value, bytesToWrite);
     }
 
     public void setRegisterValue(int id, long value) {
-        registers.put(id, value);
+        int slot = registers.slotOf(id);
+        registers.setSlot(slot, value);
+        registerWritten(slot);
     }
 
     /**
      * Get register value
+     * <p>
+     * Note: the returned value is boxed; primitive accessors are {@link #isRegisterDefined(int)}
+     * and {@link #getRegister(int)}.
      * 
      * @param id
      * @return register value, null if not set
      */
     public Long getRegisterValue(int id) {
+        return registers.isDefined(id) ? registers.get(id): null;
+    }
+
+    /**
+     * Check if a register has been set.
+     * 
+     * @param id
+     * @return true if register is set
+     */
+    public boolean isRegisterDefined(int id) {
+        return registers.isDefined(id);
+    }
+
+    /**
+     * Get register value
+     * 
+     * @param id
+     * @return register value, 0 if not set (see {@link #isRegisterDefined(int)})
+     */
+    public long getRegister(int id) {
         return registers.get(id);
     }
 
+    /**
+     * Remap the registers to the slots of a table, eg the one of the method to be emulated (see
+     * {@link CompiledMethod#getRegisterSlots()}).
+     */
+    void bindRegisterSlots(RegisterFile.SlotTable table) {
+        registers.rebind(table);
+    }
+
+    boolean isRegisterSlotDefined(int slot) {
+        return registers.isSlotDefined(slot);
+    }
+
+    long getRegisterSlot(int slot) {
+        return registers.getSlot(slot);
+    }
+
+    void setRegisterSlot(int slot, long value) {
+        registers.setSlot(slot, value);
+        registerWritten(slot);
+    }
+
     public Integer getDefaultPointerSize() {
         return defaultPointerSize;
     }
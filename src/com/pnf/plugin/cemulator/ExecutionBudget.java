@@ -0,0 +1,200 @@
+package com.pnf.plugin.cemulator;
+
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Limits and throughput counters of an emulation run.
+ * <p>
+ * Limits apply to the number of emulated statements and handlers, to the wall-clock time since
+ * {@link #start()}, and to the JVM heap in use; 0 means no limit. The statement limit is checked
+ * on every statement (see {@link SimpleCEmulator#setBudget(ExecutionBudget)}), the other ones
+ * every {@link #CHECK_INTERVAL} statements within a handler, and between handlers (see
+ * {@link #check()}), so that an emulation stuck in a handler is stopped as well. A reached limit
+ * raises an {@link ExceededException}.
+ * <p>
+ * Counters are updated by the emulator thread, and can be read from any other thread, eg to report
+ * the progress of a run.
+ */
+public class ExecutionBudget {
+
+    /** number of statements between two checks of the time and memory limits, within a handler */
+    public static final int CHECK_INTERVAL = 0x10000;
+
+    /**
+     * Raised when a limit of the budget is reached.
+     */
+    public static class ExceededException extends EmulatorException {
+        private static final long serialVersionUID = 1L;
+
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private long maxStatements;
+    private long maxHandlers;
+    private long maxTimeMillis;
+    private long maxMemory;
+
+    private volatile long startNanos = System.nanoTime();
+    private volatile long statements;
+    private volatile long handlers;
+    private volatile long emulationNanos;
+    private volatile long decompilationNanos;
+
+    public long getMaxStatements() {
+        return maxStatements;
+    }
+
+    /**
+     * @param maxStatements maximum number of emulated statements, 0 for no limit
+     */
+    public void setMaxStatements(long maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    public long getMaxHandlers() {
+        return maxHandlers;
+    }
+
+    /**
+     * @param maxHandlers maximum number of emulated handlers, 0 for no limit
+     */
+    public void setMaxHandlers(long maxHandlers) {
+        this.maxHandlers = maxHandlers;
+    }
+
+    public long getMaxTimeMillis() {
+        return maxTimeMillis;
+    }
+
+    /**
+     * @param maxTimeMillis maximum duration of the run, in milliseconds, 0 for no limit
+     */
+    public void setMaxTimeMillis(long maxTimeMillis) {
+        this.maxTimeMillis = maxTimeMillis;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * @param maxMemory maximum size of the JVM heap in use, in bytes, 0 for no limit
+     */
+    public void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Reset the counters, and start the clock.
+     */
+    public void start() {
+        statements = 0;
+        handlers = 0;
+        emulationNanos = 0;
+        decompilationNanos = 0;
+        startNanos = System.nanoTime();
+    }
+
+    void addEmulation(long statementCount, long nanos) {
+        statements += statementCount;
+        emulationNanos += nanos;
+    }
+
+    void addHandlers(long handlerCount) {
+        handlers += handlerCount;
+    }
+
+    void addDecompilation(long nanos) {
+        decompilationNanos += nanos;
+    }
+
+    /**
+     * Get the number of statements left to emulate.
+     *
+     * @return remaining statements, Long.MAX_VALUE if there is no limit
+     */
+    long getRemainingStatements() {
+        return maxStatements > 0 ? Math.max(maxStatements - statements, 0): Long.MAX_VALUE;
+    }
+
+    /**
+     * Check the handler, time and memory limits.
+     *
+     * @throws ExceededException if a limit is reached
+     */
+    public void check() {
+        if(maxHandlers > 0 && handlers >= maxHandlers) {
+            throw new ExceededException(Strings.ff("handler limit reached (%d)", maxHandlers));
+        }
+        checkResources();
+    }
+
+    /**
+     * Check the time and memory limits.
+     *
+     * @throws ExceededException if a limit is reached
+     */
+    void checkResources() {
+        if(maxTimeMillis > 0 && getElapsedMillis() >= maxTimeMillis) {
+            throw new ExceededException(Strings.ff("time limit reached (%d ms)", maxTimeMillis));
+        }
+        if(maxMemory > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            if(used >= maxMemory) {
+                throw new ExceededException(Strings.ff("memory limit reached (%d MB in use)", used >> 20));
+            }
+        }
+    }
+
+    /**
+     * Get the number of statements emulated by completed handler emulations.
+     */
+    public long getStatements() {
+        return statements;
+    }
+
+    public long getHandlers() {
+        return handlers;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Get the time spent in emulations, in milliseconds.
+     */
+    public long getEmulationMillis() {
+        return emulationNanos / 1000000;
+    }
+
+    /**
+     * Get the time the emulator waited for decompilations, in milliseconds.
+     */
+    public long getDecompilationMillis() {
+        return decompilationNanos / 1000000;
+    }
+
+    public double getStatementsPerSecond() {
+        return perSecond(statements);
+    }
+
+    public double getHandlersPerSecond() {
+        return perSecond(handlers);
+    }
+
+    private double perSecond(long count) {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? count * 1000.0 / elapsed: 0;
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("%d statements (%.0f/s), %d handlers (%.1f/s), emulation %d ms, decompilation %d ms, "
+                + "elapsed %d ms", statements, getStatementsPerSecond(), handlers, getHandlersPerSecond(),
+                getEmulationMillis(), getDecompilationMillis(), getElapsedMillis());
+    }
+}
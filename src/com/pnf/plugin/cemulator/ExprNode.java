@@ -0,0 +1,648 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICCall;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICExpression;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIdentifier;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICType;
+import com.pnfsoftware.jeb.util.format.Strings;
+import com.pnfsoftware.jeb.util.math.MathUtil;
+
+/**
+ * Executable expression node, produced by lowering an {@link ICExpression} (see
+ * {@link CompiledMethod}).
+ * <p>
+ * Each node class corresponds to one expression kind (or one operator type), with its operands and
+ * constants resolved at lowering time. Evaluation semantics mirror
+ * {@link SimpleCEmulator#evaluateExpression(ICExpression)}.
+ */
+abstract class ExprNode {
+
+    /** source expression, kept for error reporting */
+    final ICExpression expression;
+
+    ExprNode(ICExpression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Evaluate the expression on the emulator's current state.
+     *
+     * @param emu
+     * @return expression value
+     */
+    abstract long eval(SimpleCEmulator emu);
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + expression + ")";
+    }
+
+    /**
+     * Expression that can not be emulated; evaluation fails, as the AST interpreter would.
+     */
+    static final class Unsupported extends ExprNode {
+        private final String message;
+
+        Unsupported(ICExpression expression, String message) {
+            super(expression);
+            this.message = message;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            throw new EmulatorException(message);
+        }
+    }
+
+    static final class Constant extends ExprNode {
+        final long value;
+
+        Constant(ICExpression expression, long value) {
+            super(expression);
+            this.value = value;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return value;
+        }
+    }
+
+    /**
+     * Identifier stored in the register file.
+     */
+    static final class Register extends ExprNode {
+        final ICIdentifier var;
+        final int id;
+        /** register slot, resolved once at lowering time */
+        final int slot;
+
+        Register(ICIdentifier var, int slot) {
+            super(var);
+            this.var = var;
+            id = var.getId();
+            this.slot = slot;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            EmulatorState state = emu.state;
+            if(!state.isRegisterSlotDefined(slot)) {
+                SimpleCEmulator.logger.info("> warning: non initialized identifier (%s) -- defining it to 0L", var);
+                return 0L;
+            }
+            return state.getRegisterSlot(slot);
+        }
+    }
+
+    /**
+     * Identifier stored in memory (local or global variable).
+     */
+    static final class MemoryVariable extends ExprNode {
+        final ICIdentifier var;
+        /** slot of the local in the method frame, -1 if not promoted (see {@link FrameLayout}) */
+        int frameSlot = -1;
+
+        MemoryVariable(ICIdentifier var) {
+            super(var);
+            this.var = var;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return emu.state.readVariable(frameSlot, var);
+        }
+    }
+
+    static final class Predicate extends ExprNode {
+        final ExprNode opnd;
+
+        Predicate(ICExpression expression, ExprNode opnd) {
+            super(expression);
+            this.opnd = opnd;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd.eval(emu) != 0 ? 1L: 0L;
+        }
+    }
+
+    /**
+     * Call used as an expression; its value is the return register.
+     */
+    static final class Call extends ExprNode {
+        final CallSite callSite;
+
+        Call(ICCall call, CallSite callSite) {
+            super(call);
+            this.callSite = callSite;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            callSite.invoke(emu);
+            EmulatorState state = emu.state;
+            if(!state.isRegisterSlotDefined(SimpleCEmulator.REG_RAX_SLOT)) {
+                throw new EmulatorException(Strings.ff("ERROR: undefined return value (%s)", expression));
+            }
+            return state.getRegisterSlot(SimpleCEmulator.REG_RAX_SLOT);
+        }
+    }
+
+    /**
+     * Call target, shared by call statements and call expressions. Mirrors
+     * {@link SimpleCEmulator#evaluateCall(ICCall)}.
+     */
+    static final class CallSite {
+        final ICCall call;
+        /** resolved callee, null if target is computed */
+        final ICMethod callee;
+        final List<ICExpression> arguments;
+        /** computed target, null if callee is resolved */
+        final ExprNode target;
+
+        CallSite(ICCall call, ExprNode target) {
+            this.call = call;
+            callee = call.getMethod();
+            arguments = call.getArguments();
+            this.target = target;
+        }
+
+        /** cached resolution of the callee's model, valid for the given registry state */
+        private SimulatedFunctionRegistry resolvedRegistry;
+        private int resolvedModCount;
+        private SimulatedFunction resolved;
+
+        private SimulatedFunction resolve(SimpleCEmulator emu) {
+            SimulatedFunctionRegistry registry = emu.getSimulatedFunctions();
+            if(registry != resolvedRegistry || registry.getModCount() != resolvedModCount) {
+                resolved = emu.resolveSimulatedFunction(callee);
+                resolvedRegistry = registry;
+                resolvedModCount = registry.getModCount();
+            }
+            return resolved;
+        }
+
+        void invoke(SimpleCEmulator emu) {
+            if(callee != null) {
+                long returnValue = emu.simulateCall(call, arguments, resolve(emu));
+                emu.state.setRegisterSlot(SimpleCEmulator.REG_RAX_SLOT, returnValue);
+            }
+            else {
+                emu.state.setRegisterSlot(SimpleCEmulator.REG_NEXT_METHOD_SLOT, target.eval(emu));
+            }
+        }
+    }
+
+    /*
+     * Operators
+     */
+
+    abstract static class Unary extends ExprNode {
+        final ExprNode opnd1;
+
+        Unary(ICExpression expression, ExprNode opnd1) {
+            super(expression);
+            this.opnd1 = opnd1;
+        }
+
+        /**
+         * Read memory at the given address, for dereference nodes (whose operand is the address).
+         */
+        long load(EmulatorState state, long address) {
+            throw new EmulatorException(Strings.ff("ERROR: not a dereference (%s)", expression));
+        }
+    }
+
+    abstract static class Binary extends ExprNode {
+        final ExprNode opnd1;
+        final ExprNode opnd2;
+
+        Binary(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression);
+            this.opnd1 = opnd1;
+            this.opnd2 = opnd2;
+        }
+    }
+
+    static final class Add extends Binary {
+        Add(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) + opnd2.eval(emu);
+        }
+    }
+
+    static final class And extends Binary {
+        And(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) & opnd2.eval(emu);
+        }
+    }
+
+    static final class Cast extends Unary {
+        final ICType castType;
+
+        Cast(ICExpression expression, ExprNode opnd1, ICType castType) {
+            super(expression, opnd1);
+            this.castType = castType;
+        }
+
+        long mask(EmulatorState state) {
+            return state.getCastMask(castType);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) & mask(emu.state);
+        }
+    }
+
+    static final class Cond extends ExprNode {
+        final ExprNode opnd1;
+        final ExprNode opnd2;
+        final ExprNode opnd3;
+
+        Cond(ICExpression expression, ExprNode opnd1, ExprNode opnd2, ExprNode opnd3) {
+            super(expression);
+            this.opnd1 = opnd1;
+            this.opnd2 = opnd2;
+            this.opnd3 = opnd3;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) != 0 ? opnd2.eval(emu): opnd3.eval(emu);
+        }
+    }
+
+    static final class Div extends Binary {
+        Div(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) / opnd2.eval(emu);
+        }
+    }
+
+    static final class Eq extends Binary {
+        Eq(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) == opnd2.eval(emu) ? 1L: 0L;
+        }
+    }
+
+    static final class Ge extends Binary {
+        Ge(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) >= opnd2.eval(emu) ? 1L: 0L;
+        }
+    }
+
+    static final class Gt extends Binary {
+        Gt(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) > opnd2.eval(emu) ? 1L: 0L;
+        }
+    }
+
+    static final class Le extends Binary {
+        Le(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) <= opnd2.eval(emu) ? 1L: 0L;
+        }
+    }
+
+    static final class LogAnd extends Binary {
+        LogAnd(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return (opnd1.eval(emu) != 0 && opnd2.eval(emu) != 0) ? 1L: 0L;
+        }
+    }
+
+    static final class LogIdent extends Unary {
+        LogIdent(ICExpression expression, ExprNode opnd1) {
+            super(expression, opnd1);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu);
+        }
+    }
+
+    static final class LogNot extends Unary {
+        LogNot(ICExpression expression, ExprNode opnd1) {
+            super(expression, opnd1);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) != 0 ? 0L: 1L;
+        }
+    }
+
+    static final class LogOr extends Binary {
+        LogOr(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return (opnd1.eval(emu) != 0 || opnd2.eval(emu) != 0) ? 1L: 0L;
+        }
+    }
+
+    static final class Lt extends Binary {
+        Lt(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) < opnd2.eval(emu) ? 1L: 0L;
+        }
+    }
+
+    static final class Mul extends Binary {
+        Mul(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) * opnd2.eval(emu);
+        }
+    }
+
+    static final class Ne extends Binary {
+        Ne(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) != opnd2.eval(emu) ? 1L: 0L;
+        }
+    }
+
+    static final class Neg extends Unary {
+        Neg(ICExpression expression, ExprNode opnd1) {
+            super(expression, opnd1);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return -opnd1.eval(emu);
+        }
+    }
+
+    static final class Not extends Unary {
+        Not(ICExpression expression, ExprNode opnd1) {
+            super(expression, opnd1);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return ~opnd1.eval(emu);
+        }
+    }
+
+    static final class Or extends Binary {
+        Or(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) | opnd2.eval(emu);
+        }
+    }
+
+    /**
+     * Dereference of an identifier: read size is the identifier's base type size.
+     */
+    static final class PtrIdentifier extends Unary {
+        final ICType pointerType;
+
+        PtrIdentifier(ICExpression expression, ExprNode opnd1, ICType pointerType) {
+            super(expression, opnd1);
+            this.pointerType = pointerType;
+        }
+
+        @Override
+        long load(EmulatorState state, long address) {
+            return state.readMemorySafe(address, state.getBaseTypeSize(pointerType));
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return load(emu.state, opnd1.eval(emu));
+        }
+    }
+
+    /**
+     * Dereference of a casted address: read size is the cast base type size, and read value is
+     * sign-extended.
+     */
+    static final class PtrCast extends Unary {
+        final ICType castType;
+
+        /**
+         * @param opnd1 casted address (ie, the cast operand)
+         */
+        PtrCast(ICExpression expression, ExprNode opnd1, ICType castType) {
+            super(expression, opnd1);
+            this.castType = castType;
+        }
+
+        @Override
+        long load(EmulatorState state, long address) {
+            int derefCastSize = state.getBaseTypeSize(castType);
+            long value = state.readMemorySafe(address, derefCastSize);
+            return MathUtil.signExtend(value, derefCastSize * 8);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return load(emu.state, opnd1.eval(emu));
+        }
+    }
+
+    /**
+     * Dereference of pointer arithmetic, with an identifiable base pointer (see
+     * {@link SimpleCEmulator#getBasePointer}).
+     */
+    static final class PtrBasePointer extends Unary {
+        final ICType basePointerType;
+
+        PtrBasePointer(ICExpression expression, ExprNode opnd1, ICType basePointerType) {
+            super(expression, opnd1);
+            this.basePointerType = basePointerType;
+        }
+
+        @Override
+        long load(EmulatorState state, long address) {
+            return state.readMemorySafe(address, state.getBaseTypeSize(basePointerType));
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return load(emu.state, opnd1.eval(emu));
+        }
+    }
+
+    /**
+     * Dereference of pointer arithmetic, without base pointer: read size is the default pointer
+     * size.
+     */
+    static final class PtrDefault extends Unary {
+        PtrDefault(ICExpression expression, ExprNode opnd1) {
+            super(expression, opnd1);
+        }
+
+        @Override
+        long load(EmulatorState state, long address) {
+            Integer pointerSize = state.getDefaultPointerSize();
+            if(pointerSize == null) {
+                throw new EmulatorException("cant find size to read for PTR operation");
+            }
+            return state.readMemorySafe(address, pointerSize);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return load(emu.state, opnd1.eval(emu));
+        }
+    }
+
+    static final class PtrConstant extends ExprNode {
+        final long address;
+
+        PtrConstant(ICExpression expression, long address) {
+            super(expression);
+            this.address = address;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            EmulatorState state = emu.state;
+            SimpleCEmulator.logger.info("> warning: read with fixed size (%d) at address %x",
+                    state.getDefaultPointerSize(), address);
+            return state.readMemorySafe(address, state.getDefaultPointerSize());
+        }
+    }
+
+    static final class Ref extends ExprNode {
+        final ICIdentifier var;
+
+        Ref(ICExpression expression, ICIdentifier var) {
+            super(expression);
+            this.var = var;
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return emu.state.getVarAddress(var);
+        }
+    }
+
+    static final class Rem extends Binary {
+        Rem(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) % opnd2.eval(emu);
+        }
+    }
+
+    static final class Shl extends Binary {
+        Shl(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) << opnd2.eval(emu);
+        }
+    }
+
+    static final class Shr extends Binary {
+        Shr(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) >> opnd2.eval(emu);
+        }
+    }
+
+    static final class Sub extends Binary {
+        Sub(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) - opnd2.eval(emu);
+        }
+    }
+
+    static final class Ushr extends Binary {
+        Ushr(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) >>> opnd2.eval(emu);
+        }
+    }
+
+    static final class Xor extends Binary {
+        Xor(ICExpression expression, ExprNode opnd1, ExprNode opnd2) {
+            super(expression, opnd1, opnd2);
+        }
+
+        @Override
+        long eval(SimpleCEmulator emu) {
+            return opnd1.eval(emu) ^ opnd2.eval(emu);
+        }
+    }
+}
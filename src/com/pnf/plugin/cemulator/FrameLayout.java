@@ -0,0 +1,355 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.CIdentifierClass;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIdentifier;
+
+/**
+ * Stack frame layout of a lowered method: the local variables it accesses, with their offsets from
+ * the frame base (see {@link EmulatorState#getVarAddress(ICIdentifier)}).
+ * <p>
+ * Locals whose address is never taken (no REF operator on them) are promoted to frame slots: while
+ * the method is emulated, their values are held in a {@link Frame}, and only written back to stack
+ * memory when the emulation ends, or when another memory access overlaps them. The lowered nodes
+ * accessing promoted locals hold their slot index.
+ */
+final class FrameLayout {
+
+    static final FrameLayout EMPTY = new FrameLayout(new ICIdentifier[0]);
+
+    /** promoted locals, indexed by slot */
+    final ICIdentifier[] locals;
+    /** slot offsets from the frame base */
+    final long[] offsets;
+    /** slots sorted by offset */
+    private final int[] order;
+
+    private FrameLayout(ICIdentifier[] locals) {
+        this.locals = locals;
+        offsets = new long[locals.length];
+        Integer[] sorted = new Integer[locals.length];
+        for(int i = 0; i < locals.length; i++) {
+            offsets[i] = locals[i].getAddress();
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, Comparator.comparingLong(slot -> offsets[slot]));
+        order = new int[locals.length];
+        for(int i = 0; i < locals.length; i++) {
+            order[i] = sorted[i];
+        }
+    }
+
+    /**
+     * Compute the frame layout of a lowered method, and assign frame slots to its nodes.
+     *
+     * @param statements statement nodes of the method
+     * @return layout
+     */
+    static FrameLayout build(List<StmNode> statements) {
+        Collector collector = new Collector();
+        for(StmNode stm: statements) {
+            collector.visit(stm);
+        }
+        if(collector.reads.isEmpty() && collector.writes.isEmpty()) {
+            return EMPTY;
+        }
+
+        Map<Integer, Integer> slots = new HashMap<>();
+        List<ICIdentifier> locals = new ArrayList<>();
+        for(ExprNode.MemoryVariable node: collector.reads) {
+            node.frameSlot = collector.getSlot(node.var, slots, locals);
+        }
+        for(StmNode.AssignVariable node: collector.writes) {
+            node.frameSlot = collector.getSlot(node.var, slots, locals);
+        }
+        return locals.isEmpty() ? EMPTY: new FrameLayout(locals.toArray(new ICIdentifier[locals.size()]));
+    }
+
+    /**
+     * Lowered tree walker, collecting accesses to locals.
+     */
+    private static class Collector {
+        final List<ExprNode.MemoryVariable> reads = new ArrayList<>();
+        final List<StmNode.AssignVariable> writes = new ArrayList<>();
+        /** IDs of locals whose address is taken */
+        final Set<Integer> referenced = new HashSet<>();
+
+        int getSlot(ICIdentifier var, Map<Integer, Integer> slots, List<ICIdentifier> locals) {
+            if(referenced.contains(var.getId())) {
+                return -1;
+            }
+            Integer slot = slots.get(var.getId());
+            if(slot == null) {
+                slot = locals.size();
+                locals.add(var);
+                slots.put(var.getId(), slot);
+            }
+            return slot;
+        }
+
+        void visit(StmNode stm) {
+            if(stm instanceof StmNode.Return) {
+                visit(((StmNode.Return)stm).value);
+            }
+            else if(stm instanceof StmNode.AssignVariable) {
+                StmNode.AssignVariable assign = (StmNode.AssignVariable)stm;
+                if(assign.var.getIdentifierClass() == CIdentifierClass.LOCAL) {
+                    writes.add(assign);
+                }
+                visit(assign.right);
+            }
+            else if(stm instanceof StmNode.AssignMemory) {
+                visit(((StmNode.AssignMemory)stm).address);
+                visit(((StmNode.AssignMemory)stm).right);
+            }
+            else if(stm instanceof StmNode.If) {
+                for(ExprNode predicate: ((StmNode.If)stm).predicates) {
+                    visit(predicate);
+                }
+            }
+            else if(stm instanceof StmNode.While) {
+                visit(((StmNode.While)stm).predicate);
+            }
+            else if(stm instanceof StmNode.Call) {
+                visit(((StmNode.Call)stm).callSite.target);
+            }
+            else if(stm instanceof StmNode.JumpFar) {
+                visit(((StmNode.JumpFar)stm).target);
+            }
+        }
+
+        void visit(ExprNode expr) {
+            if(expr instanceof ExprNode.MemoryVariable) {
+                ExprNode.MemoryVariable variable = (ExprNode.MemoryVariable)expr;
+                if(variable.var.getIdentifierClass() == CIdentifierClass.LOCAL) {
+                    reads.add(variable);
+                }
+            }
+            else if(expr instanceof ExprNode.Ref) {
+                referenced.add(((ExprNode.Ref)expr).var.getId());
+            }
+            else if(expr instanceof ExprNode.Unary) {
+                visit(((ExprNode.Unary)expr).opnd1);
+            }
+            else if(expr instanceof ExprNode.Binary) {
+                visit(((ExprNode.Binary)expr).opnd1);
+                visit(((ExprNode.Binary)expr).opnd2);
+            }
+            else if(expr instanceof ExprNode.Cond) {
+                visit(((ExprNode.Cond)expr).opnd1);
+                visit(((ExprNode.Cond)expr).opnd2);
+                visit(((ExprNode.Cond)expr).opnd3);
+            }
+            else if(expr instanceof ExprNode.Predicate) {
+                visit(((ExprNode.Predicate)expr).opnd);
+            }
+            else if(expr instanceof ExprNode.Call) {
+                visit(((ExprNode.Call)expr).callSite.target);
+            }
+        }
+    }
+
+    /**
+     * Number of promoted locals.
+     */
+    int size() {
+        return locals.length;
+    }
+
+    /**
+     * Values of the promoted locals during one emulation of a method. Frames are created by
+     * {@link EmulatorState#enterFrame(FrameLayout)}, and stacked when emulations are nested.
+     * <p>
+     * A slot is loaded from memory on first read, and written through to memory on first write (so
+     * that memory errors are raised where they would be without promotion); later writes are kept
+     * in the frame until written back. Slots whose width is not 1, 2, 4 or 8 bytes, which overlap
+     * another promoted local, or which lie on a watched page (see {@link MemoryWatchpoint}), are not
+     * promoted in the frame and are accessed in memory.
+     */
+    static final class Frame {
+        private static final byte VALID = 1;
+        private static final byte DIRTY = 2;
+        private static final byte DIRECT = 4;
+
+        final FrameLayout layout;
+        final Frame previous;
+        private final EmulatorState state;
+
+        private final long[] values;
+        private final int[] widths;
+        private final byte[] flags;
+        /** frame base address, and memory range covered by promoted slots */
+        private long base;
+        private long low;
+        private long high;
+        /** number of dirty slots */
+        private int dirtyCount;
+
+        Frame(FrameLayout layout, EmulatorState state, Frame previous) {
+            this.layout = layout;
+            this.state = state;
+            this.previous = previous;
+            values = new long[layout.size()];
+            widths = new int[layout.size()];
+            flags = new byte[layout.size()];
+            bind();
+        }
+
+        /**
+         * Resolve the frame base and the slot widths.
+         */
+        private void bind() {
+            base = state.getRegisterSlot(SimpleCEmulator.REG_RBP_SLOT) + 8;
+            low = Long.MAX_VALUE;
+            high = Long.MIN_VALUE;
+            if(state.getMemoryProfile() != null || !state.isRegisterSlotDefined(SimpleCEmulator.REG_RBP_SLOT)) {
+                // profiles count the accesses of the emulated code; without base pointer, accesses
+                // raise an error (see EmulatorState#getVarAddress)
+                Arrays.fill(flags, DIRECT);
+                return;
+            }
+            int previousSlot = -1;
+            long previousEnd = Long.MIN_VALUE;
+            for(int slot: layout.order) {
+                int width;
+                try {
+                    width = state.getTypeSize(layout.locals[slot].getType());
+                }
+                catch(EmulatorException e) {
+                    // raised again if the local is accessed
+                    width = 0;
+                }
+                widths[slot] = width;
+                if(width != 1 && width != 2 && width != 4 && width != 8) {
+                    flags[slot] = DIRECT;
+                    continue;
+                }
+                long start = base + layout.offsets[slot];
+                if(state.isWatched(start, width)) {
+                    // accesses must be seen by watchpoints
+                    flags[slot] = DIRECT;
+                    continue;
+                }
+                if(start < previousEnd) {
+                    // overlapping locals: keep both in memory
+                    flags[slot] = DIRECT;
+                    flags[previousSlot] = DIRECT;
+                }
+                if(start + width > previousEnd) {
+                    previousEnd = start + width;
+                    previousSlot = slot;
+                }
+            }
+            for(int slot = 0; slot < flags.length; slot++) {
+                if((flags[slot] & DIRECT) == 0) {
+                    long start = base + layout.offsets[slot];
+                    low = Math.min(low, start);
+                    high = Math.max(high, start + widths[slot]);
+                }
+            }
+        }
+
+        /**
+         * Check if a slot is held by the frame.
+         *
+         * @param slot frame slot, -1 if none
+         */
+        boolean isPromoted(int slot) {
+            return slot >= 0 && (flags[slot] & DIRECT) == 0;
+        }
+
+        long read(int slot) {
+            if((flags[slot] & VALID) == 0) {
+                values[slot] = state.rawMemory().read(base + layout.offsets[slot], widths[slot]);
+                flags[slot] |= VALID;
+            }
+            return values[slot];
+        }
+
+        void write(int slot, long value) {
+            int width = widths[slot];
+            long masked = width == 8 ? value: value & ((1L << (width * 8)) - 1);
+            if((flags[slot] & VALID) == 0) {
+                state.rawMemory().write(base + layout.offsets[slot], value, width);
+                flags[slot] |= VALID;
+            }
+            else if((flags[slot] & DIRTY) == 0) {
+                flags[slot] |= DIRTY;
+                dirtyCount++;
+            }
+            values[slot] = masked;
+        }
+
+        /**
+         * Write back dirty slots overlapping a memory range, before it is read.
+         */
+        void beforeRead(long address, long size) {
+            long end = rangeEnd(address, size);
+            if(dirtyCount > 0 && address < high && low < end) {
+                sync(address, end, false);
+            }
+        }
+
+        /**
+         * Write back and drop slots overlapping a memory range, before it is written.
+         */
+        void beforeWrite(long address, long size) {
+            long end = rangeEnd(address, size);
+            if(address < high && low < end) {
+                sync(address, end, true);
+            }
+        }
+
+        private static long rangeEnd(long address, long size) {
+            long end = address + size;
+            return end < address ? Long.MAX_VALUE: end;
+        }
+
+        private void sync(long start, long end, boolean drop) {
+            for(int slot = 0; slot < flags.length; slot++) {
+                long slotStart = base + layout.offsets[slot];
+                if((flags[slot] & DIRECT) == 0 && start < slotStart + widths[slot] && slotStart < end) {
+                    if((flags[slot] & DIRTY) != 0) {
+                        state.rawMemory().write(slotStart, values[slot], widths[slot]);
+                        dirtyCount--;
+                    }
+                    flags[slot] &= drop ? ~(VALID | DIRTY): ~DIRTY;
+                }
+            }
+        }
+
+        /**
+         * Write back all dirty slots.
+         */
+        void flush() {
+            if(dirtyCount > 0) {
+                sync(low, high, false);
+            }
+        }
+
+        /**
+         * Write back all dirty slots, and drop all slot values.
+         */
+        void invalidate() {
+            sync(low, high, true);
+        }
+
+        /**
+         * Write back all slots, and resolve the frame again, eg after a change of the base
+         * pointer register.
+         */
+        void rebind() {
+            invalidate();
+            Arrays.fill(flags, (byte)0);
+            bind();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Detection of the handler sequences a tracer run loops through (eg, the dispatch cycles of an
+ * obfuscating VM), for {@link CEmulatorPlugin}.
+ * <p>
+ * Handler transitions are recorded with {@link #record(long, ICMethod)}. Once a sequence has been
+ * repeated {@link #getThreshold()} times in a row, it becomes a {@link Region}, entered at the
+ * handler that completed the repetitions: regions are run by the tracer without going back to its
+ * outer loop (no per-handler decompiler lookup nor reporting), each transition being guarded by
+ * the successor address recorded for it. Regions whose guards keep failing before the end of the
+ * sequence are dropped.
+ * <p>
+ * Handlers of a region are still emulated one at a time, each from its own lowered form (see
+ * {@link MethodCache}): the sequence is not lowered as a whole. The methods of a region are checked
+ * against the current decompilation of its handlers on each entry (see
+ * {@link #refresh(Region, DecompilationPipeline.Decompiler)}), so that a region never runs stale
+ * methods, nor makes the method cache lower them again.
+ */
+public class HandlerRegions {
+
+    /** default number of consecutive repetitions of a sequence before it becomes a region */
+    public static final int DEFAULT_THRESHOLD = 8;
+    /** maximum number of handlers of a region */
+    public static final int MAX_LENGTH = 256;
+
+    /**
+     * Recurring handler sequence.
+     */
+    public static class Region {
+        final long[] addresses;
+        final ICMethod[] methods;
+
+        long runs;
+        long handlers;
+        long sideExits;
+        /** consecutive runs left before the end of the sequence */
+        int earlyExits;
+
+        Region(long[] addresses, ICMethod[] methods) {
+            this.addresses = addresses;
+            this.methods = methods;
+        }
+
+        public long getEntryAddress() {
+            return addresses[0];
+        }
+
+        public int getLength() {
+            return addresses.length;
+        }
+
+        /**
+         * Get the address of the handler following the i-th one, as recorded.
+         */
+        public long getSuccessor(int i) {
+            return addresses[(i + 1) % addresses.length];
+        }
+
+        public long getAddress(int i) {
+            return addresses[i];
+        }
+
+        public ICMethod getMethod(int i) {
+            return methods[i];
+        }
+
+        @Override
+        public String toString() {
+            return Strings.ff("region 0x%X (%d handlers, %d runs, %d handlers emulated, %d side exits)",
+                    addresses[0], addresses.length, runs, handlers, sideExits);
+        }
+    }
+
+    private final int threshold;
+
+    /** last recorded handlers, indexed by position modulo the buffer size */
+    private final long[] history = new long[MAX_LENGTH];
+    private final ICMethod[] historyMethods = new ICMethod[MAX_LENGTH];
+    private long position;
+    /** last position of each handler */
+    private final Map<Long, Long> lastPositions = new HashMap<>();
+    /** period of the current streak, 0 if none, and number of handlers matching it */
+    private int period;
+    private long matched;
+
+    private final Map<Long, Region> regions = new HashMap<>();
+    private int createdCount;
+    private int droppedCount;
+    private int refreshedCount;
+
+    public HandlerRegions() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold number of consecutive repetitions of a sequence before it becomes a region
+     */
+    public HandlerRegions(int threshold) {
+        if(threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Record the emulation of a handler by the outer loop.
+     *
+     * @param address routine address
+     * @param method decompiled method
+     * @return region entered at this handler, if the handler completed a recurring sequence (or
+     *         already enters a region), null otherwise
+     */
+    public Region record(long address, ICMethod method) {
+        Region region = regions.get(address);
+        if(region != null) {
+            return region;
+        }
+
+        if(period > 0 && history[(int)((position - period) % MAX_LENGTH)] == address) {
+            matched++;
+        }
+        else {
+            // new candidate period: distance to the previous occurrence
+            Long last = lastPositions.get(address);
+            period = last != null && position - last <= MAX_LENGTH ? (int)(position - last): 0;
+            matched = 0;
+        }
+        if(period > 0 && matched >= (long)threshold * period) {
+            long[] addresses = new long[period];
+            ICMethod[] methods = new ICMethod[period];
+            for(int i = 0; i < period; i++) {
+                int index = (int)((position - period + i) % MAX_LENGTH);
+                addresses[i] = history[index];
+                methods[i] = historyMethods[index];
+            }
+            region = new Region(addresses, methods);
+            regions.put(address, region);
+            createdCount++;
+            period = 0;
+        }
+
+        int index = (int)(position % MAX_LENGTH);
+        history[index] = address;
+        historyMethods[index] = method;
+        lastPositions.put(address, position);
+        position++;
+        return region;
+    }
+
+    /**
+     * Get the region entered at a handler.
+     *
+     * @return region, null if none
+     */
+    public Region get(long address) {
+        return regions.get(address);
+    }
+
+    /**
+     * Replace the methods of a region that are not the current decompilation of their handler, eg
+     * handlers decompiled again since the region was created.
+     *
+     * @param region
+     * @param decompiler provider of the current decompiled methods
+     * @return number of replaced methods
+     */
+    public int refresh(Region region, DecompilationPipeline.Decompiler decompiler) {
+        int replaced = 0;
+        for(int i = 0; i < region.methods.length; i++) {
+            ICMethod method = decompiler.decompile(region.addresses[i]);
+            if(method != region.methods[i]) {
+                region.methods[i] = method;
+                replaced++;
+            }
+        }
+        refreshedCount += replaced;
+        return replaced;
+    }
+
+    /**
+     * Report the end of a region run.
+     *
+     * @param region
+     * @param handlers number of handlers emulated by the run
+     * @param sideExit true if a guard failed (ie, the run left the sequence)
+     */
+    public void exit(Region region, long handlers, boolean sideExit) {
+        region.runs++;
+        region.handlers += handlers;
+        if(sideExit) {
+            region.sideExits++;
+        }
+        if(sideExit && handlers < region.getLength()) {
+            if(++region.earlyExits >= threshold) {
+                // sequence is not recurring anymore
+                regions.remove(region.getEntryAddress());
+                droppedCount++;
+            }
+        }
+        else {
+            region.earlyExits = 0;
+        }
+        // transitions inside the region are not recorded
+        period = 0;
+    }
+
+    /**
+     * Forget all regions and transitions, eg after handlers were modified.
+     */
+    public void clear() {
+        regions.clear();
+        lastPositions.clear();
+        period = 0;
+    }
+
+    public int getRegionCount() {
+        return regions.size();
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("HandlerRegions(active=%d, created=%d, dropped=%d, refreshed methods=%d)", regions.size(),
+                createdCount, droppedCount, refreshedCount);
+    }
+}
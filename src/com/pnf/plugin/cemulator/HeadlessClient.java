@@ -2,6 +2,9 @@ package com.pnf.plugin.cemulator;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.pnf.plugin.cemulator.EmulatorState.MemoryDump;
 import com.pnfsoftware.jeb.client.HeadlessClientContext;
@@ -35,6 +38,31 @@ public class HeadlessClient {
     static Long stackBasePointer = null;
     static Long heapBaseAddress = null;
     static File heapDump = null;
+    static File dumpManifest = null;
+    static File coreFile = null;
+    static boolean referenceMode = false;
+    static Integer jitThreshold = null;
+    static Integer methodCacheSize = null;
+    static Integer decompilerThreads = null;
+    static Integer regionThreshold = null;
+    static boolean binaryTrace = false;
+    static Integer traceCapacity = null;
+    static Long logRotationSize = null;
+    static boolean logCompression = false;
+    static boolean pagedMemory = false;
+    static String watchpoints = null;
+    static File memoryProfilePath = null;
+    static boolean memoryProfileLines = false;
+    static File checkpointPath = null;
+    static Integer checkpointInterval = null;
+    static boolean resume = false;
+    static File decompilationCache = null;
+    static Long maxStatements = null;
+    static Long maxHandlers = null;
+    static Long maxTime = null;
+    static Long maxMemory = null;
+    static int statsInterval = 10;
+    static Integer allocationCheck = null;
 
     public static void main(String[] args) throws JebException, IOException {
         HeadlessClientContext client = new HeadlessClientContext() {
@@ -52,14 +80,36 @@ public class HeadlessClient {
 
         IEnginesContext engctx = client.getEnginesContext();
 
-        // process target file
-        IRuntimeProject prj = engctx.loadProject("ProjectTest");
-        prj.processArtifact(new Artifact(targetExecutablePath.getName(), new FileInput(targetExecutablePath)));
+        // process target file (or load its analysis from the cache)
+        DecompilationCache cache = null;
+        IRuntimeProject prj;
+        boolean warm = false;
+        if(decompilationCache != null) {
+            cache = new DecompilationCache(decompilationCache, targetExecutablePath);
+            logger.i("> decompilation cache: %s", cache);
+            warm = cache.isWarm();
+            prj = cache.open(engctx);
+            if(!warm) {
+                // analysis is cached before any emulation
+                saveCache(cache, engctx, prj);
+            }
+        }
+        else {
+            prj = engctx.loadProject("ProjectTest");
+            prj.processArtifact(new Artifact(targetExecutablePath.getName(), new FileInput(targetExecutablePath)));
+        }
 
         // execute plugin
+        CEmulatorPlugin plugin = null;
+        boolean succeeded = false;
         try {
-            CEmulatorPlugin plugin;
-            if(stackDump != null && heapDump != null) {
+            if(coreFile != null) {
+                plugin = new CEmulatorPlugin(targetRoutineAddress, ElfCore.load(coreFile), stackBasePointer);
+            }
+            else if(dumpManifest != null) {
+                plugin = new CEmulatorPlugin(targetRoutineAddress, DumpManifest.load(dumpManifest), stackBasePointer);
+            }
+            else if(stackDump != null && heapDump != null) {
                 plugin = new CEmulatorPlugin(targetRoutineAddress,
                         new MemoryDump(stackBaseAddress, stackDump, stackBasePointer),
                         new MemoryDump(heapBaseAddress, heapDump));
@@ -70,15 +120,118 @@ public class HeadlessClient {
             if(logPath != null) {
                 plugin.setLogFile(logPath);
             }
-            plugin.execute(client.getEnginesContext());
+            plugin.setReferenceMode(referenceMode);
+            if(jitThreshold != null) {
+                plugin.setJitThreshold(jitThreshold);
+            }
+            if(methodCacheSize != null) {
+                plugin.setMethodCacheSize(methodCacheSize);
+            }
+            if(decompilerThreads != null) {
+                plugin.setDecompilerThreads(decompilerThreads);
+            }
+            if(regionThreshold != null) {
+                plugin.setRegionThreshold(regionThreshold);
+            }
+            if(logRotationSize != null) {
+                plugin.setLogRotationSize(logRotationSize);
+            }
+            plugin.setLogCompression(logCompression);
+            plugin.setPagedMemory(pagedMemory);
+            if(cache != null) {
+                // emulated memory must not reach the cached project
+                plugin.setPagedMemory(true);
+                plugin.setExportMemory(false);
+            }
+            if(watchpoints != null) {
+                plugin.setWatchpoints(watchpoints);
+            }
+            if(memoryProfilePath != null) {
+                plugin.setMemoryProfile(memoryProfilePath, memoryProfileLines);
+            }
+            if(checkpointPath != null) {
+                plugin.setCheckpoint(checkpointPath, checkpointInterval != null ? checkpointInterval
+                        : CEmulatorPlugin.DEFAULT_CHECKPOINT_INTERVAL);
+            }
+            plugin.setResume(resume);
+            plugin.setBinaryTrace(binaryTrace);
+            if(traceCapacity != null) {
+                plugin.setTraceCapacity(traceCapacity);
+            }
+            if(allocationCheck != null) {
+                plugin.setAllocationCheck(allocationCheck);
+            }
+            ExecutionBudget budget = plugin.getBudget();
+            if(maxStatements != null) {
+                budget.setMaxStatements(maxStatements);
+            }
+            if(maxHandlers != null) {
+                budget.setMaxHandlers(maxHandlers);
+            }
+            if(maxTime != null) {
+                budget.setMaxTimeMillis(maxTime * 1000);
+            }
+            if(maxMemory != null) {
+                budget.setMaxMemory(maxMemory << 20);
+            }
+
+            // report the run's throughput periodically
+            ScheduledExecutorService stats = null;
+            if(statsInterval > 0) {
+                stats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "cemulator-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                stats.scheduleAtFixedRate(() -> logger.i("> stats: %s", budget), statsInterval, statsInterval,
+                        TimeUnit.SECONDS);
+            }
+            try {
+                plugin.execute(client.getEnginesContext());
+                succeeded = true;
+            }
+            finally {
+                if(stats != null) {
+                    stats.shutdownNow();
+                }
+            }
         }
         catch(Exception e) {
             logger.catching(e);
         }
 
+        // keep the handlers decompiled by the run, if the project was left as analyzed
+        if(cache != null) {
+            if(warm && plugin != null) {
+                // a warm run should only reuse the cached handlers (unless it reached new ones)
+                long decompilations = plugin.getHandlerDecompilationCount();
+                if(decompilations == 0) {
+                    logger.i("> decompilation cache: warm run, no handler decompiled");
+                }
+                else {
+                    logger.i("> warning: decompilation cache: warm run, yet %d handlers were decompiled", decompilations);
+                }
+            }
+            if(succeeded && !plugin.isProjectMemoryModified()) {
+                saveCache(cache, engctx, prj);
+            }
+            else {
+                logger.i("> decompilation cache not updated (failed run, or project memory modified)");
+            }
+        }
+
         client.stop();
     }
 
+    private static void saveCache(DecompilationCache cache, IEnginesContext engctx, IRuntimeProject prj) {
+        try {
+            cache.save(engctx, prj);
+        }
+        catch(IOException e) {
+            logger.i("> ERROR: cannot save decompilation cache (%s)", e.getMessage());
+        }
+    }
+
     private static void parseArguments(String[] args) {
         for(int i = 0; i < args.length; i += 2) {
             if(args[i].equals("--stack-dump")) {
@@ -98,6 +251,14 @@ public class HeadlessClient {
             else if(args[i].equals("--heap-base-adr")) {
                 heapBaseAddress = Long.decode(args[i + 1]);
             }
+            else if(args[i].equals("--dump-manifest")) {
+                dumpManifest = new File(args[i + 1]);
+                Assert.a(dumpManifest.isFile(), "cannot find dump-manifest");
+            }
+            else if(args[i].equals("--core")) {
+                coreFile = new File(args[i + 1]);
+                Assert.a(coreFile.isFile(), "cannot find core file");
+            }
             else if(args[i].equals("--target")) {
                 targetExecutablePath = new File(args[i + 1]);
                 Assert.a(targetExecutablePath.isFile(), "cannot find target exec");
@@ -105,6 +266,78 @@ public class HeadlessClient {
             else if(args[i].equals("--rtn")) {
                 targetRoutineAddress = Long.decode(args[i + 1]);
             }
+            else if(args[i].equals("--reference-mode")) {
+                referenceMode = Boolean.parseBoolean(args[i + 1]);
+            }
+            else if(args[i].equals("--jit-threshold")) {
+                jitThreshold = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--method-cache-size")) {
+                methodCacheSize = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--decompiler-threads")) {
+                decompilerThreads = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--decompilation-cache")) {
+                decompilationCache = new File(args[i + 1]);
+            }
+            else if(args[i].equals("--region-threshold")) {
+                regionThreshold = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--max-statements")) {
+                maxStatements = Long.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--max-handlers")) {
+                maxHandlers = Long.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--max-time")) {
+                maxTime = Long.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--max-memory")) {
+                maxMemory = Long.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--stats-interval")) {
+                statsInterval = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--binary-trace")) {
+                binaryTrace = Boolean.parseBoolean(args[i + 1]);
+            }
+            else if(args[i].equals("--trace-capacity")) {
+                traceCapacity = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--log-rotation-size")) {
+                logRotationSize = Long.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--log-compression")) {
+                logCompression = Boolean.parseBoolean(args[i + 1]);
+            }
+            else if(args[i].equals("--paged-memory")) {
+                pagedMemory = Boolean.parseBoolean(args[i + 1]);
+            }
+            else if(args[i].equals("--watch")) {
+                watchpoints = args[i + 1];
+            }
+            else if(args[i].equals("--memory-profile")) {
+                memoryProfilePath = new File(args[i + 1]);
+            }
+            else if(args[i].equals("--memory-profile-lines")) {
+                memoryProfileLines = Boolean.parseBoolean(args[i + 1]);
+            }
+            else if(args[i].equals("--checkpoint")) {
+                checkpointPath = new File(args[i + 1]);
+            }
+            else if(args[i].equals("--checkpoint-interval")) {
+                checkpointInterval = Integer.decode(args[i + 1]);
+            }
+            else if(args[i].equals("--resume")) {
+                // resumed runs keep checkpointing to the same file
+                checkpointPath = new File(args[i + 1]);
+                Assert.a(checkpointPath.isFile(), "cannot find checkpoint file");
+                resume = true;
+            }
+            else if(args[i].equals("--allocation-check")) {
+                allocationCheck = Integer.decode(args[i + 1]);
+            }
             else if(args[i].equals("--log")) {
                 logPath = new File(args[i + 1]);
                 Assert.a(logPath.isFile(), "cannot find log file");
@@ -115,7 +348,7 @@ public class HeadlessClient {
                 return;
             }
         }
-        if(targetExecutablePath == null || targetRoutineAddress == null) {
+        if(targetExecutablePath == null || (targetRoutineAddress == null && coreFile == null && !resume)) {
             logger.i("> ERROR: missing arguments");
             usage();
             return;
@@ -126,13 +359,38 @@ public class HeadlessClient {
         //@formatter:off
         logger.i("Usage: " + 
                 "--target path                  : path to executable file to emulate" +
-                "--rtn 0xAAAAAAAA               : address of first routine to emulate" +
+                "--rtn 0xAAAAAAAA               : address of first routine to emulate (optional with --core)" +
                 "--log path                     : path to logfile (optional)" +
+                "--log-rotation-size N          : rotate logfile every N bytes (optional)" +
+                "--log-compression true|false   : gzip logfile, written to logfile.gz (optional)" +
+                "--reference-mode true|false    : use reference AST interpreter (optional)" +
+                "--jit-threshold N              : emulations before a handler is compiled, -1 to disable (optional)" +
+                "--method-cache-size N          : number of handlers whose CFG and lowered form are cached, 0 to disable (optional)" +
+                "--decompiler-threads N         : number of threads decompiling handlers ahead, 0 to disable (optional)" +
+                "--decompilation-cache dir      : keep the target's analysis and decompiled handlers in dir, for later runs (optional)" +
+                "--region-threshold N           : repetitions of a handler sequence before it is run as a region, 0 to disable (optional)" +
+                "--max-statements N             : stop after N emulated statements (optional)" +
+                "--max-handlers N               : stop after N emulated handlers (optional)" +
+                "--max-time N                   : stop after N seconds (optional)" +
+                "--max-memory N                 : stop when the JVM heap in use reaches N MB (optional)" +
+                "--stats-interval N             : print throughput counters every N seconds, 0 to disable (optional, default 10)" +
+                "--binary-trace true|false      : record a binary trace, rendered at the end of the run (optional)" +
+                "--trace-capacity N             : number of binary trace records kept in memory (optional)" +
+                "--paged-memory true|false      : use emulator-owned paged memory (optional)" +
+                "--watch 0xAAAA[:N[:rw]],...    : log accesses to memory ranges (optional)" +
+                "--memory-profile path          : write memory access statistics to path.*.csv and path.json (optional)" +
+                "--memory-profile-lines true|false : also count accesses per 64-byte line (optional)" +
+                "--checkpoint path              : append run checkpoints to path (optional)" +
+                "--checkpoint-interval N        : number of handlers between checkpoints (optional)" +
+                "--resume path                  : resume from the last checkpoint of path, with the same target and dumps (optional)" +
+                "--allocation-check N           : count and check allocations of N emulations of the first routine, instead of the run (optional)" +
                 "--stack-dump path              : path to stack dump file (optional)" +
                 "--stack-base-adr 0xAAAAAAAA    : stack dump base address (optional)" +
                 "--stack-base-ptr 0xAAAAAAAA    : stack base pointer (optional)" +
                 "--heap-dump path               : path to heap dump file  (optional)" +
-                "--heap-base-adr 0xAAAAAAAA           : heap dump base address (optional)");
+                "--heap-base-adr 0xAAAAAAAA           : heap dump base address (optional)" +
+                "--dump-manifest path           : path to dump regions manifest, replaces stack/heap dumps (optional)" +
+                "--core path                    : path to ELF core file, replaces dumps; --stack-base-ptr overrides its RBP (optional)");
         //@formatter:on
     }
 }
@@ -0,0 +1,406 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JVM class file writer, used by {@link JitCompiler}. Produces a class with a no-arg
+ * constructor and a single method, made of {@code long} arithmetic, branches and calls.
+ * <p>
+ * Classes are emitted in version 49 (Java 5) so that no stack map frames are needed; the code
+ * size is limited to 16-bit branch offsets.
+ */
+class JitClassWriter {
+
+    // opcodes
+    static final int LCONST_0 = 0x09;
+    static final int LCONST_1 = 0x0A;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ALOAD_0 = 0x2A;
+    static final int ALOAD_1 = 0x2B;
+    static final int POP2 = 0x58;
+    static final int LADD = 0x61;
+    static final int LSUB = 0x65;
+    static final int LMUL = 0x69;
+    static final int LDIV = 0x6D;
+    static final int LREM = 0x71;
+    static final int LNEG = 0x75;
+    static final int LSHL = 0x79;
+    static final int LSHR = 0x7B;
+    static final int LUSHR = 0x7D;
+    static final int LAND = 0x7F;
+    static final int LOR = 0x81;
+    static final int LXOR = 0x83;
+    static final int L2I = 0x88;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IFLT = 0x9B;
+    static final int IFGE = 0x9C;
+    static final int IFGT = 0x9D;
+    static final int IFLE = 0x9E;
+    static final int GOTO = 0xA7;
+    static final int RETURN = 0xB1;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PROTECTED = 0x0004;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    /**
+     * Position in the code, possibly not yet known.
+     */
+    static class Label {
+        int position = -1;
+        /** branch instructions (offset of their opcode) to patch */
+        List<Integer> fixups = new ArrayList<>();
+    }
+
+    private final String className;
+    private final String superName;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private byte[] code = new byte[256];
+    private int codeLength;
+    private int stack;
+    private int maxStack;
+
+    /**
+     * @param className internal name of the generated class (eg, a/b/C)
+     * @param superName internal name of the super class
+     */
+    JitClassWriter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    /*
+     * Constant pool
+     */
+
+    private int utf8(String s) {
+        String key = "U" + s;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            index = addEntry(key, 1);
+            write(() -> {
+                pool.writeByte(1);
+                pool.writeUTF(s);
+            });
+        }
+        return index;
+    }
+
+    private int classRef(String internalName) {
+        String key = "C" + internalName;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            int nameIndex = utf8(internalName);
+            index = addEntry(key, 1);
+            write(() -> {
+                pool.writeByte(7);
+                pool.writeShort(nameIndex);
+            });
+        }
+        return index;
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            int nameIndex = utf8(name);
+            int descIndex = utf8(descriptor);
+            index = addEntry(key, 1);
+            write(() -> {
+                pool.writeByte(12);
+                pool.writeShort(nameIndex);
+                pool.writeShort(descIndex);
+            });
+        }
+        return index;
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            int classIndex = classRef(owner);
+            int natIndex = nameAndType(name, descriptor);
+            index = addEntry(key, 1);
+            write(() -> {
+                pool.writeByte(10);
+                pool.writeShort(classIndex);
+                pool.writeShort(natIndex);
+            });
+        }
+        return index;
+    }
+
+    private int longConstant(long value) {
+        String key = "J" + value;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            // long constants take two pool slots
+            index = addEntry(key, 2);
+            write(() -> {
+                pool.writeByte(5);
+                pool.writeLong(value);
+            });
+        }
+        return index;
+    }
+
+    private int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            index = addEntry(key, 1);
+            write(() -> {
+                pool.writeByte(3);
+                pool.writeInt(value);
+            });
+        }
+        return index;
+    }
+
+    private int addEntry(String key, int slots) {
+        int index = poolCount;
+        poolCount += slots;
+        if(poolCount > 0xFFFF) {
+            throw new JitCompiler.UnsupportedException("constant pool overflow");
+        }
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    private interface PoolWrite {
+        void run() throws IOException;
+    }
+
+    private static void write(PoolWrite w) {
+        try {
+            w.run();
+        }
+        catch(IOException e) {
+            // in-memory stream
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Code
+     */
+
+    private void emitByte(int b) {
+        if(codeLength == code.length) {
+            byte[] newCode = new byte[code.length * 2];
+            System.arraycopy(code, 0, newCode, 0, codeLength);
+            code = newCode;
+        }
+        code[codeLength++] = (byte)b;
+    }
+
+    private void emitShort(int s) {
+        emitByte(s >> 8);
+        emitByte(s);
+    }
+
+    private void adjustStack(int delta) {
+        stack += delta;
+        if(stack > maxStack) {
+            maxStack = stack;
+        }
+    }
+
+    int getStack() {
+        return stack;
+    }
+
+    /**
+     * Reset the tracked operand stack depth; used at branch targets.
+     */
+    void setStack(int stack) {
+        this.stack = stack;
+    }
+
+    /**
+     * Emit a simple instruction.
+     *
+     * @param opcode
+     * @param stackDelta effect on the operand stack, in slots
+     */
+    void insn(int opcode, int stackDelta) {
+        emitByte(opcode);
+        adjustStack(stackDelta);
+    }
+
+    void pushLong(long value) {
+        if(value == 0) {
+            insn(LCONST_0, 2);
+        }
+        else if(value == 1) {
+            insn(LCONST_1, 2);
+        }
+        else {
+            emitByte(LDC2_W);
+            emitShort(longConstant(value));
+            adjustStack(2);
+        }
+    }
+
+    void pushInt(int value) {
+        if(value >= -128 && value <= 127) {
+            emitByte(BIPUSH);
+            emitByte(value);
+        }
+        else if(value >= -32768 && value <= 32767) {
+            emitByte(SIPUSH);
+            emitShort(value);
+        }
+        else {
+            emitByte(LDC_W);
+            emitShort(intConstant(value));
+        }
+        adjustStack(1);
+    }
+
+    /**
+     * Invoke a method of the super class on 'this'.
+     *
+     * @param name
+     * @param descriptor
+     * @param stackDelta effect on the operand stack, including the receiver
+     */
+    void invokeSuper(String name, String descriptor, int stackDelta) {
+        emitByte(INVOKEVIRTUAL);
+        emitShort(methodRef(superName, name, descriptor));
+        adjustStack(stackDelta);
+    }
+
+    void mark(Label label) {
+        label.position = codeLength;
+    }
+
+    /**
+     * Emit a branch instruction (GOTO or IFxx).
+     */
+    void jump(int opcode, Label label) {
+        label.fixups.add(codeLength);
+        emitByte(opcode);
+        emitShort(0);
+        if(opcode != GOTO) {
+            adjustStack(-1);
+        }
+    }
+
+    int getCodeLength() {
+        return codeLength;
+    }
+
+    private void resolve(List<Label> labels) {
+        for(Label label: labels) {
+            for(int insnOffset: label.fixups) {
+                if(label.position < 0) {
+                    throw new JitCompiler.UnsupportedException("unbound label");
+                }
+                int delta = label.position - insnOffset;
+                if(delta < Short.MIN_VALUE || delta > Short.MAX_VALUE) {
+                    throw new JitCompiler.UnsupportedException("branch offset overflow");
+                }
+                code[insnOffset + 1] = (byte)(delta >> 8);
+                code[insnOffset + 2] = (byte)delta;
+            }
+        }
+    }
+
+    /**
+     * Build the class file.
+     *
+     * @param methodName name of the generated method
+     * @param methodDescriptor descriptor of the generated method
+     * @param maxLocals
+     * @param labels all labels used in the code
+     * @return class file bytes
+     */
+    byte[] toByteArray(String methodName, String methodDescriptor, int maxLocals, List<Label> labels) {
+        if(codeLength > 0xFFFF) {
+            throw new JitCompiler.UnsupportedException("method too large");
+        }
+        resolve(labels);
+
+        int thisIndex = classRef(className);
+        int superIndex = classRef(superName);
+        int initName = utf8("<init>");
+        int initDesc = utf8("()V");
+        int superInit = methodRef(superName, "<init>", "()V");
+        int codeAttr = utf8("Code");
+        int runName = utf8(methodName);
+        int runDesc = utf8(methodDescriptor);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(() -> {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            // constructor: aload_0, invokespecial super.<init>, return
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(initName);
+            out.writeShort(initDesc);
+            out.writeShort(1);
+            out.writeShort(codeAttr);
+            out.writeInt(12 + 5);
+            out.writeShort(1); // max stack
+            out.writeShort(1); // max locals
+            out.writeInt(5);
+            out.writeByte(ALOAD_0);
+            out.writeByte(INVOKESPECIAL);
+            out.writeShort(superInit);
+            out.writeByte(RETURN);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+
+            // generated method
+            out.writeShort(ACC_PROTECTED);
+            out.writeShort(runName);
+            out.writeShort(runDesc);
+            out.writeShort(1);
+            out.writeShort(codeAttr);
+            out.writeInt(12 + codeLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(codeLength);
+            out.write(code, 0, codeLength);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+
+            out.writeShort(0); // class attributes
+        });
+        return bytes.toByteArray();
+    }
+}
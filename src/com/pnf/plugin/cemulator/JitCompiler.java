@@ -0,0 +1,512 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pnf.plugin.cemulator.JitClassWriter.Label;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.util.format.Strings;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Tiered compilation of hot methods into JVM bytecode.
+ * <p>
+ * Methods are counted by routine address (see {@link #lookup(long, ICMethod)}); once a method has
+ * been emulated more than {@link #getThreshold()} times, its lowered form (see
+ * {@link CompiledMethod}) is translated into a JVM class extending {@link JittedMethod}, loaded
+ * with its own class loader, so that HotSpot can optimize the emulated code itself:
+ * <ul>
+ * <li>statements are laid out in a single JVM method, with CFG edges as real branches
+ * <li>arithmetic and logical operators are compiled into {@code long} instructions
+ * <li>memory, registers, calls and per-statement events go through {@link EmulatorState}, by
+ * calling back into the lowered nodes
+ * </ul>
+ * Methods containing a construct that can not be compiled stay with the interpreter.
+ * <p>
+ * Lookups may come from several threads. A compiled class is unloaded once its method is
+ * invalidated or decompiled again, and no longer being emulated.
+ */
+public class JitCompiler {
+    private static final ILogger logger = GlobalLog.getLogger(JitCompiler.class);
+
+    /** default number of emulations before a method gets compiled */
+    public static final int DEFAULT_THRESHOLD = 100;
+
+    private static final String BASE_CLASS = "com/pnf/plugin/cemulator/JittedMethod";
+    private static final String GENERATED_PACKAGE = "com/pnf/plugin/cemulator/jit/";
+    private static final String EMU = "Lcom/pnf/plugin/cemulator/SimpleCEmulator;";
+
+    /**
+     * Raised when a construct can not be compiled.
+     */
+    static class UnsupportedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class JitClassLoader extends ClassLoader {
+        JitClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /** counters and compiled version of a method (guarded by the entry's lock) */
+    private static class Entry {
+        final ICMethod method;
+        int count;
+        volatile JittedMethod jitted;
+        boolean failed;
+
+        Entry(ICMethod method) {
+            this.method = method;
+        }
+    }
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private volatile int threshold;
+    private final AtomicInteger classCount = new AtomicInteger();
+    /** register slots of the methods lowered by {@link #lookup(long, ICMethod)} */
+    private final RegisterFile.SlotTable registerSlots = new RegisterFile.SlotTable();
+
+    public JitCompiler() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold number of emulations of a method before it gets compiled
+     */
+    public JitCompiler(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Count an emulation of the method, and get its compiled version.
+     *
+     * @param routineAddress method address
+     * @param method method to be emulated
+     * @return compiled method, null if the method is not hot yet, or can not be compiled
+     */
+    public JittedMethod lookup(long routineAddress, ICMethod method) {
+        return lookup(routineAddress, method, null, registerSlots);
+    }
+
+    /**
+     * Count an emulation of the method, and get its compiled version.
+     *
+     * @param routineAddress method address
+     * @param method method to be emulated
+     * @param compiled lowered form of the method, eg from a {@link MethodCache}; null to lower the
+     *            method when it gets compiled
+     * @param registerSlots table of the register slots, used to lower the method
+     * @return compiled method, null if the method is not hot yet, or can not be compiled
+     */
+    public JittedMethod lookup(long routineAddress, ICMethod method, CompiledMethod compiled,
+            RegisterFile.SlotTable registerSlots) {
+        Entry entry = entries.get(routineAddress);
+        if(entry == null || entry.method != method) {
+            // new method, or method was decompiled again (the previous class can be unloaded)
+            entry = entries.compute(routineAddress,
+                    (address, current) -> current != null && current.method == method ? current: new Entry(method));
+        }
+        synchronized(entry) {
+            entry.count++;
+            if(entry.jitted == null && !entry.failed && entry.count > threshold) {
+                try {
+                    entry.jitted = compile(compiled != null ? compiled: CompiledMethod.compile(method, registerSlots));
+                    logger.info("> jit: compiled method %s (0x%x)", method.getName(), routineAddress);
+                }
+                catch(UnsupportedException e) {
+                    entry.failed = true;
+                    logger.info("> jit: cannot compile method %s (%s) -- staying with interpreter",
+                            method.getName(), e.getMessage());
+                }
+            }
+            return entry.jitted;
+        }
+    }
+
+    /**
+     * Forget a method's count and compiled version, eg after the method was modified.
+     *
+     * @param routineAddress method address
+     */
+    public void invalidate(long routineAddress) {
+        entries.remove(routineAddress);
+    }
+
+    /**
+     * Get the number of compiled methods.
+     */
+    public int getCompiledCount() {
+        int n = 0;
+        for(Entry entry: entries.values()) {
+            if(entry.jitted != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Translate a lowered method into a JVM class, and instantiate it. Each class is defined by its
+     * own loader, so that it can be unloaded with its method.
+     *
+     * @param compiled
+     * @return compiled method
+     * @throws UnsupportedException if the method contains constructs that can not be compiled
+     */
+    JittedMethod compile(CompiledMethod compiled) {
+        String className = GENERATED_PACKAGE + "Method" + classCount.getAndIncrement();
+        Generator gen = new Generator(compiled, className);
+        byte[] classBytes = gen.generate();
+        try {
+            JitClassLoader classLoader = new JitClassLoader(JittedMethod.class.getClassLoader());
+            Class<?> cls = classLoader.define(className.replace('/', '.'), classBytes);
+            JittedMethod jitted = (JittedMethod)cls.getDeclaredConstructor().newInstance();
+            jitted.bind(compiled, gen.exprs.toArray(new ExprNode[gen.exprs.size()]), gen.stms);
+            return jitted;
+        }
+        catch(ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedException(Strings.ff("class loading failed: %s", e));
+        }
+    }
+
+    /**
+     * Bytecode generation for one method.
+     */
+    private static class Generator {
+        final CompiledMethod compiled;
+        final JitClassWriter w;
+        final StmNode[] stms;
+        final Label[] stmLabels;
+        final Label exit = new Label();
+        final List<Label> labels = new ArrayList<>();
+        final List<ExprNode> exprs = new ArrayList<>();
+
+        Generator(CompiledMethod compiled, String className) {
+            this.compiled = compiled;
+            w = new JitClassWriter(className, BASE_CLASS);
+            stms = new StmNode[compiled.size()];
+            stmLabels = new Label[compiled.size()];
+            for(int i = 0; i < stms.length; i++) {
+                stms[i] = compiled.getStatementNode(i);
+                stmLabels[i] = newLabel();
+            }
+            labels.add(exit);
+        }
+
+        Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        byte[] generate() {
+            StmNode entryPoint = compiled.getEntryPoint();
+            if(entryPoint != null && entryPoint.index != 0) {
+                w.jump(JitClassWriter.GOTO, stmLabels[entryPoint.index]);
+            }
+            for(StmNode stm: stms) {
+                statement(stm);
+            }
+            w.mark(exit);
+            w.setStack(0);
+            w.insn(JitClassWriter.RETURN, 0);
+            return w.toByteArray("run", "(" + EMU + ")V", 2, labels);
+        }
+
+        private void loadEmuAndIndex(int index) {
+            w.insn(JitClassWriter.ALOAD_0, 1);
+            w.insn(JitClassWriter.ALOAD_1, 1);
+            w.pushInt(index);
+        }
+
+        private void jumpTo(StmNode from, StmNode target) {
+            if(target == null) {
+                w.jump(JitClassWriter.GOTO, exit);
+            }
+            else if(target.index != from.index + 1) {
+                w.jump(JitClassWriter.GOTO, stmLabels[target.index]);
+            }
+            // else: fallthrough to next emitted statement
+        }
+
+        private void branchIfTrue(ExprNode predicate, StmNode target) {
+            expression(predicate);
+            w.insn(JitClassWriter.LCONST_0, 2);
+            w.insn(JitClassWriter.LCMP, -3);
+            w.jump(JitClassWriter.IFNE, target != null ? stmLabels[target.index]: exit);
+        }
+
+        private void statement(StmNode stm) {
+            w.mark(stmLabels[stm.index]);
+            w.setStack(0);
+
+            // statement events (trace, callbacks)
+            loadEmuAndIndex(stm.index);
+            w.invokeSuper("enter", "(" + EMU + "I)V", -3);
+
+            if(stm instanceof StmNode.Nop) {
+                jumpTo(stm, stm.next);
+            }
+            else if(stm instanceof StmNode.Return) {
+                ExprNode value = ((StmNode.Return)stm).value;
+                if(value != null) {
+                    loadEmuAndIndex(SimpleCEmulator.REG_RAX_SLOT);
+                    expression(value);
+                    w.invokeSuper("setRegister", "(" + EMU + "IJ)V", -5);
+                }
+                jumpTo(stm, stm.next);
+            }
+            else if(stm instanceof StmNode.AssignVariable) {
+                loadEmuAndIndex(stm.index);
+                expression(((StmNode.AssignVariable)stm).right);
+                w.invokeSuper("assignVariable", "(" + EMU + "IJ)V", -5);
+                jumpTo(stm, stm.next);
+            }
+            else if(stm instanceof StmNode.AssignMemory) {
+                StmNode.AssignMemory assign = (StmNode.AssignMemory)stm;
+                loadEmuAndIndex(stm.index);
+                expression(assign.right);
+                expression(assign.address);
+                w.invokeSuper("assignMemory", "(" + EMU + "IJJ)V", -7);
+                jumpTo(stm, stm.next);
+            }
+            else if(stm instanceof StmNode.If) {
+                StmNode.If ifStm = (StmNode.If)stm;
+                for(int i = 0; i < ifStm.predicates.length; i++) {
+                    branchIfTrue(ifStm.predicates[i], ifStm.targets[i]);
+                }
+                jumpTo(stm, ifStm.defaultTarget);
+            }
+            else if(stm instanceof StmNode.While) {
+                StmNode.While wStm = (StmNode.While)stm;
+                branchIfTrue(wStm.predicate, wStm.bodyTarget);
+                jumpTo(stm, stm.next);
+            }
+            else if(stm instanceof StmNode.Call) {
+                loadEmuAndIndex(stm.index);
+                w.invokeSuper("call", "(" + EMU + "I)V", -3);
+                jumpTo(stm, stm.next);
+            }
+            else if(stm instanceof StmNode.JumpFar) {
+                loadEmuAndIndex(SimpleCEmulator.REG_NEXT_METHOD_SLOT);
+                expression(((StmNode.JumpFar)stm).target);
+                w.invokeSuper("setRegister", "(" + EMU + "IJ)V", -5);
+                jumpTo(stm, stm.next);
+            }
+            else {
+                throw new UnsupportedException(Strings.ff("statement %s", stm));
+            }
+        }
+
+        private int register(ExprNode expr) {
+            exprs.add(expr);
+            return exprs.size() - 1;
+        }
+
+        private void binary(ExprNode.Binary expr, int opcode) {
+            expression(expr.opnd1);
+            expression(expr.opnd2);
+            w.insn(opcode, -2);
+        }
+
+        private void shift(ExprNode.Binary expr, int opcode) {
+            expression(expr.opnd1);
+            expression(expr.opnd2);
+            w.insn(JitClassWriter.L2I, -1);
+            w.insn(opcode, -1);
+        }
+
+        /**
+         * Turn the int on top of the stack into 1L if the given condition holds, 0L otherwise.
+         */
+        private void toBoolean(int ifOpcode) {
+            Label isTrue = newLabel();
+            Label end = newLabel();
+            w.jump(ifOpcode, isTrue);
+            int depth = w.getStack();
+            w.pushLong(0);
+            w.jump(JitClassWriter.GOTO, end);
+            w.mark(isTrue);
+            w.setStack(depth);
+            w.pushLong(1);
+            w.mark(end);
+        }
+
+        private void compare(ExprNode.Binary expr, int ifOpcode) {
+            expression(expr.opnd1);
+            expression(expr.opnd2);
+            w.insn(JitClassWriter.LCMP, -3);
+            toBoolean(ifOpcode);
+        }
+
+        /**
+         * Push the comparison of an expression with zero.
+         */
+        private void compareToZero(ExprNode expr) {
+            expression(expr);
+            w.insn(JitClassWriter.LCONST_0, 2);
+            w.insn(JitClassWriter.LCMP, -3);
+        }
+
+        private void logical(ExprNode.Binary expr, boolean isAnd) {
+            // short-circuit: exit on first false (and) / true (or) operand
+            Label shortCircuit = newLabel();
+            Label end = newLabel();
+            int depth = w.getStack();
+            int shortCircuitOpcode = isAnd ? JitClassWriter.IFEQ: JitClassWriter.IFNE;
+            compareToZero(expr.opnd1);
+            w.jump(shortCircuitOpcode, shortCircuit);
+            compareToZero(expr.opnd2);
+            w.jump(shortCircuitOpcode, shortCircuit);
+            w.pushLong(isAnd ? 1: 0);
+            w.jump(JitClassWriter.GOTO, end);
+            w.mark(shortCircuit);
+            w.setStack(depth);
+            w.pushLong(isAnd ? 0: 1);
+            w.mark(end);
+        }
+
+        private void callback(ExprNode expr, String name, String descriptor, int stackDelta) {
+            loadEmuAndIndex(register(expr));
+            w.invokeSuper(name, descriptor, stackDelta);
+        }
+
+        private void expression(ExprNode expr) {
+            if(expr instanceof ExprNode.Constant) {
+                w.pushLong(((ExprNode.Constant)expr).value);
+            }
+            else if(expr instanceof ExprNode.Add) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LADD);
+            }
+            else if(expr instanceof ExprNode.Sub) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LSUB);
+            }
+            else if(expr instanceof ExprNode.Mul) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LMUL);
+            }
+            else if(expr instanceof ExprNode.Div) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LDIV);
+            }
+            else if(expr instanceof ExprNode.Rem) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LREM);
+            }
+            else if(expr instanceof ExprNode.And) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LAND);
+            }
+            else if(expr instanceof ExprNode.Or) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LOR);
+            }
+            else if(expr instanceof ExprNode.Xor) {
+                binary((ExprNode.Binary)expr, JitClassWriter.LXOR);
+            }
+            else if(expr instanceof ExprNode.Shl) {
+                shift((ExprNode.Binary)expr, JitClassWriter.LSHL);
+            }
+            else if(expr instanceof ExprNode.Shr) {
+                shift((ExprNode.Binary)expr, JitClassWriter.LSHR);
+            }
+            else if(expr instanceof ExprNode.Ushr) {
+                shift((ExprNode.Binary)expr, JitClassWriter.LUSHR);
+            }
+            else if(expr instanceof ExprNode.Neg) {
+                expression(((ExprNode.Unary)expr).opnd1);
+                w.insn(JitClassWriter.LNEG, 0);
+            }
+            else if(expr instanceof ExprNode.Not) {
+                expression(((ExprNode.Unary)expr).opnd1);
+                w.pushLong(-1L);
+                w.insn(JitClassWriter.LXOR, -2);
+            }
+            else if(expr instanceof ExprNode.Eq) {
+                compare((ExprNode.Binary)expr, JitClassWriter.IFEQ);
+            }
+            else if(expr instanceof ExprNode.Ne) {
+                compare((ExprNode.Binary)expr, JitClassWriter.IFNE);
+            }
+            else if(expr instanceof ExprNode.Lt) {
+                compare((ExprNode.Binary)expr, JitClassWriter.IFLT);
+            }
+            else if(expr instanceof ExprNode.Le) {
+                compare((ExprNode.Binary)expr, JitClassWriter.IFLE);
+            }
+            else if(expr instanceof ExprNode.Gt) {
+                compare((ExprNode.Binary)expr, JitClassWriter.IFGT);
+            }
+            else if(expr instanceof ExprNode.Ge) {
+                compare((ExprNode.Binary)expr, JitClassWriter.IFGE);
+            }
+            else if(expr instanceof ExprNode.Predicate) {
+                compareToZero(((ExprNode.Predicate)expr).opnd);
+                toBoolean(JitClassWriter.IFNE);
+            }
+            else if(expr instanceof ExprNode.LogNot) {
+                compareToZero(((ExprNode.Unary)expr).opnd1);
+                toBoolean(JitClassWriter.IFEQ);
+            }
+            else if(expr instanceof ExprNode.LogIdent) {
+                expression(((ExprNode.Unary)expr).opnd1);
+            }
+            else if(expr instanceof ExprNode.LogAnd) {
+                logical((ExprNode.Binary)expr, true);
+            }
+            else if(expr instanceof ExprNode.LogOr) {
+                logical((ExprNode.Binary)expr, false);
+            }
+            else if(expr instanceof ExprNode.Cond) {
+                ExprNode.Cond cond = (ExprNode.Cond)expr;
+                Label elseLabel = newLabel();
+                Label end = newLabel();
+                int depth = w.getStack();
+                compareToZero(cond.opnd1);
+                w.jump(JitClassWriter.IFEQ, elseLabel);
+                expression(cond.opnd2);
+                w.jump(JitClassWriter.GOTO, end);
+                w.mark(elseLabel);
+                w.setStack(depth);
+                expression(cond.opnd3);
+                w.mark(end);
+            }
+            else if(expr instanceof ExprNode.Cast) {
+                expression(((ExprNode.Unary)expr).opnd1);
+                callback(expr, "castMask", "(" + EMU + "I)J", -1);
+                w.insn(JitClassWriter.LAND, -2);
+            }
+            else if(expr instanceof ExprNode.PtrIdentifier || expr instanceof ExprNode.PtrCast
+                    || expr instanceof ExprNode.PtrBasePointer || expr instanceof ExprNode.PtrDefault) {
+                loadEmuAndIndex(register(expr));
+                expression(((ExprNode.Unary)expr).opnd1);
+                w.invokeSuper("load", "(" + EMU + "IJ)J", -3);
+            }
+            else if(expr instanceof ExprNode.Register || expr instanceof ExprNode.MemoryVariable
+                    || expr instanceof ExprNode.PtrConstant || expr instanceof ExprNode.Ref
+                    || expr instanceof ExprNode.Call) {
+                // evaluated by the node itself
+                callback(expr, "eval", "(" + EMU + "I)J", -1);
+            }
+            else {
+                throw new UnsupportedException(Strings.ff("expression %s", expr));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.pnf.plugin.cemulator;
+
+/**
+ * Base class of the JVM classes generated by {@link JitCompiler} from a {@link CompiledMethod}.
+ * <p>
+ * Generated classes are defined by a private class loader, and hence can not access
+ * package-private members of the emulator; they call back into the emulator through the protected
+ * helpers below, which refer to the lowered nodes by their index in the tables bound at
+ * compilation time.
+ */
+public abstract class JittedMethod {
+
+    private CompiledMethod compiled;
+    private ExprNode[] exprs;
+    private StmNode[] stms;
+
+    protected JittedMethod() {
+    }
+
+    void bind(CompiledMethod compiled, ExprNode[] exprs, StmNode[] stms) {
+        this.compiled = compiled;
+        this.exprs = exprs;
+        this.stms = stms;
+    }
+
+    public CompiledMethod getCompiledMethod() {
+        return compiled;
+    }
+
+    /**
+     * Run the method, starting at its entry point.
+     *
+     * @param emu
+     */
+    protected abstract void run(SimpleCEmulator emu);
+
+    void execute(SimpleCEmulator emu) {
+        run(emu);
+    }
+
+    /*
+     * Helpers called by generated code
+     */
+
+    protected final void enter(SimpleCEmulator emu, int stm) {
+        emu.enterStatement(stms[stm]);
+    }
+
+    protected final long eval(SimpleCEmulator emu, int expr) {
+        return exprs[expr].eval(emu);
+    }
+
+    protected final void setRegister(SimpleCEmulator emu, int slot, long value) {
+        emu.state.setRegisterSlot(slot, value);
+    }
+
+    protected final long castMask(SimpleCEmulator emu, int expr) {
+        return ((ExprNode.Cast)exprs[expr]).mask(emu.state);
+    }
+
+    protected final long load(SimpleCEmulator emu, int expr, long address) {
+        return ((ExprNode.Unary)exprs[expr]).load(emu.state, address);
+    }
+
+    protected final void assignVariable(SimpleCEmulator emu, int stm, long value) {
+        ((StmNode.AssignVariable)stms[stm]).assign(emu.state, value);
+    }
+
+    protected final void assignMemory(SimpleCEmulator emu, int stm, long value, long address) {
+        ((StmNode.AssignMemory)stms[stm]).store(emu.state, address, value);
+    }
+
+    protected final void call(SimpleCEmulator emu, int stm) {
+        ((StmNode.Call)stms[stm]).callSite.invoke(emu);
+    }
+}
@@ -0,0 +1,47 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICExpression;
+
+/**
+ * Simulated libc APIs, registered by default in {@link SimpleCEmulator}.
+ * <p>
+ * Memory routines evaluate their arguments at runtime, and are built on the bulk memory operations
+ * of {@link EmulatorState}.
+ */
+public class LibcFunctions implements SimulatedFunctionProvider {
+
+    @Override
+    public void register(SimulatedFunctionRegistry registry) {
+        registry.register("time", (emulator, call, arguments) -> 42L);
+        registry.register("srand", (emulator, call, arguments) -> 37L);
+        SimulatedFunction memmove = (emulator, call, arguments) -> {
+            long dst = argument(emulator, arguments, 0);
+            long src = argument(emulator, arguments, 1);
+            emulator.getState().copyMemory(src, dst, argument(emulator, arguments, 2));
+            return dst;
+        };
+        registry.register("memcpy", memmove);
+        registry.register("memmove", memmove);
+        registry.register("memset", (emulator, call, arguments) -> {
+            long dst = argument(emulator, arguments, 0);
+            long value = argument(emulator, arguments, 1);
+            emulator.getState().fillMemory(dst, (byte)value, argument(emulator, arguments, 2));
+            return dst;
+        });
+        registry.register("memcmp", (emulator, call, arguments) -> (long)emulator.getState().compareMemory(
+                argument(emulator, arguments, 0), argument(emulator, arguments, 1), argument(emulator, arguments, 2)));
+        registry.register("strlen", (emulator, call, arguments) -> emulator.getState()
+                .getStringLength(argument(emulator, arguments, 0)));
+        registry.register("strcmp", (emulator, call, arguments) -> (long)emulator.getState()
+                .compareStrings(argument(emulator, arguments, 0), argument(emulator, arguments, 1)));
+    }
+
+    private static long argument(SimpleCEmulator emulator, List<ICExpression> arguments, int index) {
+        if(index >= arguments.size()) {
+            throw new EmulatorException("ERROR: missing argument");
+        }
+        return emulator.evaluate(arguments.get(index));
+    }
+}
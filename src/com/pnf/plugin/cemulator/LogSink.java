@@ -0,0 +1,278 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.pnfsoftware.jeb.core.exceptions.JebRuntimeException;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Append-only log file, written by a background thread. Appended text is queued and written as
+ * is; the file is never rewritten. At most {@link #QUEUE_CAPACITY} texts can be pending: appending
+ * then waits for the writer. Written data is flushed to the file when the writer is idle, at most
+ * every {@link #FLUSH_INTERVAL_MILLIS}, and on request (see {@link #flush()}).
+ * <p>
+ * The file can be rotated when it reaches a given size (the current file is renamed file.1, the
+ * previous file.1 is renamed file.2, and so on), and its content can be gzip-compressed (the file
+ * is then named file.gz, and rotated files file.1.gz, file.2.gz, and so on).
+ */
+public class LogSink implements Closeable {
+
+    /** default number of rotated files kept */
+    public static final int DEFAULT_MAX_BACKUPS = 5;
+
+    /** maximum number of appended texts waiting to be written */
+    public static final int QUEUE_CAPACITY = 1024;
+
+    /** minimum delay between two flushes of written data, unless requested */
+    public static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    /** queue marker, requesting a flush */
+    private static final class FlushRequest {
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    private static final Object CLOSE_REQUEST = new Object();
+
+    private final File file;
+    private final long rotationSize;
+    private final int maxBackups;
+    private final boolean compress;
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile IOException error;
+    private boolean closed;
+
+    /** writer thread state */
+    private OutputStream out;
+    private long written;
+    /** true if data was written since the last flush, time of the last flush */
+    private boolean dirty;
+    private long lastFlushTime;
+
+    /**
+     * @param file log file, overwritten if it exists; with compression, ".gz" is appended to its
+     *            name
+     * @param rotationSize size in bytes (before compression) after which the file is rotated, 0
+     *            to disable rotation
+     * @param maxBackups number of rotated files kept, at least 1 if the file is rotated
+     * @param compress true to gzip the log content
+     * @throws IllegalArgumentException if the file is rotated without backup
+     */
+    public LogSink(File file, long rotationSize, int maxBackups, boolean compress) {
+        if(rotationSize > 0 && maxBackups <= 0) {
+            throw new IllegalArgumentException("rotated log file needs at least one backup");
+        }
+        this.file = compress ? new File(file.getPath() + ".gz"): file;
+        this.rotationSize = rotationSize;
+        this.maxBackups = maxBackups;
+        this.compress = compress;
+        writer = new Thread(this::writeLoop, "C emulator log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public LogSink(File file) {
+        this(file, 0, DEFAULT_MAX_BACKUPS, false);
+    }
+
+    /**
+     * Get the file being written (named file.gz with compression).
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Queue text to be appended to the log, waiting if too much text is pending.
+     */
+    public void append(CharSequence text) {
+        checkState();
+        if(text.length() > 0) {
+            try {
+                queue.put(Strings.encodeUTF8(text.toString()));
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait until all queued text has been written and flushed to the file.
+     */
+    public void flush() {
+        checkState();
+        FlushRequest request = new FlushRequest();
+        try {
+            queue.put(request);
+            request.done.await();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkState();
+    }
+
+    /**
+     * Write all queued text and close the file.
+     */
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(CLOSE_REQUEST);
+            writer.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(error != null) {
+            throw new JebRuntimeException("failed to write log file: " + error.getMessage());
+        }
+    }
+
+    private void checkState() {
+        if(closed) {
+            throw new IllegalStateException("log sink is closed");
+        }
+        if(error != null) {
+            throw new JebRuntimeException("failed to write log file: " + error.getMessage());
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while(true) {
+                // (data written since the last flush is flushed once idle for the flush interval)
+                Object item = dirty ? queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS): queue.take();
+                if(item == null) {
+                    flushQuietly();
+                    continue;
+                }
+                if(item == CLOSE_REQUEST) {
+                    break;
+                }
+                if(item instanceof FlushRequest) {
+                    flushQuietly();
+                    ((FlushRequest)item).done.countDown();
+                    continue;
+                }
+                write((byte[])item);
+                if(queue.isEmpty() && System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS) {
+                    // idle: push data to the file
+                    flushQuietly();
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            // stop writing
+        }
+        finally {
+            closeStream();
+            // release pending flush requests
+            for(Object item: queue) {
+                if(item instanceof FlushRequest) {
+                    ((FlushRequest)item).done.countDown();
+                }
+            }
+        }
+    }
+
+    private void write(byte[] data) {
+        if(error != null) {
+            return;
+        }
+        try {
+            if(out == null) {
+                open();
+            }
+            out.write(data);
+            written += data.length;
+            dirty = true;
+            if(rotationSize > 0 && written >= rotationSize) {
+                rotate();
+            }
+        }
+        catch(IOException e) {
+            error = e;
+        }
+    }
+
+    private void open() throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 0x10000);
+        out = compress ? new GZIPOutputStream(stream, 0x10000, true): stream;
+        written = 0;
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+        dirty = false;
+        File oldest = getBackup(maxBackups);
+        if(oldest.exists() && !oldest.delete()) {
+            throw new IOException("cannot delete " + oldest);
+        }
+        for(int i = maxBackups - 1; i >= 1; i--) {
+            File backup = getBackup(i);
+            if(backup.exists() && !backup.renameTo(getBackup(i + 1))) {
+                throw new IOException("cannot rename " + backup);
+            }
+        }
+        if(!file.renameTo(getBackup(1))) {
+            throw new IOException("cannot rename " + file);
+        }
+        // next file is opened on next write
+    }
+
+    /**
+     * Get the i-th rotated file (1 for the most recent one).
+     */
+    private File getBackup(int i) {
+        if(compress) {
+            String path = file.getPath();
+            return new File(path.substring(0, path.length() - ".gz".length()) + "." + i + ".gz");
+        }
+        return new File(file.getPath() + "." + i);
+    }
+
+    private void flushQuietly() {
+        dirty = false;
+        lastFlushTime = System.currentTimeMillis();
+        if(out != null && error == null) {
+            try {
+                out.flush();
+            }
+            catch(IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private void closeStream() {
+        if(out != null) {
+            try {
+                out.close();
+            }
+            catch(IOException e) {
+                if(error == null) {
+                    error = e;
+                }
+            }
+            out = null;
+        }
+    }
+}
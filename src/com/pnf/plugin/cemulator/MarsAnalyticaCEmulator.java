@@ -1,5 +1,8 @@
 package com.pnf.plugin.cemulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICConstantInteger;
@@ -33,6 +36,18 @@ public class MarsAnalyticaCEmulator extends SimpleCEmulator {
         defaultLogging = false; // MA emulator does its own logging for stack machine operations
     }
 
+    @Override
+    protected void saveCheckpointState(DataOutput out) throws IOException {
+        out.writeChar(currentChar);
+        out.writeLong(curFreeChunkAddr);
+    }
+
+    @Override
+    protected void restoreCheckpointState(DataInput in) throws IOException {
+        currentChar = in.readChar();
+        curFreeChunkAddr = in.readLong();
+    }
+
     @Override
     protected void preEmulateMethodCallback(ICMethod method, EmulatorState inputState) {
         if(method.getName().equals("sub_402AB2")) {
@@ -72,112 +87,112 @@ public class MarsAnalyticaCEmulator extends SimpleCEmulator {
         return;
     }
 
-    @Override
-    protected Long simulateWellKnownMethods(ICMethod calledMethod, List<ICExpression> parameters) {
-        Long defaultEmulationResult = super.simulateWellKnownMethods(calledMethod, parameters);
-        if(defaultEmulationResult != null) {
-            return defaultEmulationResult;
-        }
+    /** Stack machine handlers */
+    private static final long PUSH_ADDRESS = 0x400AAEL;
+    private static final long SET_ADDRESS = 0x400D55L;
+    private static final long GET_ADDRESS = 0x400D08L;
+    private static final long POP_ADDRESS = 0x4009D7L;
+    private static final long SWAP_ADDRESS = 0x402AB2L;
 
+    public MarsAnalyticaCEmulator() {
         /** MarsAnalytica's specific emulation */
+        SimulatedFunctionRegistry registry = getSimulatedFunctions();
 
         /** Inject dummy characters */
-        if(calledMethod.getName().equals("→getchar")) {
-            return (long)currentChar++;
-        }
-        if(calledMethod.getName().equals("→putchar")) {
+        registry.register("getchar", (emulator, call, parameters) -> currentChar++);
+        registry.register("putchar", (emulator, call, parameters) -> {
             logger.i("putchar");
             return 0L;
-        }
+        });
 
-        /**
-         * Stack machine handlers
-         */
+        registry.register(PUSH_ADDRESS, (emulator, call, parameters) -> simulatePush(parameters));
+        registry.register(SET_ADDRESS, (emulator, call, parameters) -> simulateSet(parameters));
+        registry.register(GET_ADDRESS, (emulator, call, parameters) -> simulateGet(parameters));
+        registry.register(POP_ADDRESS, (emulator, call, parameters) -> simulatePop(parameters));
+        registry.register(SWAP_ADDRESS, (emulator, call, parameters) -> {
+            outputLog.append(Strings.ff("S: SWAP"));
+            outputLog.append(Strings.LINESEP);
+            return 0L;
+        });
+    }
 
-        /** PUSH(STACK_PTR, VALUE) */
-        else if(calledMethod.getName().equals("sub_400AAE")) {
-            Long pStackPtr = evaluateExpression(parameters.get(0));
-            Long pValue = evaluateExpression(parameters.get(1));
+    /** PUSH(STACK_PTR, VALUE) */
+    private long simulatePush(List<ICExpression> parameters) {
+        long pStackPtr = evaluateExpression(parameters.get(0));
+        long pValue = evaluateExpression(parameters.get(1));
 
-            long newChunkAddr = allocateNewChunk();
+        long newChunkAddr = allocateNewChunk();
 
-            // write value
-            state.writeMemory(newChunkAddr + 8, pValue, 4);
+        // write value
+        state.writeMemory(newChunkAddr + 8, pValue, 4);
 
-            // link new chunk to existing stack
-            Long stackAdr = state.readMemory(pStackPtr, 8);
-            state.writeMemory(newChunkAddr, stackAdr, 8);
+        // link new chunk to existing stack
+        long stackAdr = state.readMemory(pStackPtr, 8);
+        state.writeMemory(newChunkAddr, stackAdr, 8);
 
-            // make new chunk the new stack head
-            state.writeMemory(pStackPtr, newChunkAddr, 8);
+        // make new chunk the new stack head
+        state.writeMemory(pStackPtr, newChunkAddr, 8);
 
-            outputLog.append(Strings.ff("S: PUSH %d", pValue));
-            outputLog.append(Strings.LINESEP);
+        outputLog.append(Strings.ff("S: PUSH %d", pValue));
+        outputLog.append(Strings.LINESEP);
 
-            if(popCounter == 2) {
-                // parameters.get(1) is an operation?
-                ICExpression expr = parameters.get(1);
-                if(expr instanceof ICOperation) {
-                    // cast + operation
-                    while(expr instanceof ICOperation && ((ICOperation)expr).getOperator().isCast()) {
-                        expr = ((ICOperation)expr).getFirstOperand();
-                    }
-                }
-                if(expr instanceof ICOperation) {
-                    outputLog.append(Strings.ff("  | operation: (%s,#op=%d)", ((ICOperation)expr).getOperator(),
-                            ((ICOperation)expr).getCountOfOperands()));
-                    outputLog.append(Strings.LINESEP);
-                    popCounter = 0;
+        if(popCounter == 2) {
+            // parameters.get(1) is an operation?
+            ICExpression expr = parameters.get(1);
+            if(expr instanceof ICOperation) {
+                // cast + operation
+                while(expr instanceof ICOperation && ((ICOperation)expr).getOperator().isCast()) {
+                    expr = ((ICOperation)expr).getFirstOperand();
                 }
             }
-
-            return 0L;
+            if(expr instanceof ICOperation) {
+                outputLog.append(Strings.ff("  | operation: (%s,#op=%d)", ((ICOperation)expr).getOperator(),
+                        ((ICOperation)expr).getCountOfOperands()));
+                outputLog.append(Strings.LINESEP);
+                popCounter = 0;
+            }
         }
-        /** SET(STACK_PTR, INDEX, VALUE) */
-        else if(calledMethod.getName().equals("sub_400D55")) {
-            Long pStackPtr = evaluateExpression(parameters.get(0));
-            Long pIndex = evaluateExpression(parameters.get(1));
-            Long pValue = evaluateExpression(parameters.get(2));
-            Long retVal = emulateSetElementFromEnd(pStackPtr, pIndex, pValue);
-
-            outputLog.append(Strings.ff("S: SET index:%d value:%d", pIndex, pValue));
-            outputLog.append(Strings.LINESEP);
 
-            return retVal;
-        }
-        /** GET(STACK_PTR, INDEX) */
-        else if(calledMethod.getName().equals("sub_400D08")) {
-            Long pStackPtr = evaluateExpression(parameters.get(0));
-            Long pIndex = evaluateExpression(parameters.get(1));
-            Long retVal = emulateGetElementFromEnd(pStackPtr, pIndex);
+        return 0L;
+    }
 
-            outputLog.append(Strings.ff("S: GET index:%d", pIndex));
-            outputLog.append(Strings.LINESEP);
+    /** SET(STACK_PTR, INDEX, VALUE) */
+    private long simulateSet(List<ICExpression> parameters) {
+        long pStackPtr = evaluateExpression(parameters.get(0));
+        long pIndex = evaluateExpression(parameters.get(1));
+        long pValue = evaluateExpression(parameters.get(2));
+        long retVal = emulateSetElementFromEnd(pStackPtr, pIndex, pValue);
 
-            return retVal;
-        }
-        /** POP(STACK_PTR) */
-        else if(calledMethod.getName().equals("sub_4009D7")) {
-            Long pStackPtr = evaluateExpression(parameters.get(0));
-            Long retVal = emulateUnlink(pStackPtr);
+        outputLog.append(Strings.ff("S: SET index:%d value:%d", pIndex, pValue));
+        outputLog.append(Strings.LINESEP);
 
-            outputLog.append(Strings.ff("S: POP (%d)", retVal));
-            outputLog.append(Strings.LINESEP);
+        return retVal;
+    }
 
-            popCounter++;
+    /** GET(STACK_PTR, INDEX) */
+    private long simulateGet(List<ICExpression> parameters) {
+        long pStackPtr = evaluateExpression(parameters.get(0));
+        long pIndex = evaluateExpression(parameters.get(1));
+        long retVal = emulateGetElementFromEnd(pStackPtr, pIndex);
 
-            return retVal;
-        }
-        else if(calledMethod.getName().equals("sub_402AB2")) {
-            outputLog.append(Strings.ff("S: SWAP"));
-            outputLog.append(Strings.LINESEP);
-
-            return 0L;
-        }
+        outputLog.append(Strings.ff("S: GET index:%d", pIndex));
+        outputLog.append(Strings.LINESEP);
 
-        return null;
+        return retVal;
     }
 
+    /** POP(STACK_PTR) */
+    private long simulatePop(List<ICExpression> parameters) {
+        long pStackPtr = evaluateExpression(parameters.get(0));
+        long retVal = emulateUnlink(pStackPtr);
+
+        outputLog.append(Strings.ff("S: POP (%d)", retVal));
+        outputLog.append(Strings.LINESEP);
+
+        popCounter++;
+
+        return retVal;
+    }
 
     private long allocateNewChunk() {
         long freeChunkAddr = curFreeChunkAddr;
@@ -186,7 +201,7 @@ public class MarsAnalyticaCEmulator extends SimpleCEmulator {
         return freeChunkAddr;
     }
 
-    private Long emulateSetElementFromEnd(Long param1, Long param2, Long param3) {
+    private long emulateSetElementFromEnd(long param1, long param2, long param3) {
         long lastIndex = emulateGetLength(param1) - 1;
         long curElement = param1;
         for(int i = 0; i != lastIndex - param2; i++) {
@@ -196,7 +211,7 @@ public class MarsAnalyticaCEmulator extends SimpleCEmulator {
         return curElement;
     }
 
-    private Long emulateGetElementFromEnd(Long param1, Long param2) {
+    private long emulateGetElementFromEnd(long param1, long param2) {
         long lastIndex = emulateGetLength(param1) - 1;
         long curElement = param1;
         for(int i = 0; i != lastIndex - param2; i++) {
@@ -205,7 +220,7 @@ public class MarsAnalyticaCEmulator extends SimpleCEmulator {
         return state.readMemory(curElement + 8, 4);
     }
 
-    private Long emulateGetLength(Long param1) {
+    private long emulateGetLength(long param1) {
         long length = 0;
         long current = param1;
         while(current != 0) {
@@ -215,10 +230,10 @@ public class MarsAnalyticaCEmulator extends SimpleCEmulator {
         return length;
     }
 
-    private Long emulateUnlink(Long param1) {
-        Long nextChunkAddress = state.readMemory(param1, 8);
-        Long nextChunkValue = state.readMemory(nextChunkAddress + 8, 4);
-        Long nextNextChunkAddress = state.readMemory(nextChunkAddress, 8);
+    private long emulateUnlink(long param1) {
+        long nextChunkAddress = state.readMemory(param1, 8);
+        long nextChunkValue = state.readMemory(nextChunkAddress + 8, 4);
+        long nextNextChunkAddress = state.readMemory(nextChunkAddress, 8);
         state.writeMemory(param1, nextNextChunkAddress, 8);
         // note: we do not free memory
         return nextChunkValue;
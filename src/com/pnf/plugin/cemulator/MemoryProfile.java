@@ -0,0 +1,298 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Memory access statistics of an {@link EmulatorState}, set with
+ * {@link EmulatorState#setMemoryProfile(MemoryProfile)}: read and write counts per page (and
+ * optionally per 64-byte line), working set of each handler, and accesses to local variables
+ * outside the stack allocated by {@link EmulatorState#allocateStackSpace()}.
+ * <p>
+ * Counts are logical accesses, as done by the emulated code: while profiling, locals are not
+ * promoted (see {@link FrameLayout}). Bulk operations count one access per touched page (or line).
+ * Profiles are not thread-safe, and are not inherited by forked states.
+ */
+public class MemoryProfile {
+
+    private static final int PAGE_BITS = PagedMemory.PAGE_BITS;
+    private static final int LINE_BITS = 6;
+
+    /** access counts of a page or line */
+    static final class Counters {
+        final long number;
+        long reads;
+        long writes;
+        /** number of handler runs touching the page */
+        long runs;
+        /** last handler run touching the page */
+        long lastRun = -1;
+
+        Counters(long number) {
+            this.number = number;
+        }
+    }
+
+    /** working set statistics of a handler */
+    static final class HandlerStats {
+        final Long address;
+        final String name;
+        long runs;
+        long reads;
+        long writes;
+        long totalPages;
+        long maxPages;
+
+        HandlerStats(Long address, String name) {
+            this.address = address;
+            this.name = name;
+        }
+    }
+
+    private final boolean lineCounts;
+    private final Map<Long, Counters> pages = new HashMap<>();
+    private final Map<Long, Counters> lines = new HashMap<>();
+    /** last looked up page, most accesses hitting the same page */
+    private Counters lastPage;
+
+    private final Map<Object, HandlerStats> handlers = new LinkedHashMap<>();
+    private HandlerStats currentHandler;
+    private long currentRun = -1;
+    private long runPages;
+
+    /** stack range, see EmulatorState#allocateStackSpace() */
+    private long stackStart;
+    private long stackEnd;
+    private long outOfStackAccesses;
+    private final Map<Long, Long> outOfStackAddresses = new LinkedHashMap<>();
+
+    /**
+     * @param lineCounts true to also count accesses per 64-byte line
+     */
+    public MemoryProfile(boolean lineCounts) {
+        this.lineCounts = lineCounts;
+    }
+
+    void setStackRange(long start, long end) {
+        stackStart = start;
+        stackEnd = end;
+    }
+
+    /**
+     * Start a handler run; pages touched until the next call are its working set.
+     */
+    void beginHandler(Long routineAddress, String name) {
+        Object key = routineAddress != null ? routineAddress: name;
+        currentHandler = handlers.get(key);
+        if(currentHandler == null) {
+            currentHandler = new HandlerStats(routineAddress, name);
+            handlers.put(key, currentHandler);
+        }
+        currentHandler.runs++;
+        currentRun++;
+        runPages = 0;
+    }
+
+    void endHandler() {
+        if(currentHandler != null) {
+            currentHandler.totalPages += runPages;
+            currentHandler.maxPages = Math.max(currentHandler.maxPages, runPages);
+            currentHandler = null;
+        }
+    }
+
+    void recordRead(long address, long size) {
+        record(address, size, false);
+    }
+
+    void recordWrite(long address, long size) {
+        record(address, size, true);
+    }
+
+    private void record(long address, long size, boolean write) {
+        long first = address >>> PAGE_BITS;
+        long last = (address + Math.max(size, 1) - 1) >>> PAGE_BITS;
+        for(long page = first; page <= last; page++) {
+            Counters counters = lastPage;
+            if(counters == null || counters.number != page) {
+                counters = pages.computeIfAbsent(page, Counters::new);
+                lastPage = counters;
+            }
+            count(counters, write);
+            if(counters.lastRun != currentRun) {
+                counters.lastRun = currentRun;
+                counters.runs++;
+                runPages++;
+            }
+        }
+        if(lineCounts) {
+            long lastLine = (address + Math.max(size, 1) - 1) >>> LINE_BITS;
+            for(long line = address >>> LINE_BITS; line <= lastLine; line++) {
+                Counters counters = lines.computeIfAbsent(line, Counters::new);
+                count(counters, write);
+                if(counters.lastRun != currentRun) {
+                    counters.lastRun = currentRun;
+                    counters.runs++;
+                }
+            }
+        }
+        if(currentHandler != null) {
+            if(write) {
+                currentHandler.writes++;
+            }
+            else {
+                currentHandler.reads++;
+            }
+        }
+    }
+
+    private static void count(Counters counters, boolean write) {
+        if(write) {
+            counters.writes++;
+        }
+        else {
+            counters.reads++;
+        }
+    }
+
+    /**
+     * Record the address of a local variable.
+     */
+    void recordLocal(long address) {
+        if(stackEnd > stackStart && (address < stackStart || address >= stackEnd)) {
+            outOfStackAccesses++;
+            outOfStackAddresses.merge(address, 1L, Long::sum);
+        }
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    public long getOutOfStackAccesses() {
+        return outOfStackAccesses;
+    }
+
+    /**
+     * Get the hottest pages (by total access count).
+     *
+     * @param count maximum number of pages
+     * @return page base addresses
+     */
+    public List<Long> getHottestPages(int count) {
+        List<Long> result = new ArrayList<>();
+        for(Counters counters: sorted(pages)) {
+            if(result.size() == count) {
+                break;
+            }
+            result.add(counters.number << PAGE_BITS);
+        }
+        return result;
+    }
+
+    private static List<Counters> sorted(Map<Long, Counters> counters) {
+        List<Counters> list = new ArrayList<>(counters.values());
+        list.sort(Comparator.comparingLong((Counters c) -> c.reads + c.writes).reversed()
+                .thenComparingLong(c -> c.number));
+        return list;
+    }
+
+    /**
+     * Write the statistics as CSV files: pages (and lines, if counted) by decreasing access count,
+     * and handlers.
+     *
+     * @param prefix path prefix; files are prefix.pages.csv, prefix.lines.csv and
+     *            prefix.handlers.csv
+     */
+    public void exportCsv(File prefix) throws IOException {
+        writeCountersCsv(new File(prefix.getPath() + ".pages.csv"), pages, PAGE_BITS);
+        if(lineCounts) {
+            writeCountersCsv(new File(prefix.getPath() + ".lines.csv"), lines, LINE_BITS);
+        }
+        try(PrintWriter out = new PrintWriter(new File(prefix.getPath() + ".handlers.csv"), "UTF-8")) {
+            out.println("address,name,runs,reads,writes,avg_working_set_pages,max_working_set_pages");
+            for(HandlerStats handler: handlers.values()) {
+                out.println(Strings.ff("%s,%s,%d,%d,%d,%.2f,%d",
+                        handler.address != null ? Strings.ff("0x%X", handler.address): "", handler.name,
+                        handler.runs, handler.reads, handler.writes, (double)handler.totalPages / handler.runs,
+                        handler.maxPages));
+            }
+        }
+    }
+
+    private static void writeCountersCsv(File file, Map<Long, Counters> counters, int bits) throws IOException {
+        try(PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("address,reads,writes,handler_runs");
+            for(Counters c: sorted(counters)) {
+                out.println(Strings.ff("0x%X,%d,%d,%d", c.number << bits, c.reads, c.writes, c.runs));
+            }
+        }
+    }
+
+    /**
+     * Write the statistics as a JSON document.
+     */
+    public void exportJson(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(Strings.ff("  \"pageSize\": %d,\n", 1 << PAGE_BITS));
+        sb.append(Strings.ff("  \"stack\": {\"start\": \"0x%X\", \"end\": \"0x%X\", \"outOfStackAccesses\": %d, "
+                + "\"outOfStackAddresses\": [", stackStart, stackEnd, outOfStackAccesses));
+        int i = 0;
+        for(Map.Entry<Long, Long> entry: outOfStackAddresses.entrySet()) {
+            sb.append(i++ > 0 ? ", ": "").append(
+                    Strings.ff("{\"address\": \"0x%X\", \"count\": %d}", entry.getKey(), entry.getValue()));
+        }
+        sb.append("]},\n");
+        sb.append("  \"handlers\": [");
+        i = 0;
+        for(HandlerStats handler: handlers.values()) {
+            sb.append(i++ > 0 ? ",": "").append("\n    ");
+            sb.append(Strings.ff("{\"address\": %s, \"name\": \"%s\", \"runs\": %d, \"reads\": %d, \"writes\": %d, "
+                    + "\"avgWorkingSetPages\": %.2f, \"maxWorkingSetPages\": %d}",
+                    handler.address != null ? Strings.ff("\"0x%X\"", handler.address): "null",
+                    escape(handler.name), handler.runs, handler.reads, handler.writes,
+                    (double)handler.totalPages / handler.runs, handler.maxPages));
+        }
+        sb.append("\n  ],\n");
+        appendCounters(sb, "pages", pages, PAGE_BITS);
+        if(lineCounts) {
+            sb.append(",\n");
+            appendCounters(sb, "lines", lines, LINE_BITS);
+        }
+        sb.append("\n}\n");
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendCounters(StringBuilder sb, String name, Map<Long, Counters> counters, int bits) {
+        sb.append("  \"").append(name).append("\": [");
+        int i = 0;
+        for(Counters c: sorted(counters)) {
+            sb.append(i++ > 0 ? ",": "").append("\n    ");
+            sb.append(Strings.ff("{\"address\": \"0x%X\", \"reads\": %d, \"writes\": %d, \"handlerRuns\": %d}",
+                    c.number << bits, c.reads, c.writes, c.runs));
+        }
+        sb.append("\n  ]");
+    }
+
+    private static String escape(String s) {
+        return s == null ? "": s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("MemoryProfile(pages=%d, handlers=%d, outOfStack=%d)", pages.size(), handlers.size(),
+                outOfStackAccesses);
+    }
+}
@@ -0,0 +1,157 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Watchpoint on a memory range, set with
+ * {@link EmulatorState#addWatchpoint(long, long, int, Listener)}.
+ * <p>
+ * Accesses through {@link EmulatorState} (scalar reads and writes, and bulk operations) overlapping
+ * the range are delivered to the watchpoint's listener, with the statement and handler that caused
+ * them. Reads are delivered after the access (with the read value), writes before it (with the
+ * written value). A listener can stop the emulation by raising an {@link EmulatorException}.
+ */
+public class MemoryWatchpoint {
+
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+
+    /**
+     * Receiver of watchpoint hits.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onHit(Event event);
+    }
+
+    /**
+     * Watchpoint hit.
+     */
+    public static class Event {
+        private final MemoryWatchpoint watchpoint;
+        private final int access;
+        private final long address;
+        private final long size;
+        private final long value;
+        private final Long routineAddress;
+        private final ICMethod method;
+        private final ICStatement statement;
+
+        Event(MemoryWatchpoint watchpoint, int access, long address, long size, long value,
+                SimpleCEmulator emulator) {
+            this.watchpoint = watchpoint;
+            this.access = access;
+            this.address = address;
+            this.size = size;
+            this.value = value;
+            routineAddress = emulator != null ? emulator.getCurrentRoutineAddress(): null;
+            method = emulator != null ? emulator.getCurrentMethod(): null;
+            statement = emulator != null ? emulator.getCurrentStatement(): null;
+        }
+
+        public MemoryWatchpoint getWatchpoint() {
+            return watchpoint;
+        }
+
+        /**
+         * @return {@link MemoryWatchpoint#READ} or {@link MemoryWatchpoint#WRITE}
+         */
+        public int getAccess() {
+            return access;
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the read or written value, for 1, 2, 4 or 8-byte accesses (0 for bulk operations).
+         */
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * Get the address of the emulated handler, null if unknown.
+         */
+        public Long getRoutineAddress() {
+            return routineAddress;
+        }
+
+        /**
+         * Get the emulated handler, null if the access was not done during an emulation.
+         */
+        public ICMethod getMethod() {
+            return method;
+        }
+
+        /**
+         * Get the statement being emulated, null if the access was not done during an emulation.
+         */
+        public ICStatement getStatement() {
+            return statement;
+        }
+
+        @Override
+        public String toString() {
+            return Strings.ff("%s 0x%X (%d bytes, value=0x%X) in %s%s: %s", access == WRITE ? "write": "read",
+                    address, size, value, method != null ? method.getName(): "?",
+                    routineAddress != null ? Strings.ff(" (0x%X)", routineAddress): "", statement);
+        }
+    }
+
+    private final long address;
+    private final long size;
+    private final int access;
+    private final Listener listener;
+    private final AtomicInteger hitCount = new AtomicInteger();
+
+    MemoryWatchpoint(long address, long size, int access, Listener listener) {
+        this.address = address;
+        this.size = size;
+        this.access = access;
+        this.listener = listener;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return mask of watched accesses ({@link #READ}, {@link #WRITE})
+     */
+    public int getAccess() {
+        return access;
+    }
+
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    boolean matches(int accessType, long start, long length) {
+        return (access & accessType) != 0 && start < address + size && address < start + length;
+    }
+
+    void hit(Event event) {
+        hitCount.incrementAndGet();
+        listener.onHit(event);
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("0x%X-0x%X %s%s", address, address + size, (access & READ) != 0 ? "r": "-",
+                (access & WRITE) != 0 ? "w": "-");
+    }
+}
@@ -0,0 +1,251 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Bounded cache of the per-method structures built by {@link SimpleCEmulator}: {@link CFG} and
+ * lowered form ({@link CompiledMethod}), so that handlers emulated over and over (eg, in tracer
+ * mode) are only analyzed once.
+ * <p>
+ * Entries are keyed by routine address, and hold the {@link ICMethod} they were built from: a
+ * lookup with another method object (ie, the routine was decompiled again) replaces the entry.
+ * Methods modified in place must be invalidated explicitly (see {@link #invalidate(long)}). The
+ * least recently used entries are evicted when the cache is full.
+ * <p>
+ * Caches are thread-safe. Structures are built out of the lock, so that methods prepared by other
+ * threads (see {@link DecompilationPipeline}) do not block the emulator's lookups; a method built
+ * concurrently by two threads is cached once.
+ */
+public class MethodCache {
+
+    /** default maximum number of cached methods */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private static class CachedMethod {
+        final ICMethod method;
+        CFG cfg;
+        CompiledMethod compiled;
+
+        CachedMethod(ICMethod method) {
+            this.method = method;
+        }
+    }
+
+    private final int capacity;
+    private final Map<Long, CachedMethod> entries;
+    /** register slots of the cached methods */
+    private final RegisterFile.SlotTable registerSlots = new RegisterFile.SlotTable();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public MethodCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of cached methods
+     */
+    public MethodCache(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        entries = new LinkedHashMap<Long, CachedMethod>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedMethod> eldest) {
+                if(size() > MethodCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private CachedMethod getEntry(long routineAddress, ICMethod method) {
+        CachedMethod entry = entries.get(routineAddress);
+        if(entry == null || entry.method != method) {
+            if(entry != null) {
+                // method was decompiled again
+                invalidations++;
+            }
+            entry = new CachedMethod(method);
+            entries.put(routineAddress, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Get the entry to store structures built out of the lock in.
+     *
+     * @return null if the routine was decompiled again in the meantime
+     */
+    private CachedMethod getBuiltEntry(long routineAddress, ICMethod method) {
+        CachedMethod entry = entries.get(routineAddress);
+        if(entry == null) {
+            // evicted or invalidated in the meantime
+            entry = new CachedMethod(method);
+            entries.put(routineAddress, entry);
+        }
+        return entry.method == method ? entry: null;
+    }
+
+    /**
+     * Get the CFG of a method, building it if needed.
+     *
+     * @param routineAddress method address
+     * @param method
+     * @return cfg of the method
+     */
+    public CFG getCFG(long routineAddress, ICMethod method) {
+        synchronized(this) {
+            CachedMethod entry = getEntry(routineAddress, method);
+            if(entry.cfg != null) {
+                hits++;
+                return entry.cfg;
+            }
+            misses++;
+        }
+        CFG cfg = CFG.buildCFG(method);
+        synchronized(this) {
+            CachedMethod entry = getBuiltEntry(routineAddress, method);
+            if(entry == null) {
+                return cfg;
+            }
+            if(entry.cfg == null) {
+                entry.cfg = cfg;
+            }
+            return entry.cfg;
+        }
+    }
+
+    /**
+     * Get the lowered form of a method, lowering it (and building its CFG) if needed.
+     *
+     * @param routineAddress method address
+     * @param method
+     * @return compiled method
+     */
+    public CompiledMethod getCompiledMethod(long routineAddress, ICMethod method) {
+        CFG cfg;
+        synchronized(this) {
+            CachedMethod entry = getEntry(routineAddress, method);
+            if(entry.compiled != null) {
+                hits++;
+                return entry.compiled;
+            }
+            misses++;
+            cfg = entry.cfg;
+        }
+        if(cfg == null) {
+            cfg = CFG.buildCFG(method);
+        }
+        CompiledMethod compiled = CompiledMethod.compile(method, cfg, registerSlots);
+        synchronized(this) {
+            CachedMethod entry = getBuiltEntry(routineAddress, method);
+            if(entry == null) {
+                return compiled;
+            }
+            if(entry.compiled == null) {
+                entry.cfg = cfg;
+                entry.compiled = compiled;
+            }
+            return entry.compiled;
+        }
+    }
+
+    /**
+     * Get the table of the register slots used by the cached methods, which grows with the
+     * registers they reference.
+     */
+    public RegisterFile.SlotTable getRegisterSlots() {
+        return registerSlots;
+    }
+
+    /**
+     * Check if the lowered form of a method is cached. The entry counts as used, but not as a hit.
+     */
+    public synchronized boolean isCompiled(long routineAddress, ICMethod method) {
+        CachedMethod entry = entries.get(routineAddress);
+        return entry != null && entry.method == method && entry.compiled != null;
+    }
+
+    /**
+     * Drop the cached structures of a routine, eg after its method was modified.
+     *
+     * @param routineAddress method address
+     * @return true if the routine was cached
+     */
+    public synchronized boolean invalidate(long routineAddress) {
+        if(entries.remove(routineAddress) != null) {
+            invalidations++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop the cached structures of a method, whatever its address.
+     *
+     * @return number of dropped entries
+     */
+    public synchronized int invalidate(ICMethod method) {
+        int n = 0;
+        for(Iterator<CachedMethod> it = entries.values().iterator(); it.hasNext();) {
+            if(it.next().method == method) {
+                it.remove();
+                n++;
+            }
+        }
+        invalidations += n;
+        return n;
+    }
+
+    /**
+     * Drop all cached structures.
+     */
+    public synchronized void invalidateAll() {
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Strings.ff("MethodCache(size=%d/%d, hits=%d, misses=%d, evictions=%d, invalidations=%d)",
+                entries.size(), capacity, hits, misses, evictions, invalidations);
+    }
+}
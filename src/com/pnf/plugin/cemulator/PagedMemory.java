@@ -0,0 +1,843 @@
+package com.pnf.plugin.cemulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.pnfsoftware.jeb.core.units.code.asm.memory.IVirtualMemory;
+import com.pnfsoftware.jeb.core.units.code.asm.memory.MemoryException;
+import com.pnfsoftware.jeb.core.units.code.asm.memory.VirtualMemoryUtil;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Emulator-owned memory, made of 4 KiB little-endian pages carved from off-heap segments.
+ * <p>
+ * Pages are imported one at a time, on first access, from a backing {@link IVirtualMemory} (eg,
+ * the code unit's memory); modified pages can be exported back with
+ * {@link #exportTo(IVirtualMemory)}. The last used pages are kept in small direct-mapped TLBs (one
+ * for reads, one for writes), so that most accesses are a tag check and a buffer access.
+ * <p>
+ * Pages can also be imported from memory-mapped dump regions (see
+ * {@link #addRegion(DumpManifest.Region)}), which take precedence over the backing memory.
+ * <p>
+ * Memories can be forked in O(1) (see {@link #fork(boolean)}): the pages held at fork time move to
+ * a read-only layer shared by the parent and the child, each of them then holding the pages it
+ * writes (copy-on-write), or imports. Layers are flattened once {@link #MAX_LAYERS} deep, so that
+ * lookups do not depend on the number of forks. A memory and its forks carve their pages from the
+ * same segments, and once forked, the backing pages are frozen before being overwritten by
+ * {@link #exportTo(IVirtualMemory)}, so that forks importing them later still see the memory as it
+ * was at fork time.
+ * <p>
+ * Pages written since the last checkpoint can be listed with {@link #getModifiedPages()}: pages
+ * are stamped with the current write epoch when acquired for writing, and
+ * {@link #markCheckpoint()} starts a new epoch.
+ */
+public class PagedMemory implements EmulatorMemory {
+
+    public static final int PAGE_BITS = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** pages per off-heap segment (1 MiB segments) */
+    private static final int SEGMENT_PAGES = 256;
+
+    /** maximum number of shared layers under a memory */
+    private static final int MAX_LAYERS = 4;
+
+    private static final int TLB_SIZE = 64;
+
+    /** page table values for absent pages: unknown yet, or known to be unmapped */
+    private static final int NO_PAGE = -1;
+    private static final int UNMAPPED = -2;
+
+    /**
+     * State shared by a memory and its forks.
+     */
+    private static final class Shared {
+        /** segment pages are carved from, and number of pages carved so far */
+        private ByteBuffer segment;
+        private int segmentPages = SEGMENT_PAGES;
+        /** true once the memory was forked */
+        private boolean forked;
+        /** backing pages as they were before being exported, null values for unmapped pages */
+        private final Map<Long, byte[]> frozenPages = new HashMap<>();
+
+        synchronized ByteBuffer allocatePage() {
+            if(segmentPages == SEGMENT_PAGES) {
+                segment = ByteBuffer.allocateDirect(SEGMENT_PAGES * PAGE_SIZE);
+                segmentPages = 0;
+            }
+            ByteBuffer page = segment.duplicate();
+            int offset = segmentPages++ * PAGE_SIZE;
+            page.position(offset);
+            page.limit(offset + PAGE_SIZE);
+            return page.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private final IVirtualMemory backing;
+    private final Shared shared;
+    /** dump regions pages are imported from (replaced, not modified, when a region is added) */
+    private List<DumpManifest.Region> regions = Collections.emptyList();
+
+    /** read-only layer holding the pages of the memory at fork time, null if none */
+    private PagedMemory parent;
+    /** number of layers under this memory (including the parent) */
+    private int depth;
+    /** true for read-only memories (shared layers and snapshots) */
+    private boolean frozen;
+
+    /** page table: open addressing, page number to page slot (or UNMAPPED) */
+    private long[] tableKeys = new long[1024];
+    private int[] tableValues = new int[1024];
+    private int tableCount;
+
+    /** pages, by slot */
+    private ByteBuffer[] pages = new ByteBuffer[256];
+    private long[] pageNumbers = new long[256];
+    private boolean[] dirty = new boolean[256];
+    /** write epoch of the pages, see markCheckpoint() */
+    private long[] writeEpochs = new long[256];
+    private int pageCount;
+
+    /** current write epoch, and epoch of the last checkpoint (inherited by forks) */
+    private long epoch = 1;
+    private long checkpointEpoch;
+
+    /** TLBs: page number tags (-1 for empty entries) and pages */
+    private final long[] readTags = new long[TLB_SIZE];
+    private final ByteBuffer[] readPages = new ByteBuffer[TLB_SIZE];
+    private final long[] writeTags = new long[TLB_SIZE];
+    private final ByteBuffer[] writePages = new ByteBuffer[TLB_SIZE];
+
+    /**
+     * @param backing memory pages are imported from, null for an initially empty memory
+     */
+    public PagedMemory(IVirtualMemory backing) {
+        this(backing, new Shared(), null, false);
+    }
+
+    private PagedMemory(IVirtualMemory backing, Shared shared, PagedMemory parent, boolean frozen) {
+        this.backing = backing;
+        this.shared = shared;
+        this.parent = parent;
+        this.frozen = frozen;
+        depth = parent == null ? 0: parent.depth + 1;
+        Arrays.fill(tableValues, NO_PAGE);
+        Arrays.fill(readTags, -1L);
+        Arrays.fill(writeTags, -1L);
+    }
+
+    /**
+     * Fork this memory, in O(1).
+     * 
+     * @param readOnly true to create a read-only copy (snapshot)
+     * @return the copy
+     */
+    public synchronized PagedMemory fork(boolean readOnly) {
+        synchronized(shared) {
+            shared.forked = true;
+        }
+        if(pageCount != 0 || tableCount != 0) {
+            // move the current pages to a shared read-only layer
+            PagedMemory layer = new PagedMemory(backing, shared, parent, true);
+            layer.tableKeys = tableKeys;
+            layer.tableValues = tableValues;
+            layer.tableCount = tableCount;
+            layer.pages = pages;
+            layer.pageNumbers = pageNumbers;
+            layer.dirty = dirty;
+            layer.writeEpochs = writeEpochs;
+            layer.pageCount = pageCount;
+            parent = layer.depth > MAX_LAYERS ? layer.flatten(): layer;
+            depth = parent.depth + 1;
+
+            tableKeys = new long[1024];
+            tableValues = new int[1024];
+            Arrays.fill(tableValues, NO_PAGE);
+            tableCount = 0;
+            pages = new ByteBuffer[256];
+            pageNumbers = new long[256];
+            dirty = new boolean[256];
+            writeEpochs = new long[256];
+            pageCount = 0;
+            // pages now belong to the shared layer: writes must copy them
+            Arrays.fill(writeTags, -1L);
+            Arrays.fill(writePages, null);
+        }
+        PagedMemory copy = new PagedMemory(backing, shared, parent, readOnly);
+        copy.regions = regions;
+        copy.epoch = epoch;
+        copy.checkpointEpoch = checkpointEpoch;
+        return copy;
+    }
+
+    /**
+     * Merge this layer and the layers under it into a single layer. Pages are shared, not copied.
+     */
+    private PagedMemory flatten() {
+        PagedMemory merged = new PagedMemory(backing, shared, null, true);
+        for(PagedMemory layer = this; layer != null; layer = layer.parent) {
+            for(int j = 0; j < layer.tableKeys.length; j++) {
+                int value = layer.tableValues[j];
+                if(value == NO_PAGE) {
+                    continue;
+                }
+                long pageNumber = layer.tableKeys[j];
+                int i = merged.findEntry(pageNumber);
+                if(merged.tableValues[i] != NO_PAGE) {
+                    // the most recent version of a page is the one of the closest layer
+                    continue;
+                }
+                if(value == UNMAPPED) {
+                    merged.putEntry(i, pageNumber, UNMAPPED);
+                }
+                else {
+                    int slot = merged.addPage(pageNumber, layer.pages[value]);
+                    merged.dirty[slot] = layer.dirty[value];
+                    merged.writeEpochs[slot] = layer.writeEpochs[value];
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Add a dump region, whose pages will be imported on first access. Pages already imported
+     * are not modified.
+     */
+    public void addRegion(DumpManifest.Region region) {
+        List<DumpManifest.Region> newRegions = new ArrayList<>(regions);
+        newRegions.add(region);
+        regions = newRegions;
+    }
+
+    public boolean isReadOnly() {
+        return frozen;
+    }
+
+    @Override
+    public long read(long address, int size) {
+        int offset = (int)address & PAGE_MASK;
+        if(offset + size <= PAGE_SIZE) {
+            ByteBuffer page = getReadPage(address >>> PAGE_BITS);
+            switch(size) {
+            case 8:
+                return page.getLong(offset);
+            case 4:
+                return page.getInt(offset) & 0xFFFFFFFFL;
+            case 2:
+                return page.getShort(offset) & 0xFFFFL;
+            case 1:
+                return page.get(offset) & 0xFFL;
+            default:
+                break;
+            }
+        }
+        if(size != 8 && size != 4 && size != 2 && size != 1) {
+            throw new EmulatorException(Strings.ff("TBI: read memory size (%d)", size));
+        }
+        // page-crossing access
+        long value = 0;
+        for(int i = size - 1; i >= 0; i--) {
+            long a = address + i;
+            value = value << 8 | getReadPage(a >>> PAGE_BITS).get((int)a & PAGE_MASK) & 0xFFL;
+        }
+        return value;
+    }
+
+    @Override
+    public void write(long address, long value, int size) {
+        int offset = (int)address & PAGE_MASK;
+        if(offset + size <= PAGE_SIZE) {
+            ByteBuffer page = getWritePage(address >>> PAGE_BITS);
+            switch(size) {
+            case 8:
+                page.putLong(offset, value);
+                return;
+            case 4:
+                page.putInt(offset, (int)value);
+                return;
+            case 2:
+                page.putShort(offset, (short)value);
+                return;
+            case 1:
+                page.put(offset, (byte)value);
+                return;
+            default:
+                break;
+            }
+        }
+        if(size != 8 && size != 4 && size != 2 && size != 1) {
+            throw new EmulatorException(Strings.ff("TBI: write memory size (%d)", size));
+        }
+        // page-crossing access: check all pages before writing
+        getWritePage((address + size - 1) >>> PAGE_BITS);
+        for(int i = 0; i < size; i++) {
+            long a = address + i;
+            getWritePage(a >>> PAGE_BITS).put((int)a & PAGE_MASK, (byte)(value >>> (i * 8)));
+        }
+    }
+
+    @Override
+    public void read(long address, byte[] dst, int dstOffset, int length) {
+        while(length > 0) {
+            int offset = (int)address & PAGE_MASK;
+            int chunk = Math.min(length, PAGE_SIZE - offset);
+            ByteBuffer page = getReadPage(address >>> PAGE_BITS).duplicate();
+            page.position(offset);
+            page.get(dst, dstOffset, chunk);
+            address += chunk;
+            dstOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void write(long address, byte[] src, int srcOffset, int length) {
+        while(length > 0) {
+            int offset = (int)address & PAGE_MASK;
+            int chunk = Math.min(length, PAGE_SIZE - offset);
+            ByteBuffer page = getWritePage(address >>> PAGE_BITS).duplicate();
+            page.position(offset);
+            page.put(src, srcOffset, chunk);
+            address += chunk;
+            srcOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /*
+     * Bulk operations: done page by page, directly between pages
+     */
+
+    @Override
+    public void copy(long src, long dst, long length) {
+        if(length <= 0 || src == dst) {
+            return;
+        }
+        // with overlapping ranges, chunks are bounded by the ranges distance, so that each chunk
+        // copy is between disjoint ranges; chunks are copied backward when the destination follows
+        // the source
+        long distance = Math.abs(dst - src);
+        long maxChunk = distance < length ? distance: PAGE_SIZE;
+        if(dst > src && distance < length) {
+            for(long remaining = length; remaining > 0;) {
+                long srcEnd = src + remaining;
+                long dstEnd = dst + remaining;
+                int n = (int)Math.min(Math.min(remaining, maxChunk),
+                        Math.min(((srcEnd - 1) & PAGE_MASK) + 1, ((dstEnd - 1) & PAGE_MASK) + 1));
+                copyChunk(srcEnd - n, dstEnd - n, n);
+                remaining -= n;
+            }
+        }
+        else {
+            for(long done = 0; done < length;) {
+                long s = src + done;
+                long d = dst + done;
+                int n = (int)Math.min(Math.min(length - done, maxChunk),
+                        Math.min(PAGE_SIZE - (s & PAGE_MASK), PAGE_SIZE - (d & PAGE_MASK)));
+                copyChunk(s, d, n);
+                done += n;
+            }
+        }
+    }
+
+    /**
+     * Copy bytes between two pages.
+     */
+    private void copyChunk(long src, long dst, int n) {
+        ByteBuffer to = getWritePage(dst >>> PAGE_BITS).duplicate();
+        ByteBuffer from = getReadPage(src >>> PAGE_BITS).duplicate();
+        int srcOffset = (int)src & PAGE_MASK;
+        from.limit(srcOffset + n);
+        from.position(srcOffset);
+        to.position((int)dst & PAGE_MASK);
+        to.put(from);
+    }
+
+    @Override
+    public void fill(long address, byte value, long length) {
+        long pattern = (value & 0xFFL) * 0x0101010101010101L;
+        for(long done = 0; done < length;) {
+            long a = address + done;
+            int offset = (int)a & PAGE_MASK;
+            int n = (int)Math.min(length - done, PAGE_SIZE - offset);
+            ByteBuffer page = getWritePage(a >>> PAGE_BITS);
+            int i = 0;
+            for(; i + 8 <= n; i += 8) {
+                page.putLong(offset + i, pattern);
+            }
+            for(; i < n; i++) {
+                page.put(offset + i, value);
+            }
+            done += n;
+        }
+    }
+
+    @Override
+    public int compare(long address1, long address2, long length) {
+        for(long done = 0; done < length;) {
+            long a1 = address1 + done;
+            long a2 = address2 + done;
+            int offset1 = (int)a1 & PAGE_MASK;
+            int offset2 = (int)a2 & PAGE_MASK;
+            int n = (int)Math.min(length - done, Math.min(PAGE_SIZE - offset1, PAGE_SIZE - offset2));
+            ByteBuffer page1 = getReadPage(a1 >>> PAGE_BITS);
+            ByteBuffer page2 = getReadPage(a2 >>> PAGE_BITS);
+            int i = 0;
+            for(; i + 8 <= n; i += 8) {
+                long w1 = page1.getLong(offset1 + i);
+                long w2 = page2.getLong(offset2 + i);
+                if(w1 != w2) {
+                    // little-endian: the first differing byte is the lowest one
+                    int shift = Long.numberOfTrailingZeros(w1 ^ w2) & ~7;
+                    return (int)(w1 >>> shift & 0xFF) - (int)(w2 >>> shift & 0xFF);
+                }
+            }
+            for(; i < n; i++) {
+                int c1 = page1.get(offset1 + i) & 0xFF;
+                int c2 = page2.get(offset2 + i) & 0xFF;
+                if(c1 != c2) {
+                    return c1 - c2;
+                }
+            }
+            done += n;
+        }
+        return 0;
+    }
+
+    @Override
+    public int compareStrings(long address1, long address2, long maxLength) {
+        for(long done = 0; done < maxLength;) {
+            long a1 = address1 + done;
+            long a2 = address2 + done;
+            int offset1 = (int)a1 & PAGE_MASK;
+            int offset2 = (int)a2 & PAGE_MASK;
+            int n = (int)Math.min(maxLength - done, Math.min(PAGE_SIZE - offset1, PAGE_SIZE - offset2));
+            ByteBuffer page1 = getReadPage(a1 >>> PAGE_BITS);
+            ByteBuffer page2 = getReadPage(a2 >>> PAGE_BITS);
+            int i = 0;
+            for(; i + 8 <= n; i += 8) {
+                long w1 = page1.getLong(offset1 + i);
+                long w2 = page2.getLong(offset2 + i);
+                long zeros = zeroBytes(w1);
+                if(w1 != w2 || zeros != 0) {
+                    // stop at the first differing byte or terminator, whichever comes first
+                    int shift = Long.numberOfTrailingZeros((w1 ^ w2) | zeros) & ~7;
+                    return (int)(w1 >>> shift & 0xFF) - (int)(w2 >>> shift & 0xFF);
+                }
+            }
+            for(; i < n; i++) {
+                int c1 = page1.get(offset1 + i) & 0xFF;
+                int c2 = page2.get(offset2 + i) & 0xFF;
+                if(c1 != c2 || c1 == 0) {
+                    return c1 - c2;
+                }
+            }
+            done += n;
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexOf(long address, byte value, long maxLength) {
+        long pattern = (value & 0xFFL) * 0x0101010101010101L;
+        for(long done = 0; done < maxLength;) {
+            long a = address + done;
+            int offset = (int)a & PAGE_MASK;
+            int n = (int)Math.min(maxLength - done, PAGE_SIZE - offset);
+            ByteBuffer page = getReadPage(a >>> PAGE_BITS);
+            int i = 0;
+            for(; i + 8 <= n; i += 8) {
+                long matches = zeroBytes(page.getLong(offset + i) ^ pattern);
+                if(matches != 0) {
+                    return done + i + (Long.numberOfTrailingZeros(matches) >>> 3);
+                }
+            }
+            for(; i < n; i++) {
+                if(page.get(offset + i) == value) {
+                    return done + i;
+                }
+            }
+            done += n;
+        }
+        return -1;
+    }
+
+    /**
+     * Flag the zero bytes of a word: the lowest flagged byte is the first zero byte (bytes above
+     * it may be wrongly flagged).
+     */
+    private static long zeroBytes(long word) {
+        return (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+    }
+
+    @Override
+    public void allocate(long address, int size) {
+        if(size <= 0) {
+            return;
+        }
+        long last = (address + size - 1) >>> PAGE_BITS;
+        for(long pageNumber = address >>> PAGE_BITS; pageNumber <= last; pageNumber++) {
+            if(findPage(pageNumber) == null) {
+                int slot = newPage(pageNumber);
+                // new pages are exported, so that the backing memory gets them allocated
+                dirty[slot] = true;
+                writeEpochs[slot] = epoch;
+            }
+        }
+    }
+
+    private ByteBuffer getReadPage(long pageNumber) {
+        int index = (int)pageNumber & (TLB_SIZE - 1);
+        if(readTags[index] == pageNumber) {
+            return readPages[index];
+        }
+        ByteBuffer page = findPage(pageNumber);
+        if(page == null) {
+            throw new EmulatorException("ERROR: cant read memory");
+        }
+        readTags[index] = pageNumber;
+        readPages[index] = page;
+        return page;
+    }
+
+    private ByteBuffer getWritePage(long pageNumber) {
+        int index = (int)pageNumber & (TLB_SIZE - 1);
+        if(writeTags[index] == pageNumber) {
+            return writePages[index];
+        }
+        int slot = getLocalPage(pageNumber);
+        if(slot < 0) {
+            throw new EmulatorException("ERROR: cant write memory");
+        }
+        dirty[slot] = true;
+        writeEpochs[slot] = epoch;
+        writeTags[index] = pageNumber;
+        writePages[index] = pages[slot];
+        return pages[slot];
+    }
+
+    /**
+     * Find a page for reading, in this memory, its shared layers, or the backing memory.
+     *
+     * @return the page, null if the page is not mapped
+     */
+    private ByteBuffer findPage(long pageNumber) {
+        int i = findEntry(pageNumber);
+        int slot = tableValues[i];
+        if(slot >= 0) {
+            return pages[slot];
+        }
+        if(slot == UNMAPPED) {
+            return null;
+        }
+        for(PagedMemory layer = parent; layer != null; layer = layer.parent) {
+            int layerSlot = layer.tableValues[layer.findEntry(pageNumber)];
+            if(layerSlot >= 0) {
+                return layer.pages[layerSlot];
+            }
+            if(layerSlot == UNMAPPED) {
+                return null;
+            }
+        }
+        byte[] data = importPage(pageNumber);
+        if(frozen) {
+            // read-only memories do not keep imported pages
+            return data == null ? null: ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if(data == null) {
+            putEntry(i, pageNumber, UNMAPPED);
+            return null;
+        }
+        slot = newPage(pageNumber);
+        pages[slot].duplicate().put(data);
+        return pages[slot];
+    }
+
+    /**
+     * Find a page for writing; pages of shared layers are copied.
+     *
+     * @return page slot, negative if the page is not mapped
+     */
+    private int getLocalPage(long pageNumber) {
+        int slot = tableValues[findEntry(pageNumber)];
+        if(slot >= 0) {
+            return slot;
+        }
+        ByteBuffer page = findPage(pageNumber);
+        if(page == null) {
+            return -1;
+        }
+        slot = tableValues[findEntry(pageNumber)];
+        if(slot < 0) {
+            // copy-on-write
+            slot = newPage(pageNumber);
+            ByteBuffer source = page.duplicate();
+            source.clear();
+            pages[slot].duplicate().put(source);
+            // reads must now see the copy
+            int index = (int)pageNumber & (TLB_SIZE - 1);
+            readTags[index] = pageNumber;
+            readPages[index] = pages[slot];
+        }
+        return slot;
+    }
+
+    private byte[] importPage(long pageNumber) {
+        long base = pageNumber << PAGE_BITS;
+        byte[] data = null;
+        if(backing != null) {
+            synchronized(shared) {
+                if(shared.frozenPages.containsKey(pageNumber)) {
+                    // backing page was exported after fork
+                    byte[] frozenPage = shared.frozenPages.get(pageNumber);
+                    data = frozenPage != null ? frozenPage.clone(): null;
+                }
+                else {
+                    data = readBacking(base);
+                }
+            }
+        }
+        for(DumpManifest.Region region: regions) {
+            if(region.overlaps(base, PAGE_SIZE)) {
+                if(data == null) {
+                    data = new byte[PAGE_SIZE];
+                }
+                region.copyTo(base, data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Read a page of the backing memory.
+     *
+     * @return page data, null if the page is not mapped
+     */
+    private byte[] readBacking(long base) {
+        byte[] data = new byte[PAGE_SIZE];
+        try {
+            if(backing.read(base, PAGE_SIZE, data, 0) != PAGE_SIZE) {
+                return null;
+            }
+        }
+        catch(MemoryException e) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Create a zeroed page, replacing any unmapped marker.
+     */
+    private int newPage(long pageNumber) {
+        if(frozen) {
+            throw new IllegalStateException("read-only memory");
+        }
+        return addPage(pageNumber, shared.allocatePage());
+    }
+
+    private int addPage(long pageNumber, ByteBuffer page) {
+        if(pageCount == pages.length) {
+            pages = Arrays.copyOf(pages, pageCount * 2);
+            pageNumbers = Arrays.copyOf(pageNumbers, pageCount * 2);
+            dirty = Arrays.copyOf(dirty, pageCount * 2);
+            writeEpochs = Arrays.copyOf(writeEpochs, pageCount * 2);
+        }
+        int slot = pageCount++;
+        pages[slot] = page;
+        pageNumbers[slot] = pageNumber;
+        putEntry(findEntry(pageNumber), pageNumber, slot);
+        return slot;
+    }
+
+    private int findEntry(long pageNumber) {
+        int mask = tableKeys.length - 1;
+        int i = hash(pageNumber) & mask;
+        while(tableValues[i] != NO_PAGE && tableKeys[i] != pageNumber) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void putEntry(int i, long pageNumber, int value) {
+        if(tableValues[i] == NO_PAGE) {
+            tableCount++;
+        }
+        tableKeys[i] = pageNumber;
+        tableValues[i] = value;
+        if(tableCount * 2 > tableKeys.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = tableKeys;
+        int[] oldValues = tableValues;
+        tableKeys = new long[oldKeys.length * 2];
+        tableValues = new int[oldValues.length * 2];
+        Arrays.fill(tableValues, NO_PAGE);
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldValues[j] != NO_PAGE) {
+                int i = findEntry(oldKeys[j]);
+                tableKeys[i] = oldKeys[j];
+                tableValues[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(long pageNumber) {
+        long h = pageNumber * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * Write modified pages (including the ones of shared layers) to the given memory, allocating
+     * them if needed. Pages of this memory are then considered clean. If the memory was forked and
+     * the target is the backing memory, the overwritten backing pages are frozen first, for the
+     * forks still importing them.
+     *
+     * @param target
+     * @return number of exported pages
+     */
+    public int exportTo(IVirtualMemory target) {
+        int exported = 0;
+        byte[] data = new byte[PAGE_SIZE];
+        Set<Long> seen = new HashSet<>();
+        for(PagedMemory layer = this; layer != null; layer = layer.parent) {
+            for(int slot = 0; slot < layer.pageCount; slot++) {
+                // the most recent version of a page is the one of the closest layer
+                long pageNumber = layer.pageNumbers[slot];
+                if(seen.add(pageNumber) && layer.dirty[slot]) {
+                    long base = pageNumber << PAGE_BITS;
+                    ByteBuffer page = layer.pages[slot].duplicate();
+                    page.clear();
+                    page.get(data);
+                    synchronized(shared) {
+                        if(shared.forked && target == backing && !shared.frozenPages.containsKey(pageNumber)) {
+                            shared.frozenPages.put(pageNumber, readBacking(base));
+                        }
+                        VirtualMemoryUtil.allocateFillGaps(target, base, PAGE_SIZE, IVirtualMemory.ACCESS_RW);
+                        target.write(base, PAGE_SIZE, data, 0);
+                    }
+                    if(layer == this) {
+                        dirty[slot] = false;
+                    }
+                    exported++;
+                }
+            }
+        }
+        // writes must mark pages dirty again
+        Arrays.fill(writeTags, -1L);
+        Arrays.fill(writePages, null);
+        return exported;
+    }
+
+    /**
+     * Get the pages written since the last checkpoint (see {@link #markCheckpoint()}), including
+     * the ones of shared layers.
+     *
+     * @return page numbers, sorted
+     */
+    public long[] getModifiedPages() {
+        Set<Long> seen = new HashSet<>();
+        List<Long> modified = new ArrayList<>();
+        for(PagedMemory layer = this; layer != null; layer = layer.parent) {
+            for(int slot = 0; slot < layer.pageCount; slot++) {
+                if(seen.add(layer.pageNumbers[slot]) && layer.writeEpochs[slot] > checkpointEpoch) {
+                    modified.add(layer.pageNumbers[slot]);
+                }
+            }
+        }
+        long[] result = new long[modified.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = modified.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Copy a page.
+     *
+     * @param pageNumber
+     * @param dst page data
+     * @return false if the page is not mapped
+     */
+    public boolean readPage(long pageNumber, byte[] dst) {
+        ByteBuffer page = findPage(pageNumber);
+        if(page == null) {
+            return false;
+        }
+        page = page.duplicate();
+        page.clear();
+        page.get(dst, 0, PAGE_SIZE);
+        return true;
+    }
+
+    /**
+     * Replace a page, mapping it if needed, eg to restore a checkpoint. The page is considered
+     * modified.
+     *
+     * @param pageNumber
+     * @param src page data
+     */
+    public void restorePage(long pageNumber, byte[] src) {
+        int slot = tableValues[findEntry(pageNumber)];
+        if(slot < 0) {
+            // shared or absent page: no need to copy it, as it is entirely replaced
+            slot = newPage(pageNumber);
+        }
+        pages[slot].duplicate().put(src, 0, PAGE_SIZE);
+        dirty[slot] = true;
+        writeEpochs[slot] = epoch;
+        int index = (int)pageNumber & (TLB_SIZE - 1);
+        readTags[index] = -1L;
+        writeTags[index] = -1L;
+    }
+
+    /**
+     * Start a new write epoch: pages written so far are no longer reported by
+     * {@link #getModifiedPages()}.
+     */
+    public void markCheckpoint() {
+        checkpointEpoch = epoch;
+        epoch++;
+        // writes must stamp pages again
+        Arrays.fill(writeTags, -1L);
+        Arrays.fill(writePages, null);
+    }
+
+    /**
+     * Get the number of pages held by this memory, excluding shared layers.
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Get the numbers of the pages held by this memory (imported or written), excluding shared
+     * layers.
+     */
+    public long[] getPageNumbers() {
+        return Arrays.copyOf(pageNumbers, pageCount);
+    }
+
+    public IVirtualMemory getBacking() {
+        return backing;
+    }
+
+    @Override
+    public String toString() {
+        return Strings.ff("PagedMemory(pages=%d)", pageCount);
+    }
+}
@@ -0,0 +1,323 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Register values storage: dense array of primitive values, indexed by register slots.
+ * <p>
+ * Register (or identifier) IDs are sparse, eg {@link SimpleCEmulator#REG_RAX_ID} or JEB identifier
+ * IDs; they are mapped to dense slots by a {@link SlotTable}. A table is shared by the lowered
+ * methods of a run (see {@link MethodCache#getRegisterSlots()}), which resolve their identifiers
+ * once, and then access registers without hashing nor boxing; register files are remapped to the
+ * table of the method being emulated (see {@link #rebind(SlotTable)}), usually once per run. Queries
+ * by ID (see {@link #isDefined(int)}, {@link #get(int)}) never assign slots.
+ * <p>
+ * Implementation note: values are stored in a {@code long[]}, with a parallel bitset of defined
+ * slots. Entries are never removed. Forks share their arrays and slot table until one of them is
+ * written (copy-on-write).
+ */
+public class RegisterFile {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Mapping of register IDs to dense slots, growing as registers are used. The registers read
+     * and written by the emulator itself have fixed slots in all tables (see
+     * {@link SimpleCEmulator#REG_RAX_SLOT}).
+     * <p>
+     * Implementation note: open-addressing hash table of (ID, slot + 1) pairs packed in longs (0
+     * for empty entries), replaced when grown, and reverse table (slot -> ID). Assignments are
+     * serialized by the table lock; the index is read without locking.
+     */
+    public static class SlotTable {
+        private volatile AtomicLongArray index = new AtomicLongArray(DEFAULT_CAPACITY * 2);
+        private int[] slotIds = new int[DEFAULT_CAPACITY];
+        private int slotCount;
+
+        public SlotTable() {
+            slotOf(SimpleCEmulator.REG_RAX_ID);
+            slotOf(SimpleCEmulator.REG_RBP_ID);
+            slotOf(SimpleCEmulator.REG_NEXT_METHOD_ID);
+        }
+
+        /**
+         * Get the slot of a register ID, assigning a new slot on first use.
+         *
+         * @param id register id
+         * @return register slot
+         */
+        public int slotOf(int id) {
+            int slot = findSlot(id);
+            if(slot >= 0) {
+                return slot;
+            }
+            synchronized(this) {
+                slot = findSlot(id);
+                if(slot >= 0) {
+                    return slot;
+                }
+                slot = slotCount;
+                if(slot == slotIds.length) {
+                    slotIds = Arrays.copyOf(slotIds, slot * 2);
+                }
+                slotIds[slot] = id;
+                if((slotCount + 1) * 2 > index.length()) {
+                    growIndex();
+                }
+                insert(index, id, slot);
+                slotCount++;
+                return slot;
+            }
+        }
+
+        /**
+         * Get the slot of a register ID, if assigned.
+         *
+         * @param id register id
+         * @return register slot, -1 if none
+         */
+        public int findSlot(int id) {
+            AtomicLongArray table = index;
+            int mask = table.length() - 1;
+            for(int i = hash(id) & mask;; i = (i + 1) & mask) {
+                long entry = table.get(i);
+                if(entry == 0) {
+                    return -1;
+                }
+                if((int)(entry >>> 32) == id) {
+                    return (int)entry - 1;
+                }
+            }
+        }
+
+        /**
+         * Get the register ID of a slot.
+         */
+        public synchronized int idOf(int slot) {
+            return slotIds[slot];
+        }
+
+        /**
+         * Get the number of assigned slots.
+         */
+        public synchronized int size() {
+            return slotCount;
+        }
+
+        private static int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static void insert(AtomicLongArray table, int id, int slot) {
+            int mask = table.length() - 1;
+            int i = hash(id) & mask;
+            while(table.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            table.set(i, (long)id << 32 | (slot + 1));
+        }
+
+        private void growIndex() {
+            AtomicLongArray table = new AtomicLongArray(index.length() * 2);
+            for(int slot = 0; slot < slotCount; slot++) {
+                insert(table, slotIds[slot], slot);
+            }
+            index = table;
+        }
+    }
+
+    private SlotTable slots;
+    private long[] values;
+    /** defined slots bitset */
+    private long[] defined;
+    private int size;
+
+    /** true if arrays are shared with a fork */
+    private boolean shared;
+    private boolean readOnly;
+
+    public RegisterFile() {
+        slots = new SlotTable();
+        values = new long[DEFAULT_CAPACITY];
+        defined = new long[DEFAULT_CAPACITY >>> 6];
+    }
+
+    private RegisterFile(RegisterFile source, boolean readOnly) {
+        slots = source.slots;
+        values = source.values;
+        defined = source.defined;
+        size = source.size;
+        shared = true;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Get the table mapping the register IDs of this file to slots.
+     */
+    public SlotTable getSlots() {
+        return slots;
+    }
+
+    /**
+     * Get the slot of a register ID in this file, assigning a new slot on first use.
+     *
+     * @param id register id
+     * @return register slot
+     */
+    public int slotOf(int id) {
+        return slots.slotOf(id);
+    }
+
+    /**
+     * Remap the registers to the slots of another table. Values are unchanged: this is allowed on
+     * read-only files, and forks are not affected.
+     *
+     * @param table table of the slots used by subsequent accesses
+     */
+    public void rebind(SlotTable table) {
+        if(table == slots) {
+            return;
+        }
+        long[] newValues = new long[Math.max(DEFAULT_CAPACITY, (table.size() + 63) & ~63)];
+        long[] newDefined = new long[newValues.length >>> 6];
+        for(int slot = 0; slot < values.length; slot++) {
+            if(isSlotDefined(slot)) {
+                int newSlot = table.slotOf(slots.idOf(slot));
+                if(newSlot >= newValues.length) {
+                    newValues = Arrays.copyOf(newValues, (newSlot + 64) & ~63);
+                    newDefined = Arrays.copyOf(newDefined, newValues.length >>> 6);
+                }
+                newValues[newSlot] = values[slot];
+                newDefined[newSlot >>> 6] |= 1L << newSlot;
+            }
+        }
+        slots = table;
+        values = newValues;
+        defined = newDefined;
+        // (read-only files stay so: they are copied on write)
+        shared = readOnly;
+    }
+
+    /**
+     * Create a copy of this register file, in O(1): arrays are copied on first write by either
+     * register file.
+     *
+     * @param readOnly true to create a copy that can not be written
+     */
+    public RegisterFile fork(boolean readOnly) {
+        shared = true;
+        return new RegisterFile(this, readOnly);
+    }
+
+    private void unshare(int minimumCapacity) {
+        if(readOnly) {
+            throw new IllegalStateException("read-only register file");
+        }
+        int capacity = Math.max(values.length, (minimumCapacity + 63) & ~63);
+        values = Arrays.copyOf(values, capacity);
+        defined = Arrays.copyOf(defined, capacity >>> 6);
+        shared = false;
+    }
+
+    /**
+     * Check if a register has been set.
+     *
+     * @param id register id
+     * @return true if register is defined
+     */
+    public boolean isDefined(int id) {
+        int slot = slots.findSlot(id);
+        return slot >= 0 && isSlotDefined(slot);
+    }
+
+    /**
+     * Get register value.
+     *
+     * @param id register id
+     * @return register value, 0 if not defined (see {@link #isDefined(int)})
+     */
+    public long get(int id) {
+        int slot = slots.findSlot(id);
+        return slot >= 0 ? getSlot(slot): 0L;
+    }
+
+    public void set(int id, long value) {
+        setSlot(slots.slotOf(id), value);
+    }
+
+    /**
+     * Check if a register has been set.
+     *
+     * @param slot register slot (see {@link #slotOf(int)})
+     * @return true if register is defined
+     */
+    public boolean isSlotDefined(int slot) {
+        return slot < values.length && (defined[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    /**
+     * Get register value.
+     *
+     * @param slot register slot (see {@link #slotOf(int)})
+     * @return register value, 0 if not defined (see {@link #isSlotDefined(int)})
+     */
+    public long getSlot(int slot) {
+        return slot < values.length ? values[slot]: 0L;
+    }
+
+    /**
+     * Set register value.
+     *
+     * @param slot register slot (see {@link #slotOf(int)})
+     * @param value
+     */
+    public void setSlot(int slot, long value) {
+        if(shared || slot >= values.length) {
+            unshare(Math.max(slot + 1, values.length * (slot >= values.length ? 2: 1)));
+        }
+        values[slot] = value;
+        long bit = 1L << slot;
+        long word = defined[slot >>> 6];
+        if((word & bit) == 0) {
+            defined[slot >>> 6] = word | bit;
+            size++;
+        }
+    }
+
+    /**
+     * Get the number of defined registers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the IDs of defined registers, sorted.
+     */
+    public int[] getDefinedIds() {
+        int[] ids = new int[size];
+        int n = 0;
+        for(int slot = 0; slot < values.length; slot++) {
+            if(isSlotDefined(slot)) {
+                ids[n++] = slots.idOf(slot);
+            }
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        int[] ids = getDefinedIds();
+        for(int i = 0; i < ids.length; i++) {
+            if(i > 0) {
+                sb.append(", ");
+            }
+            sb.append(ids[i]).append('=').append(get(ids[i]));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -1,8 +1,18 @@
 package com.pnf.plugin.cemulator;
 
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.pnfsoftware.jeb.core.exceptions.JebRuntimeException;
 import com.pnfsoftware.jeb.core.input.BytesInput;
@@ -32,16 +42,21 @@ import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICPredicate;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICReturn;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICWhileStm;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodDataItem;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodItem;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 import com.pnfsoftware.jeb.util.math.MathUtil;
 import com.pnfsoftware.jeb.util.format.Strings;
-import com.pnfsoftware.jeb.util.io.IO;
 
 /**
  * Simple emulator for {@link ICMethod} (JEB's AST). Originally implemented to be used with
  * {@link CEmulatorPlugin}.
  * <p>
+ * Methods are first lowered into executable nodes (see {@link CompiledMethod}), which are then run.
+ * The original AST-walking interpreter is kept as a reference mode (see
+ * {@link #setReferenceMode(boolean)}).
+ * <p>
  * Limitations:
  * <ul>
  * <li>Emulator relies on a minimalist CFG implementation (see {@link CFG}), and hence has the same
@@ -65,15 +80,70 @@ public class SimpleCEmulator {
     /** synthetic register to store next method to emulate */
     public static final int REG_NEXT_METHOD_ID = 1;
 
+    /** register slots of the above registers, reserved in all slot tables (see {@link RegisterFile.SlotTable}) */
+    static final int REG_RAX_SLOT = 0;
+    static final int REG_RBP_SLOT = 1;
+    static final int REG_NEXT_METHOD_SLOT = 2;
+
     protected ICMethod method;
     protected EmulatorState state;
 
+    /** if true, walk the AST rather than run the lowered method */
+    protected boolean referenceMode = false;
+
     protected boolean defaultLogging = true;
     protected StringBuilder outputLog = new StringBuilder();
 
     private IUnit logUnit;
+    private IUnit traceUnit;
+
+    /** compiler for hot methods, null if disabled */
+    private JitCompiler jit;
+
+    /** CFGs and lowered forms of emulated routines, null if disabled */
+    private MethodCache methodCache = new MethodCache();
+    /** register slots of the lowered methods, if not cached */
+    private final RegisterFile.SlotTable registerSlots = new RegisterFile.SlotTable();
+
+    /** if true, run the fused statements of lowered methods at once */
+    private boolean fusion = true;
+    /** true if {@link #preEmulateStatementCallback(CFG, ICStatement)} is overridden, null if unknown */
+    private Boolean statementCallback;
+    /** true if {@link #simulateWellKnownMethods(ICMethod, List)} is overridden, null if unknown */
+    private Boolean wellKnownMethods;
+    /** call being simulated by {@link #simulateWellKnownMethods(ICMethod, List)} */
+    private ICCall currentCall;
+
+    /** limits and counters of the run, null if none */
+    private ExecutionBudget budget;
+
+    /** binary trace of lowered executions, null to log statements as text */
+    private BinaryTrace binaryTrace;
+    private StmNode lastTracedNode;
+
+    /** log and CFG of the current emulation */
+    private EmulatorLog log;
+    private CFG cfg;
+    /** routine and statement being emulated */
+    private Long currentRoutineAddress;
+    private ICStatement currentStatement;
 
-    private int logSize = 0;
+    /** models of called routines */
+    private SimulatedFunctionRegistry simulatedFunctions = new SimulatedFunctionRegistry();
+    /** resolved models of called routines (null if none), valid for the registry modification count */
+    private final Map<ICMethod, SimulatedFunction> resolvedFunctions = new IdentityHashMap<>();
+    private int resolvedModCount = -1;
+    /** addresses of the code unit's routines by (effective) name, see {@link #getRoutineAddress(ICMethod)} */
+    private final Map<String, Long> routineAddresses = new HashMap<>();
+    private INativeCodeUnit<?> routineAddressesUnit;
+
+    /** destination of the output log, when dumped to a file */
+    private LogSink logSink;
+
+    public SimpleCEmulator() {
+        new LibcFunctions().register(simulatedFunctions);
+        simulatedFunctions.loadProviders();
+    }
 
     /**
      * Emulate the given method using the given input state.
@@ -83,31 +153,118 @@ public class SimpleCEmulator {
      * @return log of the emulation
      */
     public EmulatorLog emulate(ICMethod method, EmulatorState inputState) {
+        return emulate(null, method, inputState);
+    }
+
+    /**
+     * Emulate the method at the given address using the given input state. Methods emulated
+     * repeatedly are compiled to JVM bytecode (see {@link #setJitCompiler(JitCompiler)}).
+     * 
+     * @param routineAddress address of the method, null if unknown
+     * @param method
+     * @param inputState
+     * @return log of the emulation
+     */
+    public EmulatorLog emulate(Long routineAddress, ICMethod method, EmulatorState inputState) {
+        long startNanos = System.nanoTime();
         preEmulateMethodCallback(method, inputState);
 
         state = inputState;
         this.method = method;
+        currentRoutineAddress = routineAddress;
+        currentStatement = null;
+        state.emulator = this;
+        MemoryProfile profile = state.getMemoryProfile();
+        if(profile != null) {
+            profile.beginHandler(routineAddress, method.getName());
+        }
 
         initEmulation();
-        EmulatorLog log = new EmulatorLog();
-
-        CFG cfg = CFG.buildCFG(method);
-        ICStatement currentStatement = cfg.getEntryPoint();
 
-        if(defaultLogging) {
+        if(defaultLogging && (binaryTrace == null || referenceMode)) {
             outputLog.append("> emulator trace:");
             outputLog.append(Strings.LINESEP);
         }
 
-        while(currentStatement != null) {
-            log.addExecutedStatement(currentStatement);
-
-            if(defaultLogging) {
-                outputLog.append(Strings.ff(" %s", currentStatement));
-                outputLog.append(Strings.LINESEP);
+        if(referenceMode) {
+            log = new EmulatorLog();
+            if(budget != null) {
+                log.setBudget(budget);
             }
+            emulateAST(methodCache != null && routineAddress != null ? methodCache.getCFG(routineAddress, method)
+                    : CFG.buildCFG(method));
+        }
+        else {
+            CompiledMethod compiled = null;
+            if(methodCache != null && routineAddress != null) {
+                compiled = methodCache.getCompiledMethod(routineAddress, method);
+            }
+            RegisterFile.SlotTable slots = methodCache != null ? methodCache.getRegisterSlots(): registerSlots;
+            JittedMethod jitted = null;
+            if(jit != null && routineAddress != null) {
+                jitted = jit.lookup(routineAddress, method, compiled, slots);
+            }
+            if(jitted != null) {
+                compiled = jitted.getCompiledMethod();
+            }
+            else if(compiled == null) {
+                compiled = CompiledMethod.compile(method, slots);
+            }
+            // (usually a no-op: the state already uses the table of the run)
+            state.bindRegisterSlots(compiled.getRegisterSlots());
+            log = new EmulatorLog(compiled);
+            if(budget != null) {
+                log.setBudget(budget);
+            }
+            if(binaryTrace != null) {
+                binaryTrace.beginMethod(routineAddress, compiled);
+            }
+            state.enterFrame(compiled.getFrameLayout());
+            try {
+                if(jitted != null) {
+                    cfg = compiled.getCFG();
+                    jitted.execute(this);
+                }
+                else {
+                    emulateCompiled(compiled);
+                }
+            }
+            finally {
+                state.exitFrame();
+            }
+            traceRegisterWrite();
+        }
 
-            currentStatement = emulateStatement(cfg, currentStatement);
+        if(profile != null) {
+            profile.endHandler();
+        }
+
+        EmulatorLog result = log;
+        if(budget != null) {
+            budget.addEmulation(result.getExecutedStatementCount(), System.nanoTime() - startNanos);
+        }
+        result.compact();
+        result.setEmulatorState(state);
+        log = null;
+        cfg = null;
+        return result;
+    }
+
+    /**
+     * Run the reference interpreter, walking the method's AST.
+     */
+    private void emulateAST(CFG cfg) {
+        int currentNode = cfg.getEntryIndex();
+        while(currentNode != CFG.EXIT) {
+            // straight-line statements of the basic block: successor is the next node
+            int lastNode = cfg.getBlockEnd(cfg.getBlock(currentNode)) - 1;
+            while(currentNode < lastNode) {
+                traceStatement(cfg.getStatement(currentNode));
+                emulateStatement(cfg, currentNode);
+                currentNode++;
+            }
+            traceStatement(cfg.getStatement(currentNode));
+            currentNode = emulateStatement(cfg, currentNode);
 
             // uncomment to see register + memory state
             //            if(defaultLogging) {
@@ -115,9 +272,265 @@ public class SimpleCEmulator {
             //                outputLog.append(Strings.LINESEP);
             //            }
         }
+    }
+
+    /**
+     * Run the lowered form of the method.
+     */
+    private void emulateCompiled(CompiledMethod compiled) {
+        cfg = compiled.getCFG();
+        StmNode currentNode = compiled.getEntryPoint();
+        if(fusion) {
+            emulateFused(currentNode);
+            return;
+        }
+        while(currentNode != null) {
+            enterStatement(currentNode);
+            currentNode = currentNode.execute(this);
+        }
+    }
+
+    /**
+     * Run the lowered form of the method, executing its fused runs (see {@link StmNode.FusedRun})
+     * without intermediate dispatch. Statements of a run are traced and logged as text one by one,
+     * but added to the emulator log once the run completed (or up to the failing statement);
+     * {@link #preEmulateStatementCallback(CFG, ICStatement)} is only raised for fused statements if
+     * overridden.
+     */
+    private void emulateFused(StmNode currentNode) {
+        boolean callback = hasStatementCallback();
+        boolean tracing = binaryTrace != null || defaultLogging;
+        while(currentNode != null) {
+            StmNode.FusedRun run = currentNode.run;
+            if(run == null) {
+                enterStatement(currentNode);
+                currentNode = currentNode.execute(this);
+                continue;
+            }
+            // position of the statement being executed, in the run
+            int position = 0;
+            try {
+                if(callback || tracing) {
+                    for(; position < run.nodes.length; position++) {
+                        StmNode node = run.nodes[position];
+                        traceNode(node);
+                        currentStatement = node.statement;
+                        if(callback) {
+                            preEmulateStatementCallback(cfg, node.statement);
+                        }
+                        if(!(node instanceof StmNode.Nop)) {
+                            node.execute(this);
+                        }
+                    }
+                }
+                else {
+                    StmNode[] assignments = run.assignments;
+                    for(int i = 0; i < assignments.length; i++) {
+                        position = run.positions[i];
+                        currentStatement = assignments[i].statement;
+                        assignments[i].execute(this);
+                    }
+                    position = run.nodes.length;
+                }
+            }
+            catch(RuntimeException e) {
+                // failing statement is logged, as with unfused execution
+                try {
+                    log.addExecutedStatements(run.indexes, position + 1);
+                }
+                catch(ExecutionBudget.ExceededException budgetException) {
+                    e.addSuppressed(budgetException);
+                }
+                throw e;
+            }
+            log.addExecutedStatements(run.indexes, run.nodes.length);
+            currentNode = run.next;
+        }
+    }
+
+    private boolean hasStatementCallback() {
+        if(statementCallback == null) {
+            statementCallback = isOverridden("preEmulateStatementCallback", CFG.class, ICStatement.class);
+        }
+        return statementCallback;
+    }
+
+    /**
+     * Check if a method of this class is overridden by the emulator's class.
+     */
+    private boolean isOverridden(String name, Class<?>... parameterTypes) {
+        for(Class<?> c = getClass(); c != SimpleCEmulator.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            }
+            catch(NoSuchMethodException e) {
+                // not overridden by this class
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Statement events, raised before executing a lowered statement.
+     */
+    void enterStatement(StmNode node) {
+        traceNode(node);
+        log.addExecutedStatement(node.index);
+        currentStatement = node.statement;
+        preEmulateStatementCallback(cfg, node.statement);
+    }
+
+    /**
+     * Record a lowered statement in the binary trace, or in the text log.
+     */
+    private void traceNode(StmNode node) {
+        if(binaryTrace != null) {
+            traceRegisterWrite();
+            binaryTrace.record(node.index);
+            lastTracedNode = node;
+        }
+        else if(defaultLogging) {
+            outputLog.append(node.getLogText());
+        }
+    }
+
+    /**
+     * Record the register written by the last traced statement, if any.
+     */
+    private void traceRegisterWrite() {
+        if(lastTracedNode != null && binaryTrace.isRecordingRegisters()
+                && lastTracedNode instanceof StmNode.AssignVariable) {
+            StmNode.AssignVariable assign = (StmNode.AssignVariable)lastTracedNode;
+            if(assign.isRegisterAssignment()) {
+                int id = assign.var.getId();
+                binaryTrace.setRegisterWrite(id, state.getRegister(id));
+            }
+        }
+        lastTracedNode = null;
+    }
+
+    private void traceStatement(ICStatement currentStatement) {
+        log.addExecutedStatement(currentStatement);
+        this.currentStatement = currentStatement;
+
+        if(defaultLogging) {
+            logStatement(currentStatement);
+        }
+    }
+
+    private void logStatement(ICStatement currentStatement) {
+        outputLog.append(' ').append(currentStatement).append(Strings.LINESEP);
+    }
+
+    /**
+     * Get the address of the routine being emulated, null if unknown.
+     */
+    public Long getCurrentRoutineAddress() {
+        return currentRoutineAddress;
+    }
+
+    /**
+     * Get the method being emulated (or last emulated).
+     */
+    public ICMethod getCurrentMethod() {
+        return method;
+    }
+
+    /**
+     * Get the statement being emulated (or last emulated).
+     */
+    public ICStatement getCurrentStatement() {
+        return currentStatement;
+    }
+
+    /**
+     * Select the reference interpreter (AST walking) rather than the lowered form of methods (see
+     * {@link CompiledMethod}). Both modes should produce the same results; reference mode is
+     * slower, and serves for comparison purposes.
+     */
+    public void setReferenceMode(boolean referenceMode) {
+        this.referenceMode = referenceMode;
+    }
+
+    public boolean isReferenceMode() {
+        return referenceMode;
+    }
+
+    /**
+     * Set the compiler for hot methods; null to disable compilation (default).
+     */
+    public void setJitCompiler(JitCompiler jit) {
+        this.jit = jit;
+    }
+
+    public JitCompiler getJitCompiler() {
+        return jit;
+    }
+
+    /**
+     * Set the cache of CFGs and lowered forms, used for emulations with a routine address; null to
+     * rebuild them on every emulation. A cache of {@link MethodCache#DEFAULT_CAPACITY} methods is
+     * set by default.
+     */
+    public void setMethodCache(MethodCache methodCache) {
+        this.methodCache = methodCache;
+    }
+
+    public MethodCache getMethodCache() {
+        return methodCache;
+    }
+
+    /**
+     * Set the limits and counters of the run: emulations raise an
+     * {@link ExecutionBudget.ExceededException} once the statement limit (or the time or memory
+     * limit) is reached, even within a handler.
+     *
+     * @param budget budget, null for none (default)
+     */
+    public void setBudget(ExecutionBudget budget) {
+        this.budget = budget;
+    }
+
+    public ExecutionBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Enable the execution of fused statements (see {@link CompiledMethod#getFusedStatementCount()}).
+     * Enabled by default.
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    public boolean isFusion() {
+        return fusion;
+    }
+
+    /**
+     * Drop the structures built for a routine (CFG, lowered and compiled forms), eg after its
+     * method was modified in place.
+     */
+    public void invalidateMethod(long routineAddress) {
+        if(methodCache != null) {
+            methodCache.invalidate(routineAddress);
+        }
+        if(jit != null) {
+            jit.invalidate(routineAddress);
+        }
+    }
+
+    /**
+     * Record executed statements in a binary trace rather than logging them as text (reference
+     * mode excepted); null to restore text logging (default).
+     */
+    public void setBinaryTrace(BinaryTrace binaryTrace) {
+        this.binaryTrace = binaryTrace;
+    }
 
-        log.setEmulatorState(state);
-        return log;
+    public BinaryTrace getBinaryTrace() {
+        return binaryTrace;
     }
 
     protected void preEmulateMethodCallback(ICMethod method, EmulatorState inputState) {
@@ -135,14 +548,37 @@ public class SimpleCEmulator {
         return;
     }
 
-    private ICStatement emulateStatement(CFG cfg, ICStatement currentStatement) {
+    /**
+     * Save the emulator's own state kept between handlers, in a checkpoint (see
+     * {@link CheckpointFile}).
+     */
+    protected void saveCheckpointState(DataOutput out) throws IOException {
+        // default implementation does nothing - override with specific state
+        return;
+    }
+
+    /**
+     * Restore the state saved by {@link #saveCheckpointState(DataOutput)}.
+     */
+    protected void restoreCheckpointState(DataInput in) throws IOException {
+        // default implementation does nothing - override with specific state
+        return;
+    }
+
+    /**
+     * Emulate a statement.
+     *
+     * @return node index of the next statement, {@link CFG#EXIT} if none
+     */
+    private int emulateStatement(CFG cfg, int currentNode) {
+        ICStatement currentStatement = cfg.getStatement(currentNode);
         preEmulateStatementCallback(cfg, currentStatement);
 
         if(currentStatement instanceof ICGoto) {
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICLabel) {
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICReturn) {
             ICExpression retExpression = ((ICReturn)currentStatement).getExpression();
@@ -151,53 +587,53 @@ public class SimpleCEmulator {
                 state.setRegisterValue(REG_RAX_ID,
                         evaluateExpression(retExpression));
             }
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICAssignment) {
             evaluateAssignment((ICAssignment)currentStatement);
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICIfStm) {
             ICIfStm ifStm = (ICIfStm)currentStatement;
             List<? extends ICPredicate> predicates = ifStm.getBranchPredicates();
             for(int i = 0; i < predicates.size(); i++) {
                 if(evaluateExpression(predicates.get(i)) != 0) {
-                    return cfg.getNthNextStatement(currentStatement, i);
+                    return cfg.getNthNext(currentNode, i);
                 }
             }
             // ...or go to else block if present (last conditional target)
             if(ifStm.hasDefaultBlock()) {
-                return cfg.getNthNextStatement(currentStatement, predicates.size());
+                return cfg.getNthNext(currentNode, predicates.size());
             }
             // ...or to fallthrough
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICWhileStm) {
             ICWhileStm wStm = (ICWhileStm)currentStatement;
             if(evaluateExpression(wStm.getPredicate()) != 0) {
-                return cfg.getNextTrueStatement(wStm);
+                return cfg.getNthNext(currentNode, 0);
             }
             else {
-                return cfg.getNextStatement(wStm);
+                return cfg.getNext(currentNode);
             }
         }
         else if(currentStatement instanceof ICBlock) {
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICControlBreaker) {
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICDecl) {
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICCall) {
             evaluateCall((ICCall)currentStatement);
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else if(currentStatement instanceof ICJumpFar) {
             long targetAddr = evaluateExpression(((ICJumpFar)currentStatement).getJumpsite());
             state.setRegisterValue(REG_NEXT_METHOD_ID, targetAddr);
-            return cfg.getNextStatement(currentStatement);
+            return cfg.getNext(currentNode);
         }
         else {
             throw new EmulatorException(
@@ -207,52 +643,34 @@ public class SimpleCEmulator {
 
     private void evaluateCall(ICCall ccall) {
         if(ccall.getMethod() != null) { // resolved calls
-            Long returnValue = simulateWellKnownMethods(ccall.getMethod(),
-                    ccall.getArguments());
-            if(returnValue == null) {
-                // simulation failed, we need to emulate callee
-                throw new EmulatorException(
-                        Strings.ff("ERROR: unimplemented recursive emulation (%s)", ccall));
-            }
-            else {
-                state.setRegisterValue(REG_RAX_ID, returnValue);
-            }
+            long returnValue = simulateCall(ccall, ccall.getArguments(),
+                    resolveSimulatedFunction(ccall.getMethod()));
+            state.setRegisterSlot(REG_RAX_SLOT, returnValue);
         }
         else { // calls whose target is not resolved yet
               // here we need to go emulate target, and we assume such call is non-returning
-            Long nextHandlerAddr = evaluateExpression(ccall.getCallsite());
-            if(nextHandlerAddr == null) {
-                throw new EmulatorException(Strings.ff("ERROR: cannot resolve target (%s)", ccall));
-            }
-            else {
-                state.setRegisterValue(REG_NEXT_METHOD_ID, nextHandlerAddr);
-            }
+            long nextHandlerAddr = evaluateExpression(ccall.getCallsite());
+            state.setRegisterSlot(REG_NEXT_METHOD_SLOT, nextHandlerAddr);
         }
     }
 
     private void evaluateAssignment(ICAssignment assign) {
         if(assign.isSimpleAssignment()) {
             // right hand side eval
-            Long rightValue = evaluateExpression(assign.getRight());
-            if(rightValue == null){
-                throw new EmulatorException(Strings.ff("right value evaluation (%s)", assign));
-            }
+            long rightValue = evaluateExpression(assign.getRight());
             // left hand side eval
             ICExpression leftDerefExpr = getDereferencedExpression(assign.getLeft());
             if(leftDerefExpr != null) {
-                Long leftExprValue = evaluateExpression(leftDerefExpr);
-                if(leftExprValue != null) {
-                    // memory access
-                    if(((ICOperation)assign.getLeft()).getFirstOperand() instanceof ICOperation) {
-                        ICOperation leftFirstOperand = (ICOperation)(((ICOperation)assign.getLeft()).getFirstOperand());
-                        if(leftFirstOperand.getOperator().isCast()) {
-                            int derefCastSize = state
-                                    .getBaseTypeSize(((ICOperation)leftFirstOperand).getOperator().getCastType());
-                            state.writeMemory(leftExprValue, rightValue, derefCastSize);
-                        }
-                        else {
-                            state.writeMemory(leftExprValue, rightValue, 8);
-                        }
+                long leftExprValue = evaluateExpression(leftDerefExpr);
+                // memory access
+                if(((ICOperation)assign.getLeft()).getFirstOperand() instanceof ICOperation) {
+                    ICOperation leftFirstOperand = (ICOperation)(((ICOperation)assign.getLeft()).getFirstOperand());
+                    if(leftFirstOperand.getOperator().isCast()) {
+                        int derefCastSize = state.getBaseTypeSize(leftFirstOperand.getOperator().getCastType());
+                        state.writeMemory(leftExprValue, rightValue, derefCastSize);
+                    }
+                    else {
+                        state.writeMemory(leftExprValue, rightValue, 8);
                     }
                 }
             }
@@ -275,7 +693,15 @@ public class SimpleCEmulator {
         return null;
     }
 
-    protected Long evaluateExpression(ICExpression expr) {
+    /**
+     * Evaluate an expression, walking its AST.
+     * <p>
+     * Non initialized register identifiers are evaluated to 0.
+     * 
+     * @param expr
+     * @return expression value
+     */
+    protected long evaluateExpression(ICExpression expr) {
         if(expr instanceof ICConstantInteger) {
             return ((ICConstantInteger<?>)expr).getValueAsLong();
         }
@@ -286,19 +712,21 @@ public class SimpleCEmulator {
             return evaluateOperation((ICOperation)expr);
         }
         else if(expr instanceof ICIdentifier) {
-            Long varValue = state.getVarValue((ICIdentifier)expr);
-            if(varValue == null) {
+            if(!state.isVarDefined((ICIdentifier)expr)) {
                 logger.info("> warning: non initialized identifier (%s) -- defining it to 0L", expr);
-                varValue = 0L;
+                return 0L;
             }
-            return varValue;
+            return state.getVarValue((ICIdentifier)expr);
         }
         else if(expr instanceof ICPredicate) {
             return evaluateExpression(((ICPredicate)expr).getExpression()) != 0 ? 1L: 0L;
         }
         else if(expr instanceof ICCall) {
             evaluateCall(((ICCall)expr));
-            return state.getRegisterValue(REG_RAX_ID);
+            if(!state.isRegisterSlotDefined(REG_RAX_SLOT)) {
+                throw new EmulatorException(Strings.ff("ERROR: undefined return value (%s)", expr));
+            }
+            return state.getRegisterSlot(REG_RAX_SLOT);
         }
         else {
             throw new EmulatorException(Strings.ff("ERROR: unimplemented expression eval (%s)", expr));
@@ -306,45 +734,129 @@ public class SimpleCEmulator {
     }
 
     /**
-     * Simulate well known methods; ie, rather than emulating their actual code, we simulate it in
-     * Java.
+     * Simulate a resolved call: with the model of the callee, or with
+     * {@link #simulateWellKnownMethods(ICMethod, List)} if overridden.
+     * 
+     * @param call
+     * @param arguments call arguments
+     * @param function model of the callee (see {@link #resolveSimulatedFunction(ICMethod)}), null
+     *            if none
+     * @return routine return value
+     */
+    long simulateCall(ICCall call, List<ICExpression> arguments, SimulatedFunction function) {
+        if(wellKnownMethods == null) {
+            wellKnownMethods = isOverridden("simulateWellKnownMethods", ICMethod.class, List.class);
+        }
+        if(wellKnownMethods) {
+            currentCall = call;
+            Long returnValue;
+            try {
+                returnValue = simulateWellKnownMethods(call.getMethod(), arguments);
+            }
+            finally {
+                currentCall = null;
+            }
+            if(returnValue != null) {
+                return returnValue;
+            }
+        }
+        else if(function != null) {
+            return function.simulate(this, call, arguments);
+        }
+        // simulation failed, we need to emulate callee
+        throw new EmulatorException(Strings.ff("ERROR: unimplemented recursive emulation (%s)", call));
+    }
+
+    /**
+     * Simulate well known methods. Default implementation uses the registry of simulated functions
+     * (see {@link #getSimulatedFunctions()}): overriding methods should call it for the routines
+     * they do not handle. Registering a {@link SimulatedFunction} should be preferred to overriding
+     * this method.
+     * <p>
+     * Note: calls only go through this method when it is overridden, so that the boxed return
+     * value does not cost simulated calls otherwise.
      * 
      * @return method return value, null if failure
      */
     protected Long simulateWellKnownMethods(ICMethod calledMethod,
             List<ICExpression> parameters) {
-        /**
-         * libc APIs
-         */
-        if(calledMethod.getName().equals("→time")) {
-            return 42L;
-        }
-        else if(calledMethod.getName().equals("→srand")) {
-            return 37L;
-        }
-        else if(calledMethod.getName().equals("→memcpy")) {
-            ICExpression dst = parameters.get(0);
-            ICExpression src = parameters.get(1);
-            ICExpression n = parameters.get(2);
-            if(src instanceof ICOperation && ((ICOperation)src).checkOperatorType(COperatorType.CAST)
-                    && n instanceof ICConstantInteger) {
-                long src_ = ((ICConstantPointer)((ICOperation)src).getFirstOperand()).getValue();
-                int n_ = (int)((ICConstantInteger<?>)n).getValueAsLong();
-                long dst_ = evaluateExpression(dst);
-                state.copyMemory(src_, dst_, n_);
-                return dst_;
-            }
-            else {
-                throw new EmulatorException("TBI: memcpy");
+        SimulatedFunction function = resolveSimulatedFunction(calledMethod);
+        return function != null ? function.simulate(this, currentCall, parameters): null;
+    }
+
+    /**
+     * Get the address of a called routine, used to find its model by address. Default
+     * implementation looks the routine up in the code unit of the current state, by its effective
+     * name; the mapping is rebuilt when a name is not found, eg after a routine was renamed.
+     * 
+     * @param calledMethod
+     * @return routine address, null if unknown (eg, imported routine)
+     */
+    protected Long getRoutineAddress(ICMethod calledMethod) {
+        String name = calledMethod.getName();
+        INativeCodeUnit<?> unit = state != null ? state.getNativeCodeUnit(): null;
+        if(unit == null || name.startsWith(SimulatedFunctionRegistry.IMPORT_PREFIX)) {
+            return null;
+        }
+        if(unit != routineAddressesUnit || !routineAddresses.containsKey(name)) {
+            routineAddressesUnit = unit;
+            routineAddresses.clear();
+            for(INativeMethodItem routine: unit.getInternalMethods()) {
+                INativeMethodDataItem data = routine.getData();
+                if(data != null) {
+                    routineAddresses.put(routine.getName(true), data.getMemoryAddress());
+                }
             }
         }
+        return routineAddresses.get(name);
+    }
 
+    /**
+     * Find the model of a called routine. Resolutions are cached per routine until the registry is
+     * modified, so that simulated calls neither parse routine names nor box addresses.
+     * 
+     * @return model, null if none
+     */
+    SimulatedFunction resolveSimulatedFunction(ICMethod calledMethod) {
+        if(resolvedModCount != simulatedFunctions.getModCount()) {
+            resolvedFunctions.clear();
+            resolvedModCount = simulatedFunctions.getModCount();
+        }
+        SimulatedFunction function = resolvedFunctions.get(calledMethod);
+        if(function == null && !resolvedFunctions.containsKey(calledMethod)) {
+            function = simulatedFunctions.resolve(getRoutineAddress(calledMethod), calledMethod);
+            resolvedFunctions.put(calledMethod, function);
+        }
+        return function;
+    }
 
-        return null;
+    /**
+     * Get the registry of simulated functions, by default filled with libc models (see
+     * {@link LibcFunctions}) and the ones of {@link SimulatedFunctionProvider} services.
+     */
+    public SimulatedFunctionRegistry getSimulatedFunctions() {
+        return simulatedFunctions;
+    }
+
+    /**
+     * Evaluate an expression on the current state; to be used by simulated functions.
+     * 
+     * @param expr
+     * @return expression value
+     */
+    public long evaluate(ICExpression expr) {
+        return evaluateExpression(expr);
     }
 
-    private Long evaluateOperation(ICOperation operation) {
-        Long value = null;
+    /**
+     * Get the state of the current emulation.
+     */
+    public EmulatorState getState() {
+        return state;
+    }
+
+    private long evaluateOperation(ICOperation operation) {
+        long value;
 
         ICExpression opnd1 = operation.getFirstOperand();
         ICExpression opnd2 = operation.getSecondOperand();
@@ -359,20 +871,16 @@ public class SimpleCEmulator {
             value = evaluateExpression(opnd1) & evaluateExpression(opnd2);
             break;
         case CAST:
-            int castSize = state.getTypeSize(operator.getCastType());
-            long castOperand = MathUtil.makeMask(castSize * 8);
-            value = evaluateExpression(opnd1) & castOperand;
+            value = evaluateExpression(opnd1) & state.getCastMask(operator.getCastType());
             break;
         case COND:
             value = evaluateExpression(opnd1) != 0 ? evaluateExpression(opnd2): evaluateExpression(opnd3);
             break;
-        case CUSTOM:
-            break;
         case DIV:
             value = evaluateExpression(opnd1) / evaluateExpression(opnd2);
             break;
         case EQ:
-            value = evaluateExpression(opnd1).equals(evaluateExpression(opnd2)) ? 1L: 0L;
+            value = evaluateExpression(opnd1) == evaluateExpression(opnd2) ? 1L: 0L;
             break;
         case GE:
             value = evaluateExpression(opnd1) >= evaluateExpression(opnd2) ? 1L: 0L;
@@ -424,7 +932,7 @@ public class SimpleCEmulator {
                     int derefCastSize = state
                             .getBaseTypeSize(((ICOperation)opnd1).getOperator().getCastType());
                     value = state.readMemorySafe(
-                            evaluateExpression(((ICExpression)((ICOperation)opnd1).getFirstOperand())),
+                            evaluateExpression(((ICOperation)opnd1).getFirstOperand()),
                             derefCastSize);
                     value = MathUtil.signExtend(value, derefCastSize * 8);
                 }
@@ -468,8 +976,6 @@ public class SimpleCEmulator {
         case SHR:
             value = evaluateExpression(opnd1) >> evaluateExpression(opnd2);
             break;
-        case SIZEOF:
-            break;
         case SUB:
             value = evaluateExpression(opnd1) - evaluateExpression(opnd2);
             break;
@@ -480,9 +986,7 @@ public class SimpleCEmulator {
             value = evaluateExpression(opnd1) ^ evaluateExpression(opnd2);
             break;
         default:
-            break;
-        }
-        if(value == null) {
+            // CUSTOM, SIZEOF
             throw new EmulatorException(Strings.ff("TBI: operator (%s)", operator));
         }
         return value;
@@ -496,6 +1000,10 @@ public class SimpleCEmulator {
      * @return base pointer, null if cannot be found
      */
     public ICIdentifier getBasePointer(ICOperation operation) {
+        return findBasePointer(operation);
+    }
+
+    static ICIdentifier findBasePointer(ICOperation operation) {
         ICIdentifier basePointer = null;
         if(operation.getFirstOperand() instanceof ICIdentifier) {
             basePointer = (ICIdentifier)operation.getFirstOperand();
@@ -509,33 +1017,100 @@ public class SimpleCEmulator {
         return basePointer;
     }
 
+    /**
+     * Dump the output log, either to a file (only the text logged since the previous dump is
+     * written, see {@link #setLogSink(LogSink)}), or as a sub unit of the code unit.
+     * 
+     * @param logFile log file, null to dump as a unit
+     */
     public void dumpLog(File logFile) {
-        if(logFile != null) {
-            if(outputLog.length() != logSize) { // if something new...
-                try {
-                    IO.writeFile(logFile, Strings.encodeUTF8(outputLog.toString()));
-                    logSize = outputLog.length();
-                }
-                catch(IOException e) {
-                    throw new JebRuntimeException("failed to write log file");
-                }
+        if(logSink != null || logFile != null) {
+            if(logSink == null) {
+                logSink = new LogSink(logFile);
+            }
+            // only new text is written; it is then dropped from memory
+            if(outputLog.length() != 0) {
+                logSink.append(outputLog);
+                outputLog.setLength(0);
             }
         }
         else {
             // dump as text unit
-            INativeCodeUnit<?> codeUnit = state.getNativeCodeUnit();
-            if(codeUnit != null && codeUnit.getCodeObjectContainer() != null) {
-                if(logUnit == null) {
-                    logUnit = codeUnit.getUnitProcessor().process("C emulator log",
-                            new BytesInput(Strings.encodeUTF8(outputLog.toString())), codeUnit.getCodeObjectContainer(),
-                            WellKnownUnitTypes.typeGeneric);
-                    codeUnit.getCodeObjectContainer().addChild(logUnit);
-                }
-                else {
-                    ((AbstractBinaryUnit)logUnit).setInput(new BytesInput(Strings.encodeUTF8(outputLog.toString())));
+            logUnit = publishTextUnit(logUnit, "C emulator log", outputLog.toString());
+        }
+    }
+
+    /**
+     * Set the file sink receiving the output log (see {@link #dumpLog(File)}); by default, a sink
+     * without rotation nor compression is created on the first dump to a file.
+     */
+    public void setLogSink(LogSink logSink) {
+        this.logSink = logSink;
+    }
+
+    public LogSink getLogSink() {
+        return logSink;
+    }
+
+    /**
+     * Write the pending output log and close the file sink, if any.
+     */
+    public void closeLog() {
+        if(logSink != null) {
+            if(outputLog.length() != 0) {
+                logSink.append(outputLog);
+                outputLog.setLength(0);
+            }
+            logSink.close();
+            logSink = null;
+        }
+    }
+
+    /**
+     * Render the binary trace (see {@link #setBinaryTrace(BinaryTrace)}), if any.
+     * 
+     * @param traceFile output file, null to dump the trace as a sub unit of the code unit
+     */
+    public void dumpTrace(File traceFile) {
+        if(binaryTrace == null) {
+            return;
+        }
+        try {
+            if(traceFile != null) {
+                try(Writer out = new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(traceFile), StandardCharsets.UTF_8))) {
+                    binaryTrace.render(out);
                 }
             }
+            else {
+                StringBuilder sb = new StringBuilder();
+                binaryTrace.render(sb);
+                traceUnit = publishTextUnit(traceUnit, "C emulator trace", sb.toString());
+            }
+        }
+        catch(IOException e) {
+            throw new JebRuntimeException("failed to write trace");
+        }
+    }
+
+    /**
+     * Create or update a text unit under the code unit.
+     * 
+     * @return the unit, null if there is no code unit
+     */
+    private IUnit publishTextUnit(IUnit unit, String name, String text) {
+        INativeCodeUnit<?> codeUnit = state.getNativeCodeUnit();
+        if(codeUnit != null && codeUnit.getCodeObjectContainer() != null) {
+            if(unit == null) {
+                unit = codeUnit.getUnitProcessor().process(name, new BytesInput(Strings.encodeUTF8(text)),
+                        codeUnit.getCodeObjectContainer(), WellKnownUnitTypes.typeGeneric);
+                codeUnit.getCodeObjectContainer().addChild(unit);
+            }
+            else {
+                ((AbstractBinaryUnit)unit).setInput(new BytesInput(Strings.encodeUTF8(text)));
+            }
         }
+        return unit;
     }
 
 }
@@ -0,0 +1,25 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICCall;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICExpression;
+
+/**
+ * Java model of a called routine; ie, rather than emulating its actual code, the routine is
+ * simulated. Models are registered in a {@link SimulatedFunctionRegistry}.
+ */
+public interface SimulatedFunction {
+
+    /**
+     * Simulate a call.
+     * 
+     * @param emulator emulator executing the call; arguments can be evaluated with
+     *            {@link SimpleCEmulator#evaluate(ICExpression)}
+     * @param call call being simulated
+     * @param arguments call arguments
+     * @return routine return value
+     * @throws EmulatorException if the call can not be simulated
+     */
+    long simulate(SimpleCEmulator emulator, ICCall call, List<ICExpression> arguments);
+}
@@ -0,0 +1,18 @@
+package com.pnf.plugin.cemulator;
+
+/**
+ * Service interface to contribute simulated functions. Providers are discovered once with
+ * {@link java.util.ServiceLoader}, and register their models in the registry of each emulator
+ * created (see {@link SimulatedFunctionRegistry#loadProviders()}); ie, an external jar registers its
+ * models by listing its provider class name in
+ * {@code META-INF/services/com.pnf.plugin.cemulator.SimulatedFunctionProvider}.
+ */
+public interface SimulatedFunctionProvider {
+
+    /**
+     * Register models in the given registry.
+     * 
+     * @param registry
+     */
+    void register(SimulatedFunctionRegistry registry);
+}
@@ -0,0 +1,125 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Simulated functions, keyed by routine address and by imported routine name.
+ * <p>
+ * Resolution is done once per call site (see {@link ExprNode.CallSite}); the registry
+ * modification count lets call sites detect stale resolutions.
+ */
+public class SimulatedFunctionRegistry {
+    private static final ILogger logger = GlobalLog.getLogger(SimulatedFunctionRegistry.class);
+
+    /** prefix given by JEB to imported routines' names (eg, →memcpy) */
+    public static final String IMPORT_PREFIX = "→";
+
+    /** providers found by {@link ServiceLoader}, null until looked up */
+    private static List<SimulatedFunctionProvider> providers;
+
+    private Map<Long, SimulatedFunction> byAddress = new HashMap<>();
+    private Map<String, SimulatedFunction> byName = new HashMap<>();
+
+    private int modCount;
+
+    /**
+     * Register a model for the routine at the given address. Address models take precedence over
+     * name models.
+     */
+    public void register(long routineAddress, SimulatedFunction function) {
+        byAddress.put(routineAddress, function);
+        modCount++;
+    }
+
+    /**
+     * Register a model for the imported routine of the given name, with or without import prefix:
+     * a model registered for "memcpy" matches the "→memcpy" routine, but not a routine of the
+     * program named "memcpy" (register it by address instead).
+     */
+    public void register(String name, SimulatedFunction function) {
+        byName.put(stripImportPrefix(name), function);
+        modCount++;
+    }
+
+    public void unregister(long routineAddress) {
+        if(byAddress.remove(routineAddress) != null) {
+            modCount++;
+        }
+    }
+
+    public void unregister(String name) {
+        if(byName.remove(stripImportPrefix(name)) != null) {
+            modCount++;
+        }
+    }
+
+    /**
+     * Register the models of all providers found by {@link ServiceLoader}. Providers are looked up
+     * once, with the loader of this class.
+     */
+    public void loadProviders() {
+        for(SimulatedFunctionProvider provider: getProviders()) {
+            provider.register(this);
+        }
+    }
+
+    private static synchronized List<SimulatedFunctionProvider> getProviders() {
+        if(providers == null) {
+            List<SimulatedFunctionProvider> found = new ArrayList<>();
+            try {
+                for(SimulatedFunctionProvider provider: ServiceLoader.load(SimulatedFunctionProvider.class,
+                        SimulatedFunctionRegistry.class.getClassLoader())) {
+                    found.add(provider);
+                }
+            }
+            catch(ServiceConfigurationError e) {
+                logger.info("> warning: cannot load simulated functions (%s)", e.getMessage());
+            }
+            providers = Collections.unmodifiableList(found);
+        }
+        return providers;
+    }
+
+    /**
+     * Find the model of a routine.
+     * 
+     * @param routineAddress routine address, null if unknown
+     * @param method routine
+     * @return model, null if none
+     */
+    public SimulatedFunction resolve(Long routineAddress, ICMethod method) {
+        if(routineAddress != null) {
+            SimulatedFunction function = byAddress.get(routineAddress);
+            if(function != null) {
+                return function;
+            }
+        }
+        String name = method.getName();
+        return name.startsWith(IMPORT_PREFIX) ? byName.get(stripImportPrefix(name)): null;
+    }
+
+    /**
+     * Get the registry modification count, incremented by each (un)registration.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    public int size() {
+        return byAddress.size() + byName.size();
+    }
+
+    private static String stripImportPrefix(String name) {
+        return name.startsWith(IMPORT_PREFIX) ? name.substring(IMPORT_PREFIX.length()): name;
+    }
+}
@@ -0,0 +1,316 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.CIdentifierClass;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIdentifier;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICType;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Executable statement node, produced by lowering an {@link ICStatement} (see
+ * {@link CompiledMethod}).
+ * <p>
+ * Successors are resolved at lowering time from the method's {@link CFG}; a null successor is the
+ * method exit. Execution semantics mirror the AST interpreter of {@link SimpleCEmulator}.
+ */
+abstract class StmNode {
+
+    /** source statement */
+    final ICStatement statement;
+
+    /** index of the node in its {@link CompiledMethod} */
+    final int index;
+
+    /** fallthrough successor, null if none */
+    StmNode next;
+
+    /** fused run starting at this node, null if none (see {@link FusedRun}) */
+    FusedRun run;
+
+    /** line of the statement in the text log, rendered on first use */
+    private String logText;
+
+    StmNode(ICStatement statement, int index) {
+        this.statement = statement;
+        this.index = index;
+    }
+
+    /**
+     * Execute the statement on the emulator's current state.
+     *
+     * @param emu
+     * @return next statement to execute, null if end of method
+     */
+    abstract StmNode execute(SimpleCEmulator emu);
+
+    ICStatement getStatement() {
+        return statement;
+    }
+
+    /**
+     * Get the line of the statement in the emulator's text log. The line is rendered once, so that
+     * logging a lowered statement does not allocate.
+     */
+    String getLogText() {
+        String text = logText;
+        if(text == null) {
+            text = " " + statement + Strings.LINESEP;
+            logText = text;
+        }
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return index + ":" + getClass().getSimpleName() + "(" + statement + ")";
+    }
+
+    /**
+     * Check if the node can be part of a {@link FusedRun}: its only successor is {@link #next}, and
+     * it can not leave the method.
+     */
+    boolean isFusible() {
+        return this instanceof Nop || this instanceof AssignVariable || this instanceof AssignMemory;
+    }
+
+    /**
+     * Superinstruction: straight-line run of assignments and no-op statements (labels, gotos...),
+     * built by {@link CompiledMethod}, and executed by {@link SimpleCEmulator} without going back
+     * to the dispatch loop between statements.
+     */
+    static final class FusedRun {
+        /** covered nodes, in execution order */
+        final StmNode[] nodes;
+        /** indexes of the covered nodes */
+        final int[] indexes;
+        /** assignments, in execution order (ie, covered nodes with side-effects) */
+        final StmNode[] assignments;
+        /** positions of the assignments in the covered nodes */
+        final int[] positions;
+        /** successor of the last covered node, null if end of method */
+        final StmNode next;
+
+        FusedRun(List<StmNode> nodes, StmNode next) {
+            this.nodes = nodes.toArray(new StmNode[nodes.size()]);
+            this.next = next;
+            indexes = new int[this.nodes.length];
+            List<StmNode> assignments = new ArrayList<>();
+            int[] positions = new int[indexes.length];
+            for(int i = 0; i < indexes.length; i++) {
+                indexes[i] = this.nodes[i].index;
+                if(!(this.nodes[i] instanceof Nop)) {
+                    positions[assignments.size()] = i;
+                    assignments.add(this.nodes[i]);
+                }
+            }
+            this.assignments = assignments.toArray(new StmNode[assignments.size()]);
+            this.positions = Arrays.copyOf(positions, assignments.size());
+        }
+
+        @Override
+        public String toString() {
+            return Strings.ff("FusedRun(%d-%d, %d assignments)", indexes[0], indexes[indexes.length - 1],
+                    assignments.length);
+        }
+    }
+
+    /**
+     * Statement that can not be emulated; execution fails, as the AST interpreter would.
+     */
+    static final class Unsupported extends StmNode {
+        private final String message;
+
+        Unsupported(ICStatement statement, int index, String message) {
+            super(statement, index);
+            this.message = message;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            throw new EmulatorException(message);
+        }
+    }
+
+    /**
+     * Statement without side-effect (labels, gotos, blocks, control breakers, declarations).
+     */
+    static final class Nop extends StmNode {
+        Nop(ICStatement statement, int index) {
+            super(statement, index);
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            return next;
+        }
+    }
+
+    static final class Return extends StmNode {
+        /** returned value, null if none */
+        final ExprNode value;
+
+        Return(ICStatement statement, int index, ExprNode value) {
+            super(statement, index);
+            this.value = value;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            if(value != null) {
+                // note: would need to check calling convention
+                emu.state.setRegisterSlot(SimpleCEmulator.REG_RAX_SLOT, value.eval(emu));
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Assignment to an identifier (register or memory variable).
+     */
+    static final class AssignVariable extends StmNode {
+        final ICIdentifier var;
+        final ExprNode right;
+        /** register slot, -1 for memory variables */
+        final int slot;
+        /** slot of the local in the method frame, -1 if not promoted (see {@link FrameLayout}) */
+        int frameSlot = -1;
+
+        AssignVariable(ICStatement statement, int index, ICIdentifier var, ExprNode right,
+                RegisterFile.SlotTable registerSlots) {
+            super(statement, index);
+            this.var = var;
+            this.right = right;
+            slot = isRegisterAssignment() ? registerSlots.slotOf(var.getId()): -1;
+        }
+
+        boolean isRegisterAssignment() {
+            return var.getIdentifierClass() != CIdentifierClass.LOCAL
+                    && var.getIdentifierClass() != CIdentifierClass.GLOBAL;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            assign(emu.state, right.eval(emu));
+            return next;
+        }
+
+        void assign(EmulatorState state, long value) {
+            if(slot >= 0) {
+                state.setRegisterSlot(slot, var.getType(), value);
+            }
+            else {
+                state.writeVariable(frameSlot, var, value);
+            }
+        }
+    }
+
+    /**
+     * Assignment through a pointer dereference.
+     */
+    static final class AssignMemory extends StmNode {
+        final ExprNode address;
+        final ExprNode right;
+        /** type giving the write size (base type of the cast), null for default 8-byte writes */
+        final ICType castType;
+        /**
+         * false when the dereferenced expression is not an operation; such writes are dropped, as
+         * done by the AST interpreter
+         */
+        final boolean write;
+
+        AssignMemory(ICStatement statement, int index, ExprNode address, ExprNode right, ICType castType,
+                boolean write) {
+            super(statement, index);
+            this.address = address;
+            this.right = right;
+            this.castType = castType;
+            this.write = write;
+        }
+
+        void store(EmulatorState state, long addressValue, long rightValue) {
+            if(write) {
+                state.writeMemory(addressValue, rightValue, castType != null ? state.getBaseTypeSize(castType): 8);
+            }
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            long rightValue = right.eval(emu);
+            store(emu.state, address.eval(emu), rightValue);
+            return next;
+        }
+    }
+
+    static final class If extends StmNode {
+        final ExprNode[] predicates;
+        /** branch targets, one per predicate */
+        StmNode[] targets;
+        /** target when no predicate holds (else block or fallthrough) */
+        StmNode defaultTarget;
+
+        If(ICStatement statement, int index, ExprNode[] predicates) {
+            super(statement, index);
+            this.predicates = predicates;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            for(int i = 0; i < predicates.length; i++) {
+                if(predicates[i].eval(emu) != 0) {
+                    return targets[i];
+                }
+            }
+            return defaultTarget;
+        }
+    }
+
+    static final class While extends StmNode {
+        final ExprNode predicate;
+        /** loop body entry */
+        StmNode bodyTarget;
+
+        While(ICStatement statement, int index, ExprNode predicate) {
+            super(statement, index);
+            this.predicate = predicate;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            return predicate.eval(emu) != 0 ? bodyTarget: next;
+        }
+    }
+
+    static final class Call extends StmNode {
+        final ExprNode.CallSite callSite;
+
+        Call(ICStatement statement, int index, ExprNode.CallSite callSite) {
+            super(statement, index);
+            this.callSite = callSite;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            callSite.invoke(emu);
+            return next;
+        }
+    }
+
+    static final class JumpFar extends StmNode {
+        final ExprNode target;
+
+        JumpFar(ICStatement statement, int index, ExprNode target) {
+            super(statement, index);
+            this.target = target;
+        }
+
+        @Override
+        StmNode execute(SimpleCEmulator emu) {
+            emu.state.setRegisterSlot(SimpleCEmulator.REG_NEXT_METHOD_SLOT, target.eval(emu));
+            return next;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.pnf.plugin.cemulator;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICType;
+import com.pnfsoftware.jeb.core.units.code.asm.type.INativeType;
+import com.pnfsoftware.jeb.core.units.code.asm.type.IPrimitiveType;
+import com.pnfsoftware.jeb.core.units.code.asm.type.ITypeManager;
+import com.pnfsoftware.jeb.util.events.IEventListener;
+import com.pnfsoftware.jeb.util.math.MathUtil;
+
+/**
+ * Cache of type layouts, keyed by {@link ICType} identity. Layouts are computed on first use from
+ * the type manager, and dropped whenever the type manager notifies a change.
+ * <p>
+ * There is one cache per type manager (see {@link #of(ITypeManager)}), listening to it for as long
+ * as the type manager lives. Caches are shared by all states, and their forks (see
+ * {@link EmulatorState#fork()}), possibly running on different threads: the map is replaced,
+ * rather than modified, when a layout is added.
+ */
+class TypeLayouts {
+
+    /**
+     * Layout of a type; unknown sizes are -1, errors being raised by the accessors of
+     * {@link EmulatorState}.
+     */
+    static final class Layout {
+        final ICType type;
+        /** size in bytes */
+        final int size;
+        /** mask of the type size (size 8 or more yields -1) */
+        final long castMask;
+        final boolean signed;
+        /** true for pointer types */
+        final boolean pointer;
+        /** pointed type size in bytes, for pointer types */
+        final int baseSize;
+
+        Layout(ICType type, int size, boolean signed, boolean pointer, int baseSize) {
+            this.type = type;
+            this.size = size;
+            this.castMask = size >= 0 ? MathUtil.makeMask(size * 8): 0;
+            this.signed = signed;
+            this.pointer = pointer;
+            this.baseSize = baseSize;
+        }
+    }
+
+    /** caches by type manager; caches are held by their listener, registered to the type manager */
+    private static final Map<ITypeManager, WeakReference<TypeLayouts>> caches = new WeakHashMap<>();
+
+    private final ITypeManager typeManager;
+    private volatile Map<ICType, Layout> layouts = new IdentityHashMap<>();
+    private IEventListener typeManagerListener;
+
+    private TypeLayouts(ITypeManager typeManager) {
+        this.typeManager = typeManager;
+    }
+
+    /**
+     * Get the cache of a type manager.
+     */
+    static TypeLayouts of(ITypeManager typeManager) {
+        synchronized(caches) {
+            WeakReference<TypeLayouts> ref = caches.get(typeManager);
+            TypeLayouts typeLayouts = ref != null ? ref.get(): null;
+            if(typeLayouts == null) {
+                typeLayouts = new TypeLayouts(typeManager);
+                caches.put(typeManager, new WeakReference<>(typeLayouts));
+            }
+            return typeLayouts;
+        }
+    }
+
+    Layout get(ICType type) {
+        Layout layout = layouts.get(type);
+        if(layout == null) {
+            layout = add(type);
+        }
+        return layout;
+    }
+
+    private synchronized Layout add(ICType type) {
+        Layout layout = compute(type);
+        if(typeManagerListener == null) {
+            typeManagerListener = e -> invalidate();
+            typeManager.addListener(typeManagerListener);
+        }
+        Map<ICType, Layout> newLayouts = new IdentityHashMap<>(layouts);
+        newLayouts.put(type, layout);
+        layouts = newLayouts;
+        return layout;
+    }
+
+    private Layout compute(ICType type) {
+        INativeType typeItem = typeManager.getType(type.getSignature());
+        int size = typeItem != null ? typeItem.getSize(): -1;
+        boolean signed = typeItem instanceof IPrimitiveType && ((IPrimitiveType)typeItem).isSigned();
+        boolean pointer = type.getSignature().endsWith("*");
+        int baseSize = -1;
+        if(pointer) {
+            INativeType baseTypeItem = typeManager.getType(type.getBaseTypeSignature());
+            if(baseTypeItem != null) {
+                baseSize = baseTypeItem.getSize();
+            }
+        }
+        return new Layout(type, size, signed, pointer, baseSize);
+    }
+
+    /**
+     * Drop all layouts; they will be recomputed on demand.
+     */
+    synchronized void invalidate() {
+        layouts = new IdentityHashMap<>();
+    }
+
+    int size() {
+        return layouts.size();
+    }
+}
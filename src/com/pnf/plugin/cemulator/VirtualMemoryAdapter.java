@@ -0,0 +1,93 @@
+package com.pnf.plugin.cemulator;
+
+import com.pnfsoftware.jeb.core.units.code.asm.memory.IVirtualMemory;
+import com.pnfsoftware.jeb.core.units.code.asm.memory.MemoryException;
+import com.pnfsoftware.jeb.core.units.code.asm.memory.VirtualMemoryUtil;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Emulator memory backed by a JEB {@link IVirtualMemory} (default backend).
+ */
+public class VirtualMemoryAdapter implements EmulatorMemory {
+
+    private final IVirtualMemory memory;
+
+    public VirtualMemoryAdapter(IVirtualMemory memory) {
+        this.memory = memory;
+    }
+
+    public IVirtualMemory getVirtualMemory() {
+        return memory;
+    }
+
+    @Override
+    public long read(long address, int size) {
+        try {
+            switch(size) {
+            case 8:
+                return memory.readLong(address);
+            case 4:
+                return memory.readInt(address) & 0xFFFFFFFFL;
+            case 2:
+                return memory.readShort(address) & 0xFFFFL;
+            case 1:
+                return memory.readByte(address) & 0xFFL;
+            default:
+                throw new EmulatorException(Strings.ff("TBI: read memory size (%d)", size));
+            }
+        }
+        catch(MemoryException e) {
+            throw new EmulatorException("ERROR: cant read memory");
+        }
+    }
+
+    @Override
+    public void write(long address, long value, int size) {
+        try {
+            switch(size) {
+            case 8:
+                memory.writeLong(address, value);
+                break;
+            case 4:
+                memory.writeInt(address, (int)value);
+                break;
+            case 2:
+                memory.writeShort(address, (short)value);
+                break;
+            case 1:
+                memory.writeByte(address, (byte)value);
+                break;
+            default:
+                throw new EmulatorException(Strings.ff("TBI: write memory size (%d)", size));
+            }
+        }
+        catch(MemoryException e) {
+            throw new EmulatorException("ERROR: cant write memory");
+        }
+    }
+
+    @Override
+    public void read(long address, byte[] dst, int dstOffset, int length) {
+        try {
+            memory.read(address, length, dst, dstOffset);
+        }
+        catch(MemoryException e) {
+            throw new EmulatorException("ERROR: cant read memory");
+        }
+    }
+
+    @Override
+    public void write(long address, byte[] src, int srcOffset, int length) {
+        memory.write(address, length, src, srcOffset);
+    }
+
+    @Override
+    public void allocate(long address, int size) {
+        VirtualMemoryUtil.allocateFillGaps(memory, address, size, IVirtualMemory.ACCESS_RW);
+    }
+
+    @Override
+    public String toString() {
+        return memory.toString();
+    }
+}
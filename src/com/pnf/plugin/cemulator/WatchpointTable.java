@@ -0,0 +1,90 @@
+package com.pnf.plugin.cemulator;
+
+import java.util.Arrays;
+
+/**
+ * Watchpoints of an {@link EmulatorState}, with a page-level filter: a bitset indexed by page number
+ * (modulo its size) flags the pages holding a watchpoint, so that accesses to other pages are
+ * discarded with a single bit test.
+ * <p>
+ * The table is copy-on-write, and can be shared by forked states.
+ */
+final class WatchpointTable {
+
+    private static final int PAGE_BITS = PagedMemory.PAGE_BITS;
+    private static final int FILTER_SIZE = 1 << 12;
+
+    private volatile MemoryWatchpoint[] watchpoints = new MemoryWatchpoint[0];
+    private volatile long[] filter = new long[FILTER_SIZE / 64];
+
+    synchronized void add(MemoryWatchpoint watchpoint) {
+        MemoryWatchpoint[] newWatchpoints = Arrays.copyOf(watchpoints, watchpoints.length + 1);
+        newWatchpoints[watchpoints.length] = watchpoint;
+        update(newWatchpoints);
+    }
+
+    synchronized boolean remove(MemoryWatchpoint watchpoint) {
+        for(int i = 0; i < watchpoints.length; i++) {
+            if(watchpoints[i] == watchpoint) {
+                MemoryWatchpoint[] newWatchpoints = new MemoryWatchpoint[watchpoints.length - 1];
+                System.arraycopy(watchpoints, 0, newWatchpoints, 0, i);
+                System.arraycopy(watchpoints, i + 1, newWatchpoints, i, newWatchpoints.length - i);
+                update(newWatchpoints);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void update(MemoryWatchpoint[] newWatchpoints) {
+        long[] newFilter = new long[FILTER_SIZE / 64];
+        for(MemoryWatchpoint watchpoint: newWatchpoints) {
+            long first = watchpoint.getAddress() >>> PAGE_BITS;
+            long last = (watchpoint.getAddress() + watchpoint.getSize() - 1) >>> PAGE_BITS;
+            for(long page = first; page <= last && page - first < FILTER_SIZE; page++) {
+                int bit = (int)page & (FILTER_SIZE - 1);
+                newFilter[bit >>> 6] |= 1L << bit;
+            }
+        }
+        watchpoints = newWatchpoints;
+        filter = newFilter;
+    }
+
+    MemoryWatchpoint[] getWatchpoints() {
+        return watchpoints;
+    }
+
+    boolean isEmpty() {
+        return watchpoints.length == 0;
+    }
+
+    /**
+     * Check if a memory range may hold a watchpoint.
+     */
+    boolean isTagged(long address, long size) {
+        long[] bits = filter;
+        long first = address >>> PAGE_BITS;
+        long last = (address + size - 1) >>> PAGE_BITS;
+        if(last - first >= FILTER_SIZE || last < first) {
+            return true;
+        }
+        for(long page = first; page <= last; page++) {
+            int bit = (int)page & (FILTER_SIZE - 1);
+            if((bits[bit >>> 6] & (1L << bit)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deliver an access to the matching watchpoints.
+     */
+    void dispatch(int access, long address, long size, long value, SimpleCEmulator emulator) {
+        for(MemoryWatchpoint watchpoint: watchpoints) {
+            if(watchpoint.matches(access, address, size)) {
+                watchpoint.hit(new MemoryWatchpoint.Event(watchpoint, access, address, size, value, emulator));
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.pnf.plugin.cemulator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import com.pnfsoftware.jeb.core.units.INativeCodeUnit;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.CIdentifierClass;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.COperatorType;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICAssignment;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICBlock;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICConstantInteger;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICExpression;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICIdentifier;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICOperation;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICOperator;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICPredicate;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICReturn;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICStatement;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICType;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICWhileStm;
+import com.pnfsoftware.jeb.core.units.code.asm.memory.IVirtualMemory;
+import com.pnfsoftware.jeb.core.units.code.asm.type.INativeType;
+import com.pnfsoftware.jeb.core.units.code.asm.type.ITypeManager;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Self-checks of the emulator, run by the build ({@code ant check}); they only need JEB's jar, the
+ * code unit and decompiled methods being built from proxies of JEB interfaces.
+ * <p>
+ * The process exits with status 1 if a check fails.
+ */
+public class SelfCheck {
+
+    /** base pointer of the emulated methods, and stack range around it */
+    static final long STACK_BASE = 0x7fff0000L;
+    static final int STACK_SIZE = 0x20000;
+
+    public static void main(String[] args) {
+        int failures = 0;
+        failures += run("allocations", SelfCheck::checkAllocations);
+        failures += run("bulk memory", SelfCheck::checkBulkMemory);
+        failures += run("checkpoints", SelfCheck::checkCheckpoints);
+        System.out.println(failures == 0 ? "> all checks passed": Strings.ff("> %d check(s) failed", failures));
+        System.exit(failures == 0 ? 0: 1);
+    }
+
+    private static int run(String name, Runnable check) {
+        try {
+            check.run();
+            System.out.println(Strings.ff("> %s: OK", name));
+            return 0;
+        }
+        catch(RuntimeException | AssertionError e) {
+            System.out.println(Strings.ff("> %s: FAILED", name));
+            e.printStackTrace(System.out);
+            return 1;
+        }
+    }
+
+    static void check(boolean condition, String format, Object... params) {
+        if(!condition) {
+            throw new AssertionError(Strings.ff(format, params));
+        }
+    }
+
+    /**
+     * Lowered and compiled evaluation must not allocate per statement, text log included.
+     */
+    static void checkAllocations() {
+        if(!AllocationCheck.isSupported()) {
+            System.out.println("  (skipped: per-thread allocation counts are not supported by the JVM)");
+            return;
+        }
+        ICMethod method = buildLoop(200);
+        for(int threshold: new int[] {-1, 0}) {
+            SimpleCEmulator emulator = new SimpleCEmulator();
+            if(threshold >= 0) {
+                emulator.setJitCompiler(new JitCompiler(threshold));
+            }
+            AllocationCheck result = AllocationCheck.run(emulator, 0x401000L, method, newState(), 2000);
+            System.out.println(Strings.ff("  %s: %s", threshold >= 0 ? "jit": "lowered", result));
+            result.verify(AllocationCheck.DEFAULT_MAX_BYTES_PER_EMULATION,
+                    AllocationCheck.DEFAULT_MAX_BYTES_PER_STATEMENT);
+        }
+    }
+
+    /**
+     * Bulk operations of paged memory must match the ones of a flat array: copies between
+     * overlapping ranges (both directions), fills, compares and scans, across page boundaries, on
+     * copy-on-write forks.
+     */
+    static void checkBulkMemory() {
+        int size = 4 * PagedMemory.PAGE_SIZE;
+        long base = 0x10000;
+        // (values around the SWAR zero-byte detection edge cases)
+        byte[] alphabet = {0, 1, 2, 0x7F, (byte)0x80, (byte)0x81, (byte)0xFF};
+        Random random = new Random(14);
+        byte[] expected = new byte[size];
+        for(int i = 0; i < size; i++) {
+            expected[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        PagedMemory memory = new PagedMemory(newCodeUnit().getMemory());
+        memory.allocate(base, size);
+        memory.write(base, expected, 0, size);
+
+        for(int fork = 0; fork < 10; fork++) {
+            // operations are done on a fork: the parent must not change
+            PagedMemory parent = memory;
+            byte[] parentContent = expected.clone();
+            memory = parent.fork(false);
+            for(int op = 0; op < 500; op++) {
+                int a1 = randomOffset(random, size);
+                int a2 = random.nextBoolean() ? a1 + random.nextInt(81) - 40: randomOffset(random, size);
+                a2 = Math.max(0, Math.min(size, a2));
+                int length = random.nextInt(3) == 0 ? random.nextInt(2 * PagedMemory.PAGE_SIZE): random.nextInt(64);
+                length = Math.min(length, size - Math.max(a1, a2));
+                switch(random.nextInt(5)) {
+                case 0:
+                    memory.copy(base + a1, base + a2, length);
+                    System.arraycopy(expected, a1, expected, a2, length);
+                    break;
+                case 1:
+                    byte value = alphabet[random.nextInt(alphabet.length)];
+                    memory.fill(base + a2, value, length);
+                    Arrays.fill(expected, a2, a2 + length, value);
+                    break;
+                case 2:
+                    int result = memory.compare(base + a1, base + a2, length);
+                    int reference = 0;
+                    for(int i = 0; i < length && reference == 0; i++) {
+                        reference = (expected[a1 + i] & 0xFF) - (expected[a2 + i] & 0xFF);
+                    }
+                    check(result == reference, "compare(%x, %x, %d): %d, expected %d", a1, a2, length, result,
+                            reference);
+                    break;
+                case 3:
+                    result = memory.compareStrings(base + a1, base + a2, length);
+                    reference = 0;
+                    for(int i = 0; i < length; i++) {
+                        int c1 = expected[a1 + i] & 0xFF;
+                        int c2 = expected[a2 + i] & 0xFF;
+                        if(c1 != c2 || c1 == 0) {
+                            reference = c1 - c2;
+                            break;
+                        }
+                    }
+                    check(result == reference, "compareStrings(%x, %x, %d): %d, expected %d", a1, a2, length,
+                            result, reference);
+                    break;
+                default:
+                    value = random.nextInt(4) == 0 ? 3: alphabet[random.nextInt(alphabet.length)];
+                    long index = memory.indexOf(base + a1, value, length);
+                    long referenceIndex = -1;
+                    for(int i = 0; i < length && referenceIndex < 0; i++) {
+                        if(expected[a1 + i] == value) {
+                            referenceIndex = i;
+                        }
+                    }
+                    check(index == referenceIndex, "indexOf(%x, %d, %d): %d, expected %d", a1, value, length, index,
+                            referenceIndex);
+                    break;
+                }
+            }
+            byte[] content = new byte[size];
+            memory.read(base, content, 0, size);
+            check(Arrays.equals(content, expected), "memory differs after fork %d", fork);
+            parent.read(base, content, 0, size);
+            check(Arrays.equals(content, parentContent), "parent memory modified by fork %d", fork);
+        }
+    }
+
+    /**
+     * Replaying checkpoints on a fresh state must give back the registers and memory of the
+     * checkpointed run; a truncated trailing record is ignored.
+     */
+    static void checkCheckpoints() {
+        ICMethod method = buildLoop(50);
+        try {
+            File file = File.createTempFile("cemulator", ".ckpt");
+            file.deleteOnExit();
+            CheckpointFile checkpoints = new CheckpointFile(file);
+            checkpoints.reset();
+
+            EmulatorState state = newState();
+            SimpleCEmulator emulator = new SimpleCEmulator();
+            emulator.emulate(0x401000L, method, state);
+            check(checkpoints.write(state, emulator, 0x402000L, 1) > 0, "no page saved by first checkpoint");
+            // pages written after the first checkpoint, on both sides of a page boundary
+            long address = STACK_BASE - STACK_SIZE / 4 - 4;
+            state.writeMemory(address, 0x1122334455667788L, 8);
+            emulator.emulate(0x401000L, method, state);
+            check(checkpoints.write(state, emulator, 0x403000L, 2) == 3, "unexpected page count of second checkpoint");
+            try(FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[] {0, 0, 1, 0, 1, 2});
+            }
+
+            EmulatorState restored = newState();
+            CheckpointFile.Checkpoint last = new CheckpointFile(file).restore(restored, new SimpleCEmulator());
+            check(last != null && last.getSequence() == 1 && last.getHandlerAddress() == 0x403000L
+                    && last.getHandlerCount() == 2, "unexpected last checkpoint: %s", last);
+            check(restored.toRegisterString().equals(state.toRegisterString()), "registers differ: %s, expected %s",
+                    restored.toRegisterString(), state.toRegisterString());
+            for(long a = STACK_BASE - STACK_SIZE / 2; a < STACK_BASE + STACK_SIZE / 2; a += 8) {
+                check(restored.readMemory(a, 8) == state.readMemory(a, 8), "memory differs at %x", a);
+            }
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get a random offset, around a page boundary once in two.
+     */
+    private static int randomOffset(Random random, int size) {
+        if(random.nextBoolean()) {
+            return random.nextInt(size);
+        }
+        int boundary = (1 + random.nextInt(size / PagedMemory.PAGE_SIZE - 1)) * PagedMemory.PAGE_SIZE;
+        return boundary + random.nextInt(64) - 32;
+    }
+
+    //------------------------------------------------------------------------------------------
+    // emulation inputs
+
+    /**
+     * Create a state with a mapped stack, on an empty code unit memory.
+     */
+    static EmulatorState newState() {
+        EmulatorState state = new EmulatorState(newCodeUnit(), new DumpManifest());
+        state.allocateMemory(STACK_BASE - STACK_SIZE / 2, STACK_SIZE);
+        state.setRegisterValue(SimpleCEmulator.REG_RBP_ID, STACK_BASE);
+        return state;
+    }
+
+    static INativeCodeUnit<?> newCodeUnit() {
+        Map<String, INativeType> types = new HashMap<>();
+        for(String signature: new String[] {"char", "short", "int", "long", "long *"}) {
+            int size = signature.endsWith("*") ? 8: signature.equals("char") ? 1: signature.equals("short") ? 2
+                    : signature.equals("int") ? 4: 8;
+            types.put(signature, proxy(INativeType.class, signature, "getSize", size, "getSignature", signature));
+        }
+        ITypeManager typeManager = proxy(ITypeManager.class, "types", "getType",
+                (Function<Object[], Object>)args -> types.get(((String)args[0]).trim()));
+        // unmapped memory: pages are allocated by the checks
+        IVirtualMemory memory = proxy(IVirtualMemory.class, "memory", "getSpaceBits", 64, "getPageBits", 12,
+                "getPageSize", 4096);
+        return proxy(INativeCodeUnit.class, "unit", "getTypeManager", typeManager, "getMemory", memory);
+    }
+
+    /**
+     * Build the method: x = 0; i = 0; while(i &lt; n) { x = x + (i * 3 ^ i &gt;&gt; 1); loc = loc + x; i
+     * = i + 1; } return x;
+     */
+    static ICMethod buildLoop(int n) {
+        ICType longType = type("long");
+        ICIdentifier x = identifier("x", 10, CIdentifierClass.SYNTHETIC, 0, longType);
+        ICIdentifier i = identifier("i", 11, CIdentifierClass.SYNTHETIC, 0, longType);
+        ICIdentifier loc = identifier("loc", 20, CIdentifierClass.LOCAL, -16, longType);
+        ICStatement body = block(
+                assign(x, op(COperatorType.ADD, x,
+                        op(COperatorType.XOR, op(COperatorType.MUL, i, constant(3)),
+                                op(COperatorType.SHR, i, constant(1))))),
+                assign(loc, op(COperatorType.ADD, loc, x)),
+                assign(i, op(COperatorType.ADD, i, constant(1))));
+        ICWhileStm loop = proxy(ICWhileStm.class, "while", "getPredicate",
+                predicate(op(COperatorType.LT, i, constant(n))), "getBlocks", Arrays.asList(body));
+        ICReturn ret = proxy(ICReturn.class, "return x", "getExpression", x);
+        ICBlock methodBody = block(assign(x, constant(0)), assign(i, constant(0)), assign(loc, constant(0)), loop,
+                ret);
+        return proxy(ICMethod.class, "loop", "getName", "loop", "getBody", methodBody);
+    }
+
+    //------------------------------------------------------------------------------------------
+    // AST proxies
+
+    static ICType type(String signature) {
+        return proxy(ICType.class, signature, "getSignature", signature);
+    }
+
+    static ICIdentifier identifier(String name, int id, CIdentifierClass cls, long address, ICType type) {
+        return proxy(ICIdentifier.class, name, "getName", name, "getId", id, "getIdentifierClass", cls, "getAddress",
+                address, "getType", type);
+    }
+
+    static ICConstantInteger<?> constant(long value) {
+        return proxy(ICConstantInteger.class, Long.toString(value), "getValue", value, "getValueAsLong", value);
+    }
+
+    static ICOperation op(COperatorType type, ICExpression opnd1, ICExpression opnd2) {
+        ICOperator operator = proxy(ICOperator.class, type.toString(), "getType", type);
+        return proxy(ICOperation.class, "(" + opnd1 + " " + type + " " + opnd2 + ")", "getOperator", operator,
+                "getOperatorType", type, "getFirstOperand", opnd1, "getSecondOperand", opnd2, "getCountOfOperands", 2,
+                "checkOperatorType", (Function<Object[], Object>)args -> args[0] == type);
+    }
+
+    static ICPredicate predicate(ICExpression expression) {
+        return proxy(ICPredicate.class, expression.toString(), "getExpression", expression);
+    }
+
+    static ICAssignment assign(ICExpression left, ICExpression right) {
+        return proxy(ICAssignment.class, left + " = " + right, "isSimpleAssignment", true, "getLeft", left,
+                "getRight", right);
+    }
+
+    static ICBlock block(ICStatement... statements) {
+        List<ICStatement> list = Arrays.asList(statements);
+        return proxy(ICBlock.class, "{...}", "size", list.size(), "isEmpty", list.isEmpty(), "get",
+                (Function<Object[], Object>)args -> list.get((Integer)args[0]), "getLast",
+                list.get(list.size() - 1));
+    }
+
+    /**
+     * Implement an interface by a proxy answering the given methods: name and value pairs, values
+     * being functions of the call arguments if instances of {@link Function}. Other methods return
+     * default values.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, String text, Object... methods) {
+        Map<String, Object> values = new HashMap<>();
+        for(int i = 0; i < methods.length; i += 2) {
+            values.put((String)methods[i], methods[i + 1]);
+        }
+        return (T)Proxy.newProxyInstance(SelfCheck.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch(method.getName()) {
+                    case "toString":
+                        return text;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        break;
+                    }
+                    Object value = values.get(method.getName());
+                    if(value instanceof Function) {
+                        return ((Function<Object[], Object>)value).apply(args);
+                    }
+                    if(value != null || values.containsKey(method.getName())) {
+                        return value;
+                    }
+                    Class<?> returnType = method.getReturnType();
+                    if(returnType == boolean.class) {
+                        return false;
+                    }
+                    if(returnType.isPrimitive() && returnType != void.class) {
+                        return returnType == long.class ? (Object)0L: returnType == int.class ? (Object)0
+                                : returnType == double.class ? (Object)0.0: returnType == float.class ? (Object)0f
+                                : returnType == short.class ? (Object)(short)0: returnType == byte.class
+                                ? (Object)(byte)0: (Object)'\0';
+                    }
+                    return null;
+                });
+    }
+}